@@ -0,0 +1,247 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.awt.Component;
+import java.awt.GraphicsEnvironment;
+import java.awt.KeyboardFocusManager;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.SwingUtilities;
+import javax.swing.text.JTextComponent;
+
+import org.fife.ui.autocomplete.Completion;
+import org.fife.ui.autocomplete.CompletionProvider;
+import org.scijava.ui.swing.script.autocompletion.AutoCompletionListener;
+
+/**
+ * Runs {@link JythonAutoCompletions} on a bounded pool of background threads, so that a slow analysis
+ * (parsing, module loading, reflection) doesn't freeze the editor.
+ * 
+ * Each new request cancels the prior one of the same session (see {@link CompletionSessions}), which is stale. Requests made with {@link #request} start after
+ * a debouncing delay, so that fast typing doesn't start an analysis per keystroke. When the deadline
+ * of a request expires, its future completes with the partial results found so far.
+ */
+public class AsyncJythonAutoCompletions implements AutoCompletionListener {
+	
+	/** Milliseconds that {@link #completionsFor(CompletionProvider, String, String, String)} waits for results before settling for partial ones. */
+	static public long DEADLINE = 500;
+	
+	private final JythonAutoCompletions completions;
+	private final ThreadPoolExecutor executor;
+	private final ScheduledThreadPoolExecutor timer;
+	/** Milliseconds to wait before starting the analysis of a request. */
+	private final long debounce;
+	
+	/** The most recent request of each session. */
+	private final Map<CompletionSession, Work> latest = new WeakHashMap<>();
+	
+	public AsyncJythonAutoCompletions() {
+		this(new JythonAutoCompletions(), 2, 8, 50);
+	}
+	
+	/**
+	 * @param completions The completions engine to run asynchronously.
+	 * @param nThreads Number of threads to run the analysis on.
+	 * @param queueSize Maximum number of requests waiting to run; when full, the oldest is cancelled.
+	 * @param debounce Milliseconds to wait before starting the analysis of a request.
+	 */
+	public AsyncJythonAutoCompletions(final JythonAutoCompletions completions, final int nThreads, final int queueSize, final long debounce) {
+		this.completions = completions;
+		this.debounce = debounce;
+		this.executor = new ThreadPoolExecutor(nThreads, nThreads, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueSize), threads("jython autocompletion"),
+				(r, e) -> {
+					// Queue full: cancel the oldest waiting request to make room
+					final Runnable oldest = e.getQueue().poll();
+					if (oldest instanceof Work) ((Work)oldest).cancel();
+					if (!e.isShutdown()) e.execute(r);
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+		this.timer = new ScheduledThreadPoolExecutor(1, threads("jython autocompletion timer"));
+		this.timer.setRemoveOnCancelPolicy(true);
+	}
+	
+	static private ThreadFactory threads(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return r -> {
+			final Thread t = new Thread(r, name + " " + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+	
+	private final class Work implements Runnable {
+		final CompletionRequest request = new CompletionRequest();
+		final CompletableFuture<List<Completion>> future = new CompletableFuture<>();
+		final CompletionSession session;
+		final CompletionProvider provider;
+		final String codeWithoutLastLine, lastLine, alreadyEnteredText;
+		
+		Work(final CompletionSession session, final CompletionProvider provider, final String codeWithoutLastLine, final String lastLine, final String alreadyEnteredText) {
+			this.session = session;
+			this.provider = provider;
+			this.codeWithoutLastLine = codeWithoutLastLine;
+			this.lastLine = lastLine;
+			this.alreadyEnteredText = alreadyEnteredText;
+		}
+		
+		@Override
+		public void run() {
+			if (request.isCancelled()) return;
+			try {
+				future.complete(completions.completionsFor(provider, codeWithoutLastLine, lastLine, alreadyEnteredText, request, session));
+			} catch (CancellationException e) {
+				future.cancel(false);
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			}
+		}
+		
+		/** Stale: discard the results. */
+		void cancel() {
+			request.cancel();
+			future.cancel(false);
+		}
+		
+		/** Deadline: stop the analysis and complete with the partial results. */
+		void expire() {
+			request.cancel();
+			future.complete(request.getPartial());
+		}
+	}
+	
+	/**
+	 * Request completions asynchronously, in the session of the {@code provider}. Cancels the prior request of the session, if still running.
+	 * 
+	 * @param deadline Milliseconds after which the returned future completes with the partial results found so far; zero or less for none.
+	 * @return A future that completes with the completions, or that is cancelled when a newer request supersedes it.
+	 */
+	public CompletableFuture<List<Completion>> request(final CompletionProvider provider, final String codeWithoutLastLine,
+			final String lastLine, final String alreadyEnteredText, final long deadline) {
+		final CompletionSession session = CompletionSessions.acquire(provider); // not evicted until submitted
+		try {
+			return request(session, provider, codeWithoutLastLine, lastLine, alreadyEnteredText, deadline);
+		} finally {
+			session.exit();
+		}
+	}
+	
+	/**
+	 * Like {@link #request(CompletionProvider, String, String, String, long)}, for the document of the {@code session},
+	 * cancelling only the prior request of the same session.
+	 */
+	public CompletableFuture<List<Completion>> request(final CompletionSession session, final CompletionProvider provider, final String codeWithoutLastLine,
+			final String lastLine, final String alreadyEnteredText, final long deadline) {
+		return submit(new Work(session, provider, codeWithoutLastLine, lastLine, alreadyEnteredText), debounce, deadline);
+	}
+	
+	private CompletableFuture<List<Completion>> submit(final Work work, final long delay, final long deadline) {
+		synchronized (latest) {
+			final Work prior = latest.put(work.session, work);
+			if (null != prior) prior.cancel();
+		}
+		// In use until done, and then not held onto, nor its provider
+		work.session.enter();
+		work.future.whenComplete((r, t) -> {
+			work.session.exit();
+			synchronized (latest) {
+				latest.remove(work.session, work);
+			}
+		});
+		if (delay > 0) timer.schedule(() -> executor.execute(work), delay, TimeUnit.MILLISECONDS);
+		else executor.execute(work);
+		if (deadline > 0) {
+			final ScheduledFuture<?> expiry = timer.schedule(work::expire, deadline, TimeUnit.MILLISECONDS);
+			work.future.whenComplete((r, t) -> expiry.cancel(false));
+		}
+		return work.future;
+	}
+	
+	/**
+	 * Synchronous, without debouncing: waits up to {@link #DEADLINE} milliseconds and then returns the partial results,
+	 * or, if none were found so far, waits for the analysis to complete, e.g. a first completion after a dot.
+	 * Returns no completions when a newer request superseded this one.
+	 */
+	@Override
+	public List<Completion> completionsFor(final CompletionProvider provider, final String codeWithoutLastLine,
+			final String lastLine, final String alreadyEnteredText) {
+		closeWhenDisposed(provider);
+		final Work work = new Work(CompletionSessions.acquire(provider), provider, codeWithoutLastLine, lastLine, alreadyEnteredText);
+		final CompletableFuture<List<Completion>> future;
+		try {
+			future = submit(work, 0, 0);
+		} finally {
+			work.session.exit(); // in use until done, see submit
+		}
+		try {
+			try {
+				return future.get(DEADLINE, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				if (!work.request.getPartial().isEmpty()) work.expire();
+				return work.future.get();
+			}
+		} catch (CancellationException e) {
+			return Collections.emptyList();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return Collections.emptyList();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			return Collections.emptyList();
+		}
+	}
+	
+	/**
+	 * The editor requests completions from the event dispatch thread, with its text area focused:
+	 * close the session of the {@code provider} when the text area is disposed, e.g. when its tab is closed.
+	 */
+	static private void closeWhenDisposed(final CompletionProvider provider) {
+		if (GraphicsEnvironment.isHeadless() || !SwingUtilities.isEventDispatchThread()) return;
+		final Component owner = KeyboardFocusManager.getCurrentKeyboardFocusManager().getFocusOwner();
+		if (owner instanceof JTextComponent) CompletionSessions.closeWhenDisposed(provider, owner);
+	}
+	
+	/** Cancel all requests and stop the threads. */
+	public void shutdown() {
+		synchronized (latest) {
+			for (final Work work : latest.values()) work.cancel();
+			latest.clear();
+		}
+		executor.shutdown();
+		timer.shutdownNow();
+	}
+}
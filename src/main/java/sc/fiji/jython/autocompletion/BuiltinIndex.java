@@ -0,0 +1,138 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.scijava.ui.swing.script.autocompletion.CompletionText;
+
+/**
+ * A sorted index of the names bound in the {@code Scope#indexer}, including jython's builtins,
+ * to answer prefix queries by binary search instead of scanning all bindings.
+ * 
+ * The index is built on first use and rebuilt only when the bindings of the indexer change
+ * (see {@link #changed()}), or when explicitly invalidated. Readers don't lock the indexer:
+ * they use the immutable index, which is replaced, never modified.
+ */
+public final class BuiltinIndex {
+	
+	static private final String BUILTIN = "__builtin__.";
+	
+	/** All binding names, sorted, without the "__builtin__." prefix. */
+	private final String[] names;
+	/** Binding names that had the "__builtin__." prefix, sorted, without it: e.g. "str.join". */
+	private final String[] builtins;
+	/** The generation of the bindings of the indexer when this index was built. */
+	private final int generation;
+	/** Shared, immutable completions for the members of builtin types, e.g. for "str". */
+	private final Map<String, DotAutocompletions> members = new ConcurrentHashMap<>();
+	
+	static private final Scope builtinScope = new Scope(null);
+	
+	static private volatile BuiltinIndex index = null;
+	
+	/** Incremented every time the bindings of the indexer change, e.g. upon loading or evicting modules: not their number, which may not change. */
+	static private final AtomicInteger generations = new AtomicInteger();
+	
+	private BuiltinIndex(final Map<String, ?> bindings, final int generation) {
+		final TreeSet<String> names = new TreeSet<>(),
+		                      builtins = new TreeSet<>();
+		for (final String name: bindings.keySet()) {
+			if (name.startsWith(BUILTIN)) {
+				final String s = name.substring(BUILTIN.length());
+				names.add(s);
+				builtins.add(s);
+			} else {
+				names.add(name);
+			}
+		}
+		this.names = names.toArray(new String[names.size()]);
+		this.builtins = builtins.toArray(new String[builtins.size()]);
+		this.generation = generation;
+	}
+	
+	static private BuiltinIndex get() {
+		BuiltinIndex bi = index;
+		if (null != bi && bi.generation == generations.get()) return bi;
+		synchronized (Scope.indexer) {
+			final int generation = generations.get();
+			bi = index;
+			if (null == bi || bi.generation != generation)
+				index = bi = new BuiltinIndex(Scope.indexer.getBindings(), generation);
+			return bi;
+		}
+	}
+	
+	/** Mark the index as stale, to be rebuilt on next use. Call while synchronized on the indexer, after changing its bindings. */
+	static void changed() {
+		generations.incrementAndGet();
+	}
+	
+	/** Discard the index, to be rebuilt on next use. */
+	static public void invalidate() {
+		index = null;
+	}
+	
+	/** Add to {@code completions} all binding names that start with {@code prefix}, without the "__builtin__." prefix. */
+	static public void findStartsWith(final String prefix, final List<String> completions) {
+		final String[] names = get().names;
+		for (int i = lowerBound(names, prefix); i < names.length && names[i].startsWith(prefix); ++i)
+			completions.add(names[i]);
+	}
+	
+	/**
+	 * @param name The name of a builtin, e.g. "str".
+	 * @return A shared {@code DotAutocompletions} listing the members of the builtin, or null if it has none.
+	 */
+	static public DotAutocompletions findMembers(final String name) {
+		final BuiltinIndex bi = get();
+		final DotAutocompletions da = bi.members.get(name);
+		if (null != da) return da == DotAutocompletions.EMPTY ? null : da;
+		final String prefix = name + ".";
+		final List<CompletionText> dotAutocompletions = new ArrayList<>();
+		for (int i = lowerBound(bi.builtins, prefix); i < bi.builtins.length && bi.builtins[i].startsWith(prefix); ++i)
+			dotAutocompletions.add(new CompletionText(bi.builtins[i].substring(prefix.length())));
+		if (dotAutocompletions.isEmpty()) {
+			bi.members.put(name, DotAutocompletions.EMPTY);
+			return null;
+		}
+		final ClassDotAutocompletions cda = new ClassDotAutocompletions(name, Collections.emptyList(), Collections.emptyList(),
+				CompletionList.of(dotAutocompletions), builtinScope) {
+			@Override
+			public boolean put(final CompletionText entry) { return false; } // shared: can't be expanded by assignments
+		};
+		bi.members.put(name, cda);
+		return cda;
+	}
+	
+	static private int lowerBound(final String[] sorted, final String key) {
+		final int i = Arrays.binarySearch(sorted, key);
+		return i < 0 ? -(i + 1) : i;
+	}
+}
@@ -27,7 +27,7 @@ import java.util.List;
 import org.scijava.ui.swing.script.autocompletion.CompletionText;
 
 public class ClassDotAutocompletions extends DefVarDotAutocompletions {
-	final List<String> superclassNames; // List of superclasses
+	List<String> superclassNames; // List of superclasses
 	final List<CompletionText>dotAutocompletions; // List of class methods and fields
 	
 	public ClassDotAutocompletions(final String fnName, List<String> superclassNames,
@@ -39,6 +39,7 @@ public class ClassDotAutocompletions extends DefVarDotAutocompletions {
 	
 	@Override
 	public List<CompletionText> get() {
+		if (this.superclassNames.isEmpty()) return CompletionList.of(this.dotAutocompletions); // as is when shared, see BuiltinIndex
 		final List<CompletionText> ac = new ArrayList<>(this.dotAutocompletions);
 		for (final String className: this.superclassNames) {
 			List<CompletionText> fm = DotAutocompletions.getPublicFieldsAndMethods(className);
@@ -52,21 +53,26 @@ public class ClassDotAutocompletions extends DefVarDotAutocompletions {
 		return ac;
 	}
 	
-	public void put(final CompletionText entry) {
-		if (this.dotAutocompletions.contains(entry)) return; // list search OK: very low N
+	/** @return Whether the entry was added, i.e. wasn't there already. */
+	public boolean put(final CompletionText entry) {
+		if (this.dotAutocompletions.contains(entry)) return false; // list search OK: very low N
 		this.dotAutocompletions.add(entry);
+		return true;
 	}
 	
-	/** Make this be cda plus its own dotAutocompletions. */
+	/** Revert {@link #put(CompletionText)}, see {@link Scope#added(ClassDotAutocompletions, CompletionText)}. */
+	void remove(final CompletionText entry) {
+		this.dotAutocompletions.remove(entry);
+	}
+	
+	/** Make this be cda plus its own dotAutocompletions. The lists of names are replaced, so they can be immutable, e.g. empty. */
 	public void mutateIntoPlus(final ClassDotAutocompletions cda) 
 	{
 		this.className = cda.className;
 		this.fnName = cda.fnName;
-		this.superclassNames.clear();
-		this.superclassNames.addAll(cda.superclassNames);
+		this.superclassNames = new ArrayList<>(cda.superclassNames);
 		this.dotAutocompletions.addAll(cda.dotAutocompletions);
-		this.argumentNames.clear();
-		this.argumentNames.addAll(cda.argumentNames);
+		this.argumentNames = new ArrayList<>(cda.argumentNames);
 		this.scope = cda.scope;
 	}
 	
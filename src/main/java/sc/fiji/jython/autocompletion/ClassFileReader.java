@@ -0,0 +1,322 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the name, supertypes and members of a java class straight from its class file, parsing only
+ * the constant pool, the field and method tables and the generic signatures, without loading the class into the JVM.
+ * 
+ * See chapter 4 of the Java Virtual Machine Specification.
+ */
+final class ClassFileReader {
+	
+	static private final int MAGIC = 0xCAFEBABE;
+	
+	static private final int ACC_BRIDGE = 0x0040,
+	                         ACC_SYNTHETIC = 0x1000;
+	
+	private ClassFileReader() {}
+	
+	/**
+	 * @param in The bytes of a class file.
+	 * @return The class, with its declared fields and methods, except for constructors and synthetic members.
+	 * @throws IOException When not a class file.
+	 */
+	static ClassIndex.ClassInfo read(final InputStream in) throws IOException {
+		final DataInputStream data = new DataInputStream(in);
+		if (MAGIC != data.readInt()) throw new IOException("Not a class file");
+		data.readUnsignedShort(); // minor version
+		data.readUnsignedShort(); // major version
+		final String[] utf8 = new String[data.readUnsignedShort()];
+		final int[] classes = new int[utf8.length]; // the index of the name of each Class entry
+		for (int i = 1; i < utf8.length; ++i) {
+			final int tag = data.readUnsignedByte();
+			switch (tag) {
+			case 1: // Utf8, in the same modified UTF-8 as readUTF
+				utf8[i] = data.readUTF();
+				break;
+			case 7: // Class
+				classes[i] = data.readUnsignedShort();
+				break;
+			case 8: // String
+			case 16: // MethodType
+			case 19: // Module
+			case 20: // Package
+				data.skipBytes(2);
+				break;
+			case 15: // MethodHandle
+				data.skipBytes(3);
+				break;
+			case 3: // Integer
+			case 4: // Float
+			case 9: // Fieldref
+			case 10: // Methodref
+			case 11: // InterfaceMethodref
+			case 12: // NameAndType
+			case 17: // Dynamic
+			case 18: // InvokeDynamic
+				data.skipBytes(4);
+				break;
+			case 5: // Long
+			case 6: // Double
+				data.skipBytes(8);
+				++i; // takes two entries
+				break;
+			default:
+				throw new IOException("Unknown constant pool tag " + tag);
+			}
+		}
+		final int access = data.readUnsignedShort();
+		final String name = className(utf8, classes, data.readUnsignedShort());
+		final String superName = className(utf8, classes, data.readUnsignedShort()); // null for java.lang.Object
+		final String[] interfaces = new String[data.readUnsignedShort()];
+		for (int i = 0; i < interfaces.length; ++i)
+			interfaces[i] = className(utf8, classes, data.readUnsignedShort());
+		final List<ClassIndex.Member> members = new ArrayList<>();
+		readMembers(data, utf8, false, members);
+		readMembers(data, utf8, true, members);
+		final String signature = readSignature(data, utf8);
+		if (null == signature)
+			return new ClassIndex.ClassInfo(name, superName, interfaces, access, members);
+		// e.g. "<E:Ljava/lang/Object;>Ljava/util/AbstractList<TE;>;Ljava/util/List<TE;>;"
+		final List<String> typeParams = new ArrayList<>();
+		final Map<String, String[]> typeArgs = new HashMap<>();
+		final StringBuilder sb = new StringBuilder();
+		final List<String> args = new ArrayList<>();
+		for (int k = typeParameters(signature, 0, typeParams); k < signature.length(); ) {
+			sb.setLength(0);
+			args.clear();
+			k = classType(signature, k, sb, args);
+			if (!args.isEmpty()) typeArgs.put(sb.toString(), args.toArray(new String[args.size()]));
+		}
+		return new ClassIndex.ClassInfo(name, superName, interfaces, access, members,
+				typeParams.toArray(new String[typeParams.size()]), typeArgs.isEmpty() ? Collections.emptyMap() : typeArgs);
+	}
+	
+	/** Read the attributes at the current position, skipping all but the Signature attribute.
+	 *  @return Its value, or null if none. */
+	static private String readSignature(final DataInputStream data, final String[] utf8) throws IOException {
+		String signature = null;
+		for (int k = data.readUnsignedShort(); k > 0; --k) {
+			final String attribute = utf8[data.readUnsignedShort()];
+			final int length = data.readInt();
+			if ("Signature".equals(attribute)) {
+				signature = utf8[data.readUnsignedShort()];
+				data.skipBytes(length - 2);
+			} else {
+				data.skipBytes(length);
+			}
+		}
+		return signature;
+	}
+	
+	static private void readMembers(final DataInputStream data, final String[] utf8, final boolean methods,
+			final List<ClassIndex.Member> members) throws IOException {
+		final int count = data.readUnsignedShort();
+		for (int i = 0; i < count; ++i) {
+			final int access = data.readUnsignedShort();
+			final String name = utf8[data.readUnsignedShort()],
+			             descriptor = utf8[data.readUnsignedShort()],
+			             signature = readSignature(data, utf8);
+			if (0 != (access & ACC_SYNTHETIC) || (methods && 0 != (access & ACC_BRIDGE))) continue;
+			if (methods) {
+				if ('<' == name.charAt(0)) continue; // <init> and <clinit>
+				final List<String> params = new ArrayList<>();
+				int k = 1; // past the '('
+				while (')' != descriptor.charAt(k))
+					k = typeName(descriptor, k, params);
+				final List<String> type = new ArrayList<>(1);
+				typeName(descriptor, k + 1, type);
+				members.add(new ClassIndex.Member(name, type.get(0), params.toArray(new String[params.size()]), access & Modifier.methodModifiers(),
+						null == signature ? null : returnTypeVariable(signature)));
+			} else {
+				final List<String> type = new ArrayList<>(1);
+				typeName(descriptor, 0, type);
+				members.add(new ClassIndex.Member(name, type.get(0), null, access & Modifier.fieldModifiers(),
+						null != signature && 'T' == signature.charAt(0) ? signature.substring(1, signature.length() - 1) : null));
+			}
+		}
+	}
+	
+	/**
+	 * @param signature A method signature, e.g. "<T:Ljava/lang/Object;>(TT;I)TE;".
+	 * @return The name of the type variable that is the return type, if declared by the class and not the method, e.g. "E"; otherwise null.
+	 */
+	static private String returnTypeVariable(final String signature) {
+		final List<String> methodTypeParams = new ArrayList<>(0);
+		int k = typeParameters(signature, 0, methodTypeParams) + 1; // past the '('
+		while (')' != signature.charAt(k))
+			k = skipType(signature, k);
+		if ('T' != signature.charAt(k + 1)) return null;
+		final String name = signature.substring(k + 2, signature.indexOf(';', k));
+		return methodTypeParams.contains(name) ? null : name;
+	}
+	
+	/**
+	 * Parse the type parameters at {@code start}, if any, e.g. "<K:Ljava/lang/Object;V::Ljava/lang/Comparable<TV;>;>", adding their names.
+	 * @return The index past them.
+	 */
+	static private int typeParameters(final String signature, final int start, final List<String> names) {
+		if ('<' != signature.charAt(start)) return start;
+		int k = start + 1;
+		while ('>' != signature.charAt(k)) {
+			final int colon = signature.indexOf(':', k);
+			names.add(signature.substring(k, colon));
+			k = colon;
+			while (':' == signature.charAt(k)) { // the class bound, which can be empty, and interface bounds
+				++k;
+				if (':' != signature.charAt(k)) k = skipType(signature, k);
+			}
+		}
+		return k + 1;
+	}
+	
+	/** @return The index past the type signature at {@code start}. */
+	static private int skipType(final String signature, final int start) {
+		int k = start;
+		while ('[' == signature.charAt(k)) ++k;
+		switch (signature.charAt(k)) {
+		case 'L':
+			for (int depth = 0; ; ++k) {
+				final char c = signature.charAt(k);
+				if ('<' == c) ++depth;
+				else if ('>' == c) --depth;
+				else if (';' == c && 0 == depth) return k + 1;
+			}
+		case 'T':
+			return signature.indexOf(';', k) + 1;
+		default:
+			return k + 1;
+		}
+	}
+	
+	/**
+	 * Parse the class type signature at {@code start}, e.g. "Ljava/util/Map<TK;Ljava/util/List<TV;>;>;",
+	 * appending its class name to {@code name}, e.g. "java.util.Map", and adding its type arguments to {@code args},
+	 * each a class name, or "T:" and the name of a type variable, e.g. "T:K", "java.util.List".
+	 * Wildcards are replaced by their upper bound.
+	 * 
+	 * @return The index past the end of the signature.
+	 */
+	static private int classType(final String signature, final int start, final StringBuilder name, final List<String> args) {
+		int k = start + 1; // past the 'L'
+		while (true) {
+			final char c = signature.charAt(k);
+			switch (c) {
+			case ';':
+				return k + 1;
+			case '.': // an inner class of a generic class
+				name.append('$');
+				++k;
+				break;
+			case '<':
+				args.clear(); // only those of the innermost class
+				for (++k; '>' != signature.charAt(k); ) {
+					switch (signature.charAt(k)) {
+					case '*':
+						args.add("java.lang.Object");
+						++k;
+						break;
+					case '-':
+						args.add("java.lang.Object");
+						k = skipType(signature, k + 1);
+						break;
+					case '+':
+						k = typeArgument(signature, k + 1, args);
+						break;
+					default:
+						k = typeArgument(signature, k, args);
+					}
+				}
+				++k;
+				break;
+			default:
+				name.append('/' == c ? '.' : c);
+				++k;
+			}
+		}
+	}
+	
+	static private int typeArgument(final String signature, final int start, final List<String> args) {
+		switch (signature.charAt(start)) {
+		case 'T':
+			final int end = signature.indexOf(';', start);
+			args.add("T:" + signature.substring(start + 1, end));
+			return end + 1;
+		case 'L':
+			final StringBuilder sb = new StringBuilder();
+			final int k = classType(signature, start, sb, new ArrayList<>(0));
+			args.add(sb.toString());
+			return k;
+		default: // an array
+			final int past = skipType(signature, start);
+			final String array = signature.substring(start, past);
+			final boolean plain = 'T' != array.charAt(array.lastIndexOf('[') + 1) && -1 == array.indexOf('<');
+			args.add(plain ? array.replace('/', '.') : "java.lang.Object");
+			return past;
+		}
+	}
+	
+	static private String className(final String[] utf8, final int[] classes, final int index) {
+		if (0 == index) return null;
+		return utf8[classes[index]].replace('/', '.');
+	}
+	
+	/**
+	 * Parse the type descriptor starting at {@code start} into the name that {@code Class#getName()} would return,
+	 * e.g. "int", "ij.ImagePlus", "[I" or "[Lij.ImagePlus;".
+	 * 
+	 * @return The index past the end of the descriptor.
+	 */
+	static private int typeName(final String descriptor, final int start, final List<String> names) {
+		int k = start;
+		while ('[' == descriptor.charAt(k)) ++k;
+		final int end = 'L' == descriptor.charAt(k) ? descriptor.indexOf(';', k) + 1 : k + 1;
+		if (k > start) {
+			names.add(descriptor.substring(start, end).replace('/', '.'));
+			return end;
+		}
+		switch (descriptor.charAt(k)) {
+		case 'L': names.add(descriptor.substring(k + 1, end - 1).replace('/', '.')); break;
+		case 'Z': names.add("boolean"); break;
+		case 'B': names.add("byte"); break;
+		case 'C': names.add("char"); break;
+		case 'S': names.add("short"); break;
+		case 'I': names.add("int"); break;
+		case 'J': names.add("long"); break;
+		case 'F': names.add("float"); break;
+		case 'D': names.add("double"); break;
+		default: names.add("void"); break;
+		}
+		return end;
+	}
+}
@@ -0,0 +1,539 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.GenericSignatureFormatError;
+import java.lang.reflect.MalformedParameterizedTypeException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The fields, methods and supertypes of the java classes in the jar files of the class path, read from their
+ * class files (see {@link ClassFileReader}) instead of loaded with {@code Class.forName}, which would run their
+ * static initializers and load the classes they depend on, just to list their member names.
+ * 
+ * The jar files are those of the class loader (see {@link #setClassLoader(ClassLoader)}) and its parents, and of the "java.class.path".
+ * All classes of a jar file are read when any of them is first needed, and the result is stored
+ * in ~/.cache/jython-autocompletion/classes/, in a file named after the checksum of the jar's entries,
+ * to be read back instead while the jar file doesn't change.
+ * 
+ * Classes not in a jar file, e.g. those of the JDK, are read with reflection, without initializing them.
+ * 
+ * Which jar files contain each package is listed in a background thread when the class loader is set;
+ * meanwhile, classes are not found here, and are read with reflection instead.
+ */
+final class ClassIndex {
+	
+	/** A field, or a method with its parameter types. */
+	static final class Member {
+		final String name;
+		/** The type of the field or the return type of the method, as named by {@code Class#getName()}. */
+		final String type;
+		/** The parameter types, or null for a field. */
+		final String[] params;
+		final int access;
+		/** The name of the type variable of the declaring class that is the type, when generic, e.g. "E" for {@code E get(int)}; otherwise null. */
+		final String typeVariable;
+		
+		Member(final String name, final String type, final String[] params, final int access) {
+			this(name, type, params, access, null);
+		}
+		
+		Member(final String name, final String type, final String[] params, final int access, final String typeVariable) {
+			this.name = name;
+			this.type = type;
+			this.params = params;
+			this.access = access;
+			this.typeVariable = typeVariable;
+		}
+		
+		boolean isMethod() {
+			return null != params;
+		}
+		
+		boolean isStatic() {
+			return Modifier.isStatic(access);
+		}
+		
+		boolean isPublic() {
+			return Modifier.isPublic(access);
+		}
+		
+		/** @return The name and parameter types, which overriding methods share. */
+		String signature() {
+			return isMethod() ? name + "(" + String.join(",", params) + ")" : name;
+		}
+		
+		/** @return A description like that of {@code Method#toString()} or {@code Field#toString()}. */
+		String toString(final String declaringClass) {
+			final String mods = Modifier.toString(access);
+			final StringBuilder sb = new StringBuilder();
+			if (!mods.isEmpty()) sb.append(mods).append(' ');
+			sb.append(readable(type)).append(' ').append(declaringClass).append('.').append(name);
+			if (isMethod())
+				sb.append(Arrays.stream(params).map(ClassIndex::readable).collect(Collectors.joining(",", "(", ")")));
+			return sb.toString();
+		}
+	}
+	
+	/** A class, with its declared members. */
+	static final class ClassInfo {
+		final String name, superName;
+		final String[] interfaces;
+		final int access;
+		final List<Member> members;
+		/** The names of the type variables of the class, if generic, e.g. "K", "V". */
+		final String[] typeParams;
+		/**
+		 * The type arguments of each generic supertype, e.g. for {@code ArrayList<E>} its superclass
+		 * {@code AbstractList<E>}: each the name of a class, or "T:" and the name of a type variable of this class.
+		 */
+		final Map<String, String[]> typeArgs;
+		
+		ClassInfo(final String name, final String superName, final String[] interfaces, final int access, final List<Member> members) {
+			this(name, superName, interfaces, access, members, NO_NAMES, Collections.emptyMap());
+		}
+		
+		ClassInfo(final String name, final String superName, final String[] interfaces, final int access, final List<Member> members,
+				final String[] typeParams, final Map<String, String[]> typeArgs) {
+			this.name = name;
+			this.superName = superName;
+			this.interfaces = interfaces;
+			this.access = access;
+			this.members = Collections.unmodifiableList(members);
+			this.typeParams = typeParams;
+			this.typeArgs = typeArgs;
+		}
+		
+		boolean isInterface() {
+			return Modifier.isInterface(access);
+		}
+		
+		/** The same information, obtained with reflection. */
+		static ClassInfo of(final Class<?> c) {
+			final List<Member> members = new ArrayList<>();
+			for (final Field f : c.getDeclaredFields())
+				if (!f.isSynthetic())
+					members.add(new Member(f.getName(), f.getType().getName(), null, f.getModifiers(), typeVariable(c, f::getGenericType)));
+			for (final Method m : c.getDeclaredMethods()) {
+				if (m.isSynthetic() || m.isBridge()) continue;
+				final Class<?>[] ps = m.getParameterTypes();
+				final String[] params = new String[ps.length];
+				for (int i = 0; i < ps.length; ++i) params[i] = ps[i].getName();
+				members.add(new Member(m.getName(), m.getReturnType().getName(), params, m.getModifiers(), typeVariable(c, m::getGenericReturnType)));
+			}
+			final Class<?>[] is = c.getInterfaces();
+			final String[] interfaces = new String[is.length];
+			for (int i = 0; i < is.length; ++i) interfaces[i] = is[i].getName();
+			final TypeVariable<?>[] vs = c.getTypeParameters();
+			final String[] typeParams = 0 == vs.length ? NO_NAMES : new String[vs.length];
+			for (int i = 0; i < vs.length; ++i) typeParams[i] = vs[i].getName();
+			final Map<String, String[]> typeArgs = new HashMap<>();
+			try {
+				final List<Type> supers = new ArrayList<>(Arrays.asList(c.getGenericInterfaces()));
+				supers.add(c.getGenericSuperclass());
+				for (final Type s : supers) {
+					if (!(s instanceof ParameterizedType)) continue;
+					final Type[] as = ((ParameterizedType)s).getActualTypeArguments();
+					final String[] args = new String[as.length];
+					for (int i = 0; i < as.length; ++i)
+						args[i] = as[i] instanceof TypeVariable ? "T:" + ((TypeVariable<?>)as[i]).getName() : erasure(as[i]);
+					typeArgs.put(erasure(s), args);
+				}
+			} catch (TypeNotPresentException | GenericSignatureFormatError | MalformedParameterizedTypeException e) {
+				typeArgs.clear(); // as if not generic
+			}
+			return new ClassInfo(c.getName(), null == c.getSuperclass() ? null : c.getSuperclass().getName(),
+					interfaces, c.getModifiers(), members, typeParams, typeArgs.isEmpty() ? Collections.emptyMap() : typeArgs);
+		}
+	}
+	
+	static private final String[] NO_NAMES = new String[0];
+	
+	/** @return The name of the type variable of {@code c} that the generic type is, or null if not one or if malformed. */
+	static private String typeVariable(final Class<?> c, final Supplier<Type> genericType) {
+		try {
+			final Type t = genericType.get();
+			if (t instanceof TypeVariable && c == ((TypeVariable<?>)t).getGenericDeclaration())
+				return ((TypeVariable<?>)t).getName();
+		} catch (TypeNotPresentException | GenericSignatureFormatError | MalformedParameterizedTypeException e) {
+			// Use the erasure
+		}
+		return null;
+	}
+	
+	/** @return The name of the class of a generic type, as by {@code Class#getName()}; of the upper bound for type variables and wildcards. */
+	static String erasure(final Type t) {
+		if (t instanceof Class) return ((Class<?>)t).getName();
+		if (t instanceof ParameterizedType) return erasure(((ParameterizedType)t).getRawType());
+		if (t instanceof WildcardType) return erasure(((WildcardType)t).getUpperBounds()[0]);
+		if (t instanceof TypeVariable) return erasure(((TypeVariable<?>)t).getBounds()[0]);
+		if (t instanceof GenericArrayType) {
+			final String component = erasure(((GenericArrayType)t).getGenericComponentType());
+			switch (component) {
+			case "boolean": return "[Z";
+			case "byte": return "[B";
+			case "char": return "[C";
+			case "short": return "[S";
+			case "int": return "[I";
+			case "long": return "[J";
+			case "float": return "[F";
+			case "double": return "[D";
+			default: return '[' == component.charAt(0) ? "[" + component : "[L" + component + ";";
+			}
+		}
+		return "java.lang.Object";
+	}
+	
+	static private final int VERSION = 2;
+	
+	static private final File dir = new File(System.getProperty("user.home") + "/.cache/jython-autocompletion/classes");
+	
+	/** The jar files that contain each package, for the class loader. */
+	private final Map<String, List<File>> packages = new HashMap<>();
+	private final WeakReference<ClassLoader> loader;
+	
+	/** The classes of a jar file, and the size and time of modification of the file when read. */
+	static private final class Jar {
+		final long size, mtime;
+		final Map<String, ClassInfo> classes;
+		
+		Jar(final File file) {
+			this.size = file.length();
+			this.mtime = file.lastModified();
+			this.classes = load(file);
+		}
+		
+		boolean isCurrent(final File file) {
+			return this.size == file.length() && this.mtime == file.lastModified();
+		}
+	}
+	
+	/** The classes of each jar file read so far, shared by the indices of all class loaders. */
+	static private final Map<File, Jar> jars = new ConcurrentHashMap<>();
+	
+	static private volatile WeakReference<ClassLoader> pinned = new WeakReference<>(null);
+	static private volatile ClassIndex index = null;
+	/** The class loader whose index is being built, if any; guarded by the class. */
+	static private ClassLoader building = null;
+	
+	private ClassIndex(final ClassLoader loader) {
+		this.loader = new WeakReference<>(loader);
+		try (final PhaseEvent e = PhaseEvent.begin("classIndex")) {
+			final Set<File> files = jarFiles(loader);
+			// Forget the jar files that changed, e.g. updated before the class loader was replaced, or that are gone
+			jars.entrySet().removeIf(entry -> !files.contains(entry.getKey()) || !entry.getValue().isCurrent(entry.getKey()));
+			for (final File file : files) {
+				try (final ZipFile zip = new ZipFile(file)) {
+					final Enumeration<? extends ZipEntry> entries = zip.entries();
+					while (entries.hasMoreElements()) {
+						final String name = entries.nextElement().getName();
+						if (!name.endsWith(".class")) continue;
+						final int slash = name.lastIndexOf('/');
+						final String pkg = -1 == slash ? "" : name.substring(0, slash).replace('/', '.');
+						final List<File> in = packages.computeIfAbsent(pkg, k -> new ArrayList<>(1));
+						if (in.isEmpty() || file != in.get(in.size() - 1)) in.add(file);
+					}
+				} catch (Exception ex) {
+					System.out.println("Could not list the classes of jar file " + file + " :: " + ex.getMessage());
+				}
+			}
+			e.candidates(packages.size());
+		}
+	}
+	
+	/** @return The jar files of the {@code loader} and its parents, and of the "java.class.path". */
+	static Set<File> jarFiles(final ClassLoader loader) {
+		final Set<File> files = new LinkedHashSet<>();
+		for (ClassLoader cl = loader; null != cl; cl = cl.getParent())
+			if (cl instanceof URLClassLoader)
+				for (final URL url : ((URLClassLoader)cl).getURLs())
+					if ("file".equals(url.getProtocol()) && url.getPath().endsWith(".jar")) {
+						try {
+							files.add(new File(url.toURI())); // decoded, e.g. spaces
+						} catch (Exception e) {
+							files.add(new File(url.getPath()));
+						}
+					}
+		for (final String path : System.getProperty("java.class.path", "").split(File.pathSeparator))
+			if (path.endsWith(".jar"))
+				files.add(new File(path));
+		files.removeIf(file -> !file.isFile());
+		return files;
+	}
+	
+	/** @return The class loader of the classes to complete, or else the one of this library, e.g. when not set or garbage collected. */
+	static ClassLoader classLoader() {
+		final ClassLoader loader = pinned.get();
+		return null == loader ? ClassMembers.class.getClassLoader() : loader;
+	}
+	
+	/**
+	 * Set the class loader of the classes to complete, held weakly. Not the context class loader of each calling thread,
+	 * which differs among the threads that request completions, and would rebuild the index for each.
+	 */
+	static void setClassLoader(final ClassLoader loader) {
+		pinned = new WeakReference<>(loader);
+	}
+	
+	/** @return The index for the class loader, or null while it is being built in the background. */
+	static private ClassIndex get() {
+		final ClassLoader current = classLoader();
+		ClassIndex ci = index;
+		if (null != ci && ci.loader.get() == current) return ci;
+		synchronized (ClassIndex.class) {
+			ci = index;
+			if (null != ci && ci.loader.get() == current) return ci;
+			if (building != current) {
+				building = current;
+				final Thread t = new Thread(() -> build(current), "jython class index");
+				t.setPriority(Thread.MIN_PRIORITY);
+				t.setDaemon(true);
+				t.start();
+			}
+			return null;
+		}
+	}
+	
+	static private void build(final ClassLoader loader) {
+		final ClassIndex ci = new ClassIndex(loader);
+		synchronized (ClassIndex.class) {
+			if (building != loader) return; // superseded by another class loader
+			index = ci;
+			building = null;
+		}
+		// Classes that failed to load while building may be found now
+		Resolver.invalidate();
+	}
+	
+	/**
+	 * @param qname The name of a java class, e.g. "ij.ImagePlus".
+	 * @return The class as read from the first jar file that contains it, or null if not in any.
+	 */
+	static ClassInfo find(final String qname) {
+		final int dot = qname.lastIndexOf('.');
+		final ClassIndex ci = get();
+		if (null == ci) return null;
+		final List<File> files = ci.packages.get(-1 == dot ? "" : qname.substring(0, dot));
+		if (null == files) return null;
+		for (final File file : files) {
+			final ClassInfo info = jars.computeIfAbsent(file, Jar::new).classes.get(qname);
+			if (null != info) return info;
+		}
+		return null;
+	}
+	
+	/**
+	 * @param qname The name of a java class, e.g. "ij.ImagePlus".
+	 * @return The class as read from a jar file, or else with reflection but without initializing it; null if not found.
+	 */
+	static ClassInfo findOrReflect(final String qname) {
+		final ClassInfo info = find(qname);
+		if (null != info) return info;
+		try {
+			return ClassInfo.of(Class.forName(qname, false, classLoader()));
+		} catch (ClassNotFoundException | LinkageError e) {
+			return null;
+		}
+	}
+	
+	/** Read the classes of a jar file from the stored index, or else from its class files, storing them. */
+	static private Map<String, ClassInfo> load(final File jar) {
+		final Map<String, ClassInfo> classes = new HashMap<>();
+		try (final PhaseEvent e = PhaseEvent.begin("classIndex"); final ZipFile zip = new ZipFile(jar)) {
+			final CRC32 crc = new CRC32();
+			final Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				final ZipEntry entry = entries.nextElement();
+				crc.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+				final long c = entry.getCrc(), size = entry.getSize();
+				for (int i = 0; i < 64; i += 8) {
+					crc.update((int)(c >>> i));
+					crc.update((int)(size >>> i));
+				}
+			}
+			final File stored = new File(dir, String.format("%s-%08x.idx", jar.getName(), crc.getValue()));
+			if (stored.exists()) {
+				try {
+					read(stored, classes);
+					e.candidates(classes.size());
+					return classes;
+				} catch (Exception ex) {
+					System.out.println("Ignoring unreadable class index " + stored + " :: " + ex.getMessage());
+					classes.clear();
+				}
+			}
+			final Enumeration<? extends ZipEntry> all = zip.entries();
+			while (all.hasMoreElements()) {
+				final ZipEntry entry = all.nextElement();
+				if (!entry.getName().endsWith(".class") || entry.getName().endsWith("module-info.class")) continue;
+				try (final InputStream in = new BufferedInputStream(zip.getInputStream(entry))) {
+					final ClassInfo info = ClassFileReader.read(in);
+					classes.put(info.name, info);
+				} catch (Exception ex) {
+					JythonScriptParser.print(() -> "Could not read class file " + entry.getName() + " in " + jar + " :: " + ex);
+				}
+			}
+			write(stored, classes);
+			e.candidates(classes.size());
+		} catch (Exception ex) {
+			System.out.println("Could not index the classes of jar file " + jar + " :: " + ex.getMessage());
+		}
+		return classes;
+	}
+	
+	static private void read(final File file, final Map<String, ClassInfo> classes) throws Exception {
+		try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+			if (VERSION != in.readInt()) throw new Exception("Other version");
+			for (int n = in.readInt(); n > 0; --n) {
+				final String name = in.readUTF(),
+				             superName = in.readUTF();
+				final int access = in.readUnsignedShort();
+				final String[] interfaces = new String[in.readUnsignedShort()];
+				for (int i = 0; i < interfaces.length; ++i) interfaces[i] = in.readUTF();
+				final int ntypeParams = in.readUnsignedShort();
+				final String[] typeParams = 0 == ntypeParams ? NO_NAMES : new String[ntypeParams];
+				for (int i = 0; i < ntypeParams; ++i) typeParams[i] = in.readUTF();
+				final int ntypeArgs = in.readUnsignedShort();
+				final Map<String, String[]> typeArgs = 0 == ntypeArgs ? Collections.emptyMap() : new HashMap<>();
+				for (int k = 0; k < ntypeArgs; ++k) {
+					final String s = in.readUTF();
+					final String[] args = new String[in.readUnsignedShort()];
+					for (int i = 0; i < args.length; ++i) args[i] = in.readUTF();
+					typeArgs.put(s, args);
+				}
+				final List<Member> members = new ArrayList<>();
+				for (int k = in.readInt(); k > 0; --k) {
+					final String mname = in.readUTF(),
+					             type = in.readUTF();
+					final int maccess = in.readUnsignedShort();
+					final String typeVariable = in.readUTF();
+					final int nparams = in.readShort();
+					String[] params = null;
+					if (nparams >= 0) {
+						params = new String[nparams];
+						for (int i = 0; i < nparams; ++i) params[i] = in.readUTF();
+					}
+					members.add(new Member(mname, type, params, maccess, typeVariable.isEmpty() ? null : typeVariable));
+				}
+				classes.put(name, new ClassInfo(name, superName.isEmpty() ? null : superName, interfaces, access, members, typeParams, typeArgs));
+			}
+		}
+	}
+	
+	static private void write(final File file, final Map<String, ClassInfo> classes) {
+		try {
+			dir.mkdirs();
+			final Path tmp = Files.createTempFile(dir.toPath(), "classes", ".tmp");
+			try (final OutputStream os = Files.newOutputStream(tmp);
+				 final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os))) {
+				out.writeInt(VERSION);
+				out.writeInt(classes.size());
+				for (final ClassInfo info : classes.values()) {
+					out.writeUTF(info.name);
+					out.writeUTF(null == info.superName ? "" : info.superName);
+					out.writeShort(info.access);
+					out.writeShort(info.interfaces.length);
+					for (final String s : info.interfaces) out.writeUTF(s);
+					out.writeShort(info.typeParams.length);
+					for (final String s : info.typeParams) out.writeUTF(s);
+					out.writeShort(info.typeArgs.size());
+					for (final Map.Entry<String, String[]> e : info.typeArgs.entrySet()) {
+						out.writeUTF(e.getKey());
+						out.writeShort(e.getValue().length);
+						for (final String s : e.getValue()) out.writeUTF(s);
+					}
+					out.writeInt(info.members.size());
+					for (final Member m : info.members) {
+						out.writeUTF(m.name);
+						out.writeUTF(m.type);
+						out.writeShort(m.access);
+						out.writeUTF(null == m.typeVariable ? "" : m.typeVariable);
+						out.writeShort(m.isMethod() ? m.params.length : -1);
+						if (m.isMethod())
+							for (final String p : m.params) out.writeUTF(p);
+					}
+				}
+			}
+			Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (Exception e) {
+			System.out.println("Could not write class index " + file + " :: " + e.getMessage());
+		}
+	}
+	
+	/** @return The name of a type as written in java, e.g. "int[]" for "[I". */
+	static String readable(final String type) {
+		if ('[' != type.charAt(0)) return type;
+		int dims = 0;
+		while ('[' == type.charAt(dims)) ++dims;
+		final String element;
+		switch (type.charAt(dims)) {
+		case 'L': element = type.substring(dims + 1, type.length() - 1); break;
+		case 'Z': element = "boolean"; break;
+		case 'B': element = "byte"; break;
+		case 'C': element = "char"; break;
+		case 'S': element = "short"; break;
+		case 'I': element = "int"; break;
+		case 'J': element = "long"; break;
+		case 'F': element = "float"; break;
+		default: element = "double"; break;
+		}
+		final StringBuilder sb = new StringBuilder(element);
+		for (int i = 0; i < dims; ++i) sb.append("[]");
+		return sb.toString();
+	}
+}
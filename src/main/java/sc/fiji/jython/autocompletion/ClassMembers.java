@@ -0,0 +1,279 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericSignatureFormatError;
+import java.lang.reflect.MalformedParameterizedTypeException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.scijava.ui.swing.script.autocompletion.CompletionText;
+
+/**
+ * The completions for the fields and methods of a java class, computed once per class and shared by all
+ * {@code DotAutocompletions}. The lists are immutable (see {@link CompletionList}).
+ * 
+ * Entries are stored with a {@code ClassValue}, which attaches them to the {@code Class} itself:
+ * no static map holds onto the class, so classes (and their class loaders, e.g. those of Fiji plugins
+ * replaced by an update) can be garbage collected along with their cached completions.
+ * 
+ * Classes in jar files are instead described from their class files, without loading them (see {@link ClassIndex}),
+ * and cached by the {@link Resolver}.
+ */
+public final class ClassMembers {
+	
+	static private final ClassValue<ClassMembers> cache = new ClassValue<ClassMembers>() {
+		@Override
+		protected ClassMembers computeValue(final Class<?> c) {
+			try (final PhaseEvent e = PhaseEvent.begin("reflection")) {
+				final ClassMembers members = new ClassMembers(c);
+				e.candidates(members.publicFieldsAndMethods.size() + members.staticFieldsAndMethods.size() + members.instanceFieldsAndMethods.size());
+				return members;
+			}
+		}
+	};
+	
+	/** Public fields and methods, including inherited ones: for instances of the class. */
+	final List<CompletionText> publicFieldsAndMethods;
+	/** Static fields and methods declared in the class: for the class itself. */
+	final List<CompletionText> staticFieldsAndMethods;
+	/** Non-static fields and methods declared in the class. */
+	final List<CompletionText> instanceFieldsAndMethods;
+	/** The return types of the public methods, and the types of the public fields, by name; methods first.
+	 *  Those that are type variables of a generic supertype are resolved, when the class binds them, e.g. to "ij.ImagePlus"
+	 *  for {@code get(int)} of a class that extends {@code ArrayList<ImagePlus>}; otherwise erased, e.g. to "java.lang.Object". */
+	private final Map<String, List<String>> types = new HashMap<>();
+	/** The names of the public static fields and methods, including inherited ones. */
+	private final Set<String> statics = new HashSet<>();
+	
+	private ClassMembers(final Class<?> c) {
+		final List<CompletionText> pub = new ArrayList<>(),
+		                           sta = new ArrayList<>(),
+		                           ins = new ArrayList<>();
+		for (final Field f: c.getFields()) {
+			pub.add(new CompletionText(f.getName(), c, f));
+			if (Modifier.isStatic(f.getModifiers())) statics.add(f.getName());
+		}
+		final Map<TypeVariable<?>, Type> bindings = new HashMap<>();
+		bind(c, bindings);
+		for (final Method m: c.getMethods()) {
+			pub.add(new CompletionText(m.getName() + "()", c, m)); // TODO could do a parameter-driven autocompletion
+			if (Modifier.isStatic(m.getModifiers())) statics.add(m.getName());
+			if (!m.isBridge()) // erased duplicate of a covariant or generic override
+				addType(m.getName(), resolve(m::getGenericReturnType, m.getReturnType(), bindings));
+		}
+		for (final Field f: c.getFields())
+			addType(f.getName(), resolve(f::getGenericType, f.getType(), bindings));
+		for (final Field f: c.getDeclaredFields())
+			(Modifier.isStatic(f.getModifiers()) ? sta : ins).add(new CompletionText(f.getName(), c, f));
+		for (final Method m: c.getDeclaredMethods())
+			(Modifier.isStatic(m.getModifiers()) ? sta : ins).add(new CompletionText(m.getName() + "()", c, m));
+		this.publicFieldsAndMethods = CompletionList.of(pub);
+		this.staticFieldsAndMethods = CompletionList.of(sta);
+		this.instanceFieldsAndMethods = CompletionList.of(ins);
+	}
+	
+	/** From the class file of the class and those of its supertypes, see {@link ClassIndex}. */
+	private ClassMembers(final ClassIndex.ClassInfo info) {
+		final List<CompletionText> pub = new ArrayList<>(),
+		                           sta = new ArrayList<>(),
+		                           ins = new ArrayList<>();
+		for (final ClassIndex.Member m : info.members)
+			(m.isStatic() ? sta : ins).add(text(info, m));
+		// Public members, including inherited ones except for overridden methods and static methods of interfaces, like Class.getMethods
+		final List<ClassIndex.Member> methods = new ArrayList<>(),
+		                              fields = new ArrayList<>();
+		final List<String> methodTypes = new ArrayList<>(),
+		                   fieldTypes = new ArrayList<>();
+		final Set<String> signatures = new HashSet<>(),
+		                  visited = new HashSet<>();
+		// The type each type variable of a supertype is bound to, by class name, as seen from this class
+		final Map<String, Map<String, String>> bindings = new HashMap<>();
+		bindings.put(info.name, Collections.emptyMap());
+		final ArrayDeque<ClassIndex.ClassInfo> next = new ArrayDeque<>();
+		next.add(info);
+		while (!next.isEmpty()) {
+			final ClassIndex.ClassInfo ci = next.poll();
+			if (!visited.add(ci.name)) continue;
+			final Map<String, String> bound = bindings.get(ci.name);
+			for (final ClassIndex.Member m : ci.members) {
+				if (!m.isPublic() || (ci != info && ci.isInterface() && m.isStatic())) continue;
+				if (!signatures.add((m.isMethod() ? "m:" : "f:") + m.signature())) continue;
+				(m.isMethod() ? methods : fields).add(m);
+				(m.isMethod() ? methodTypes : fieldTypes).add(null == m.typeVariable ? m.type : bound.getOrDefault(m.typeVariable, m.type));
+				pub.add(text(ci, m));
+				if (m.isStatic()) statics.add(m.name);
+			}
+			for (final String s : ci.interfaces) {
+				final ClassIndex.ClassInfo i = ClassIndex.findOrReflect(s);
+				if (null != i) next.add(bind(ci, bound, i, bindings));
+			}
+			if (null != ci.superName) {
+				final ClassIndex.ClassInfo sup = ClassIndex.findOrReflect(ci.superName);
+				if (null != sup) next.add(bind(ci, bound, sup, bindings));
+			}
+		}
+		for (int i = 0; i < methods.size(); ++i) addType(methods.get(i).name, methodTypes.get(i));
+		for (int i = 0; i < fields.size(); ++i) addType(fields.get(i).name, fieldTypes.get(i));
+		this.publicFieldsAndMethods = CompletionList.of(pub);
+		this.staticFieldsAndMethods = CompletionList.of(sta);
+		this.instanceFieldsAndMethods = CompletionList.of(ins);
+	}
+	
+	/**
+	 * Record the types that the type arguments of {@code ci} bind the type variables of its supertype {@code sup} to,
+	 * unless already recorded when reached by another path.
+	 * 
+	 * @param bound The bindings of the type variables of {@code ci}.
+	 * @return {@code sup}
+	 */
+	static private ClassIndex.ClassInfo bind(final ClassIndex.ClassInfo ci, final Map<String, String> bound,
+			final ClassIndex.ClassInfo sup, final Map<String, Map<String, String>> bindings) {
+		if (bindings.containsKey(sup.name)) return sup;
+		final String[] args = ci.typeArgs.get(sup.name);
+		if (null == args || args.length != sup.typeParams.length) {
+			bindings.put(sup.name, Collections.emptyMap()); // raw: erased
+			return sup;
+		}
+		final Map<String, String> b = new HashMap<>();
+		for (int i = 0; i < args.length; ++i) {
+			final String type = args[i].startsWith("T:") ? bound.get(args[i].substring(2)) : args[i];
+			if (null != type) b.put(sup.typeParams[i], type);
+		}
+		bindings.put(sup.name, b);
+		return sup;
+	}
+	
+	/** Record the types that the type variables of the generic supertypes of {@code c} are bound to, as seen from {@code c}. */
+	static private void bind(final Class<?> c, final Map<TypeVariable<?>, Type> bindings) {
+		try {
+			final List<Type> supers = new ArrayList<>(Arrays.asList(c.getGenericInterfaces()));
+			if (null != c.getGenericSuperclass()) supers.add(c.getGenericSuperclass());
+			for (final Type s : supers) {
+				if (s instanceof ParameterizedType) {
+					final Class<?> raw = (Class<?>)((ParameterizedType)s).getRawType();
+					final TypeVariable<?>[] vs = raw.getTypeParameters();
+					final Type[] args = ((ParameterizedType)s).getActualTypeArguments();
+					for (int i = 0; i < vs.length && i < args.length; ++i)
+						bindings.putIfAbsent(vs[i], bindings.getOrDefault(args[i], args[i]));
+					bind(raw, bindings);
+				} else if (s instanceof Class) {
+					bind((Class<?>)s, bindings);
+				}
+			}
+		} catch (TypeNotPresentException | GenericSignatureFormatError | MalformedParameterizedTypeException e) {
+			// Use the erasures
+		}
+	}
+	
+	/** @return The name of the class that the generic type is bound to, if a bound type variable; otherwise that of the {@code erasure}. */
+	static private String resolve(final Supplier<Type> genericType, final Class<?> erasure, final Map<TypeVariable<?>, Type> bindings) {
+		try {
+			final Type t = genericType.get();
+			if (t instanceof TypeVariable) {
+				final Type b = bindings.get(t);
+				if (null != b && !(b instanceof TypeVariable)) return ClassIndex.erasure(b);
+			}
+		} catch (TypeNotPresentException | GenericSignatureFormatError | MalformedParameterizedTypeException e) {
+			// Use the erasure
+		}
+		return erasure.getName();
+	}
+	
+	static private CompletionText text(final ClassIndex.ClassInfo info, final ClassIndex.Member m) {
+		return new CompletionText(m.isMethod() ? m.name + "()" : m.name, m.toString(info.name), null);
+	}
+	
+	private void addType(final String name, final String type) {
+		final List<String> ts = types.computeIfAbsent(name, k -> new ArrayList<>(1));
+		if (!ts.contains(type)) ts.add(type);
+	}
+	
+	/**
+	 * @param name The name of a public field or method, including inherited ones.
+	 * @return The types of the fields and the return types of the methods so named, methods first;
+	 *         empty if none.
+	 */
+	public List<String> typesOf(final String name) {
+		final List<String> ts = types.get(name);
+		return null == ts ? Collections.emptyList() : Collections.unmodifiableList(ts);
+	}
+	
+	/** @return Whether the name of a public field or method, including inherited ones, starts with {@code prefix}. */
+	public boolean hasNameStartingWith(final String prefix) {
+		for (final String name : types.keySet())
+			if (name.startsWith(prefix)) return true;
+		return false;
+	}
+	
+	/** @return Whether a public field or method so named, including inherited ones, is static, e.g. "getImage" of "ij.IJ". */
+	public boolean isStatic(final String name) {
+		return statics.contains(name);
+	}
+	
+	/** Not cached: see {@link Resolver}. */
+	static ClassMembers of(final ClassIndex.ClassInfo info) {
+		try (final PhaseEvent e = PhaseEvent.begin("classIndex")) {
+			final ClassMembers members = new ClassMembers(info);
+			e.candidates(members.publicFieldsAndMethods.size() + members.staticFieldsAndMethods.size() + members.instanceFieldsAndMethods.size());
+			return members;
+		}
+	}
+	
+	static public ClassMembers of(final Class<?> c) {
+		return cache.get(c);
+	}
+	
+	/**
+	 * @param className The fully qualified name of a java class.
+	 * @throws ClassNotFoundException
+	 */
+	static public ClassMembers of(final String className) throws ClassNotFoundException {
+		return cache.get(Class.forName(className, false, ClassIndex.classLoader()));
+	}
+	
+	public List<CompletionText> getPublicFieldsAndMethods() {
+		return this.publicFieldsAndMethods;
+	}
+	
+	public List<CompletionText> getStaticFieldsAndMethods() {
+		return this.staticFieldsAndMethods;
+	}
+	
+	public List<CompletionText> getInstanceFieldsAndMethods() {
+		return this.instanceFieldsAndMethods;
+	}
+}
@@ -0,0 +1,78 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.scijava.ui.swing.script.autocompletion.CompletionText;
+
+/**
+ * An immutable list of candidate completions, built once per java class (see {@link ClassMembers}), python module
+ * (see {@link ModuleLoader}) or builtin type (see {@link BuiltinIndex}), and shared by all requests of all editors.
+ * 
+ * Along with each candidate it holds what {@link Ranking} needs of it, computed once: its replacement text in lower case,
+ * its {@link FuzzyMatcher#mask(String)}, and the name under which {@link UsageStats} counts it.
+ */
+final class CompletionList extends AbstractList<CompletionText> implements RandomAccess {
+	
+	static final CompletionList EMPTY = new CompletionList(Collections.emptyList());
+	
+	private final CompletionText[] texts;
+	/** The replacement texts; in lower case; and without the trailing "()" of methods. */
+	final String[] replacements, lowerCase, names;
+	final long[] masks;
+	
+	private CompletionList(final List<CompletionText> list) {
+		final int n = list.size();
+		this.texts = list.toArray(new CompletionText[n]);
+		this.replacements = new String[n];
+		this.lowerCase = new String[n];
+		this.names = new String[n];
+		this.masks = new long[n];
+		for (int i = 0; i < n; ++i) {
+			final String s = texts[i].getReplacementText();
+			replacements[i] = s;
+			lowerCase[i] = s.toLowerCase();
+			names[i] = s.endsWith("()") ? s.substring(0, s.length() - 2) : s;
+			masks[i] = FuzzyMatcher.mask(lowerCase[i]);
+		}
+	}
+	
+	/** @return The {@code list} itself if a {@code CompletionList}, or else an immutable copy. */
+	static CompletionList of(final List<CompletionText> list) {
+		if (list instanceof CompletionList) return (CompletionList)list;
+		return list.isEmpty() ? EMPTY : new CompletionList(list);
+	}
+	
+	@Override
+	public CompletionText get(final int index) {
+		return texts[index];
+	}
+	
+	@Override
+	public int size() {
+		return texts.length;
+	}
+}
@@ -0,0 +1,68 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import org.fife.ui.autocomplete.Completion;
+
+/**
+ * The state of one completion request: whether it was cancelled, and the best results found so far,
+ * to be returned instead of nothing when its deadline expires.
+ * Cancellation is cooperative: the analysis checks for it at {@link #checkpoint()}s between its phases.
+ */
+public class CompletionRequest {
+	
+	/** For synchronous requests, which are never cancelled: shared, so {@link #cancel()} does nothing. */
+	static final CompletionRequest NONE = new CompletionRequest() {
+		@Override
+		public void cancel() {}
+	};
+	
+	private volatile boolean cancelled = false;
+	private volatile List<Completion> partial = Collections.emptyList();
+	
+	public void cancel() {
+		this.cancelled = true;
+	}
+	
+	public boolean isCancelled() {
+		return this.cancelled;
+	}
+	
+	/** @throws CancellationException if the request was cancelled. */
+	public void checkpoint() {
+		if (this.cancelled) throw new CancellationException();
+	}
+	
+	/** Record {@code completions} as the best results so far. */
+	public void offer(final List<Completion> completions) {
+		if (this != NONE) this.partial = completions;
+	}
+	
+	/** @return The best results so far, possibly empty. */
+	public List<Completion> getPartial() {
+		return this.partial;
+	}
+}
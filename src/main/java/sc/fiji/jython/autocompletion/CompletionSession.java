@@ -0,0 +1,149 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The analysis state of one document, e.g. a script open in a tab of the Script Editor, reused across keystrokes:
+ * the scope tree (see {@link IncrementalScriptParser}), the types of the receivers completed after a dot,
+ * and the directories that the script added to sys.path.
+ * 
+ * The version increases whenever the code before the cursor changes, which discards the resolved receivers.
+ * Requests of a session run one at a time, synchronized on the session, see {@link JythonAutoCompletions}.
+ * Open and close sessions with {@link CompletionSessions}.
+ */
+public final class CompletionSession {
+	
+	static private final ThreadLocal<CompletionSession> current = new ThreadLocal<>();
+	
+	/** The document, or null for the default session. Weakly, see {@link CompletionSessions}. */
+	private final WeakReference<Object> document;
+	
+	final IncrementalScriptParser parser = new IncrementalScriptParser();
+	
+	/** The resolved type of each receiver, e.g. of "imp" for "imp.getPro", for the current version. */
+	final Map<String, DotAutocompletions> receivers = new ConcurrentHashMap<>();
+	
+	/** The directories that the script added to the load path, with the number of statements that add each, see {@link SysPathTracker}. */
+	final Map<String, Integer> sysPath = new ConcurrentHashMap<>();
+	
+	private long version = 0;
+	private String code = null;
+	private volatile boolean closed = false;
+	/** Number of requests running or waiting to run, which prevent evicting the session. */
+	private final AtomicInteger users = new AtomicInteger();
+	private final List<Runnable> closeListeners = new ArrayList<>();
+	
+	CompletionSession(final Object document) {
+		this.document = new WeakReference<>(document);
+	}
+	
+	/**
+	 * Record the code before the cursor, increasing the version when it changed.
+	 * 
+	 * @return The version.
+	 */
+	synchronized long update(final String code) {
+		if (!code.equals(this.code)) {
+			this.code = code;
+			++this.version;
+			this.receivers.clear();
+		}
+		return this.version;
+	}
+	
+	/** @return The number of times the code before the cursor changed. */
+	public synchronized long getVersion() {
+		return this.version;
+	}
+	
+	/** @return The document, or null for the default session or when garbage collected. */
+	public Object getDocument() {
+		return this.document.get();
+	}
+	
+	public boolean isClosed() {
+		return this.closed;
+	}
+	
+	/** Run {@code listener} when this session is closed, e.g. when its document is closed or it was evicted. */
+	public void addCloseListener(final Runnable listener) {
+		synchronized (this.closeListeners) {
+			this.closeListeners.add(listener);
+		}
+	}
+	
+	/** A request starts using this session, see {@link #exit()}. */
+	void enter() {
+		this.users.incrementAndGet();
+	}
+	
+	/** A request stopped using this session. */
+	void exit() {
+		this.users.decrementAndGet();
+	}
+	
+	/** @return Whether requests are using this session. */
+	boolean inUse() {
+		return this.users.get() > 0;
+	}
+	
+	/**
+	 * Discard the analysis state, and remove the directories that only this session added to the load path.
+	 * Waits for the request running on this session, if any.
+	 */
+	synchronized void close() {
+		if (this.closed) return;
+		this.closed = true;
+		this.parser.clear();
+		this.receivers.clear();
+		SysPathTracker.release(this);
+		final List<Runnable> listeners;
+		synchronized (this.closeListeners) {
+			listeners = new ArrayList<>(this.closeListeners);
+		}
+		for (final Runnable listener : listeners) {
+			try {
+				listener.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/** @return The session whose code is being analyzed in the current thread, or null. */
+	static CompletionSession current() {
+		return current.get();
+	}
+	
+	/** Set the session whose code is being analyzed in the current thread; null to unset. */
+	static void setCurrent(final CompletionSession session) {
+		if (null == session) current.remove();
+		else current.set(session);
+	}
+}
@@ -0,0 +1,199 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.awt.Component;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.JComponent;
+
+/**
+ * The open {@link CompletionSession}s, one per document, e.g. per {@code CompletionProvider} of an editor tab.
+ * At most {@link #MAX_SESSIONS} are kept: opening more closes the least recently used ones that no request is using,
+ * whose state is rebuilt if their documents are used again. Documents are held weakly: the session of a document
+ * that was garbage collected is closed. Close the session of a document when the document is closed, e.g. when its tab is closed,
+ * see {@link #closeWhenDisposed(Object, Component)}.
+ */
+public final class CompletionSessions {
+	
+	/** Maximum number of sessions kept open, unless more are in use. */
+	static public int MAX_SESSIONS = 32;
+	
+	/** For requests without a document; never evicted. */
+	static final CompletionSession DEFAULT = new CompletionSession(null);
+	
+	/** Sessions by document, in order of use: the least recently used first. */
+	static private final Map<Key, CompletionSession> sessions = new HashMap<>();
+	static private final List<Key> lru = new ArrayList<>();
+	
+	/** Keys whose documents were garbage collected. */
+	static private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+	
+	/** Weakly references a document, compared by identity. */
+	static private final class Key extends WeakReference<Object> {
+		final int hash;
+		
+		Key(final Object document, final ReferenceQueue<Object> queue) {
+			super(document, queue);
+			this.hash = System.identityHashCode(document);
+		}
+		
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+		
+		@Override
+		public boolean equals(final Object o) {
+			if (this == o) return true;
+			if (!(o instanceof Key)) return false;
+			final Object document = this.get();
+			return null != document && document == ((Key)o).get();
+		}
+	}
+	
+	private CompletionSessions() {}
+	
+	/**
+	 * @param document The document, e.g. the CompletionProvider of an editor tab; null for the default session.
+	 * @return The session of the {@code document}, opened anew if not open.
+	 */
+	static public CompletionSession get(final Object document) {
+		return get(document, false);
+	}
+	
+	/**
+	 * Like {@link #get(Object)}, but the returned session is in use, and so not evicted, until {@link CompletionSession#exit()}.
+	 */
+	static CompletionSession acquire(final Object document) {
+		return get(document, true);
+	}
+	
+	static private CompletionSession get(final Object document, final boolean enter) {
+		if (null == document) {
+			if (enter) DEFAULT.enter();
+			return DEFAULT;
+		}
+		final List<CompletionSession> evicted = new ArrayList<>();
+		final CompletionSession session;
+		synchronized (sessions) {
+			expunge(evicted);
+			final Key key = new Key(document, null);
+			CompletionSession s = sessions.get(key);
+			if (null == s) {
+				s = new CompletionSession(document);
+				final Key k = new Key(document, collected);
+				sessions.put(k, s);
+				lru.add(k);
+			} else {
+				final int i = lru.indexOf(key);
+				lru.add(lru.remove(i));
+			}
+			session = s;
+			if (enter) session.enter(); // before evicting, which spares sessions in use
+			// The least recently used first, except those that requests are using
+			for (int i = 0; lru.size() > Math.max(1, MAX_SESSIONS) && i < lru.size() -1; ) {
+				final CompletionSession candidate = sessions.get(lru.get(i));
+				if (candidate.inUse()) ++i;
+				else evicted.add(sessions.remove(lru.remove(i)));
+			}
+		}
+		for (final CompletionSession s : evicted) s.close();
+		return session;
+	}
+	
+	/** Close the session of the {@code document}, if any. */
+	static public void close(final Object document) {
+		if (null == document) return;
+		final List<CompletionSession> evicted = new ArrayList<>();
+		synchronized (sessions) {
+			expunge(evicted);
+			final Key key = new Key(document, null);
+			final CompletionSession session = sessions.remove(key);
+			if (null != session) {
+				lru.remove(key);
+				evicted.add(session);
+			}
+		}
+		for (final CompletionSession s : evicted) s.close();
+	}
+	
+	/**
+	 * Close the session of the {@code document} when the {@code component}, e.g. the text area of its editor tab,
+	 * is no longer displayable, e.g. when the tab is closed. Watches each component once.
+	 */
+	static public void closeWhenDisposed(final Object document, final Component component) {
+		if (null == document || null == component) return;
+		if (component instanceof JComponent) {
+			final JComponent jc = (JComponent)component;
+			if (null != jc.getClientProperty(CompletionSessions.class)) return;
+			jc.putClientProperty(CompletionSessions.class, Boolean.TRUE);
+		}
+		component.addHierarchyListener(new HierarchyListener() {
+			@Override
+			public void hierarchyChanged(final HierarchyEvent e) {
+				if (0 == (e.getChangeFlags() & HierarchyEvent.DISPLAYABILITY_CHANGED) || component.isDisplayable()) return;
+				component.removeHierarchyListener(this);
+				if (component instanceof JComponent) ((JComponent)component).putClientProperty(CompletionSessions.class, null);
+				close(document);
+			}
+		});
+	}
+	
+	/** Close all sessions. */
+	static public void closeAll() {
+		final Collection<CompletionSession> all;
+		synchronized (sessions) {
+			while (null != collected.poll());
+			all = new ArrayList<>(sessions.values());
+			sessions.clear();
+			lru.clear();
+		}
+		for (final CompletionSession s : all) s.close();
+	}
+	
+	/** Remove the sessions whose documents were garbage collected, adding them to {@code evicted} to be closed. */
+	static private void expunge(final List<CompletionSession> evicted) {
+		for (Object k; null != (k = collected.poll()); ) {
+			final CompletionSession session = sessions.remove(k);
+			if (null != session) {
+				lru.remove(k); // by identity: a cleared key equals only itself
+				evicted.add(session);
+			}
+		}
+	}
+	
+	/** @return The sessions currently open. */
+	static List<CompletionSession> open() {
+		synchronized (sessions) {
+			return new ArrayList<>(sessions.values());
+		}
+	}
+}
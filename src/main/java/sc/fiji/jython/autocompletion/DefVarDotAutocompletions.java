@@ -23,17 +23,81 @@ package sc.fiji.jython.autocompletion;
 
 import java.util.List;
 
+import org.python.core.PyObject;
+import org.scijava.ui.swing.script.autocompletion.CompletionText;
+
+/**
+ * A function: its name, arguments and scope, and the class of what it returns.
+ * 
+ * The return class of a function parsed by {@link JythonScriptParser#parseFunctionDef} is inferred
+ * only when first needed, e.g. to complete "imp." after "imp = createImage()", by analyzing
+ * the body of the function (see {@link Scope#analyze()}); most functions of a script never need it.
+ */
 public class DefVarDotAutocompletions extends VarDotAutocompletions {
 
 	String fnName;
-	final List<String> argumentNames;
+	List<String> argumentNames;
 	Scope scope;
+	/** For a method, the class of its first argument, e.g. "self", set by {@link JythonScriptParser#parseClassDef}. */
+	ClassDotAutocompletions receiver = null;
+	/** The expression returned at the end of the function body, once analyzed and until the class is inferred from it. */
+	private PyObject returned = null;
+	private boolean inferring = false;
+	private volatile boolean inferred;
 	
 	public DefVarDotAutocompletions(final String fnName, final String returnClassName, final List<String> argumentNames, final Scope scope) {
 		super(returnClassName);
-		this.fnName = fnName;
+		this.fnName = Symbols.canonical(fnName);
 		this.argumentNames = argumentNames;
 		this.scope = scope;
+		this.inferred = true;
+	}
+	
+	/**
+	 * @param returns Whether the function body ends with a return statement with a value, whose class is to be inferred when needed,
+	 *                once the analysis of the body of the function (see {@link Scope#defer(Runnable)}) sets it (see {@link #returns(PyObject)}).
+	 */
+	public DefVarDotAutocompletions(final String fnName, final List<String> argumentNames, final Scope scope, final boolean returns) {
+		super((String)null);
+		this.fnName = Symbols.canonical(fnName);
+		this.argumentNames = argumentNames;
+		this.scope = scope;
+		this.inferred = !returns;
+	}
+	
+	/** Set the expression returned at the end of the function body, when analyzing it. */
+	void returns(final PyObject returned) {
+		this.returned = returned;
+	}
+	
+	/** Infer the return class, once; a recursive call while inferring it sees none. */
+	private void infer() {
+		if (inferred) return;
+		synchronized (scope.tree) {
+			if (inferred || inferring) return;
+			inferring = true;
+			try {
+				scope.analyze();
+				if (null != returned)
+					this.className = Symbols.canonical(JythonScriptParser.parseRight(returned, scope).getClassname());
+			} finally {
+				this.returned = null;
+				this.inferring = false;
+				this.inferred = true;
+			}
+		}
+	}
+	
+	@Override
+	public String getClassname() {
+		infer();
+		return this.className;
+	}
+	
+	@Override
+	public List<CompletionText> get() {
+		infer();
+		return super.get();
 	}
 	
 	public List<String> getArgumentNames() {
@@ -43,7 +107,7 @@ public class DefVarDotAutocompletions extends VarDotAutocompletions {
 	@Override
 	public String toString() {
 		return "DefVarAutocompletions:" +
-				"  Class: " + super.className +
+				"  Class: " + getClassname() +
 				"  Arguments: " + String.join(", ", this.argumentNames);
 	}
 }
@@ -21,9 +21,7 @@
  */
 package sc.fiji.jython.autocompletion;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.scijava.ui.swing.script.autocompletion.CompletionText;
@@ -36,26 +34,26 @@ public interface DotAutocompletions {
 		return null;
 	}
 	
+	/** @return The classes it could be of, e.g. the return types of overloaded methods; by default only {@link #getClassname()}. */
+	default public List<String> getClassnames() {
+		final String className = getClassname();
+		return null == className ? Collections.emptyList() : Collections.singletonList(className);
+	}
+	
 	default public String getSummary() {
 		return null;
 	}
 
 	public List<CompletionText> get();
 
+	/**
+	 * @return The public fields and methods of the class, as a shared, immutable list (see {@link ClassMembers}).
+	 */
 	static public List<CompletionText> getPublicFieldsAndMethods(final String className) {
-		final List<CompletionText> ac = new ArrayList<>();
-		if (null != className) {
-			try {
-				final Class<?> c = Class.forName(className);
-				for (final Field f: c.getFields())
-					ac.add(new CompletionText(f.getName(), c, f));
-				for (final Method m: c.getMethods())
-					ac.add(new CompletionText(m.getName() + "()", c, m)); // TODO could do a parameter-driven autocompletion
-			} catch (final Exception e) {
-				System.out.println("Could not load class " + className + " :: " + e.getMessage());
-			}
-		}
-		return ac;
+		final ClassMembers members = Resolver.membersFor(className); // cached, also when not found
+		if (null != members)
+			return members.getPublicFieldsAndMethods();
+		return Collections.emptyList();
 	}
 
 }
@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+/**
+ * Scores how well a completion matches the text typed so far, from best to worst: starts with it,
+ * starts with it ignoring case, is abbreviated by it in camel case (e.g. "gPr" for "getProcessor"),
+ * contains it ignoring case, or has its characters in order (e.g. "gpix" for "getPixel").
+ * 
+ * Each text is summarized by a bitmask of the letters, digits and underscore it contains,
+ * so that texts lacking any character of the pattern are rejected without scanning them.
+ */
+final class FuzzyMatcher {
+	
+	/** Match tiers, from worst to best. */
+	static final int NONE = -1,
+	                 SUBSEQUENCE = 0,
+	                 SUBSTRING = 1,
+	                 CAMEL_CASE = 2,
+	                 PREFIX_IGNORE_CASE = 3,
+	                 PREFIX = 4;
+	
+	static private final int CAMEL_CASE_QUALITY = 100000;
+	
+	private final String pattern,
+	                     lowerCasePattern;
+	private final long mask;
+	/** Whether the pattern has upper case characters after the first, as in "gPr". */
+	private final boolean camelCase;
+	
+	/** @param pattern The text typed so far, possibly empty. */
+	FuzzyMatcher(final String pattern) {
+		this.pattern = pattern;
+		this.lowerCasePattern = pattern.toLowerCase();
+		this.mask = mask(this.lowerCasePattern);
+		boolean camelCase = false;
+		for (int i = 1; i < pattern.length() && !camelCase; ++i)
+			camelCase = Character.isUpperCase(pattern.charAt(i));
+		this.camelCase = camelCase;
+	}
+	
+	/**
+	 * @param lowerCase A lower case text.
+	 * @return One bit for each of a-z, 0-9 and underscore present in {@code lowerCase}; other characters share one bit.
+	 */
+	static long mask(final String lowerCase) {
+		long mask = 0;
+		for (int i = 0; i < lowerCase.length(); ++i) {
+			final char c = lowerCase.charAt(i);
+			if (c >= 'a' && c <= 'z') mask |= 1L << (c - 'a');
+			else if (c >= '0' && c <= '9') mask |= 1L << (26 + c - '0');
+			else if ('_' == c) mask |= 1L << 36;
+			else mask |= 1L << 37;
+		}
+		return mask;
+	}
+	
+	/**
+	 * @param text The candidate text.
+	 * @param lowerCaseText The {@code text} in lower case.
+	 * @param textMask The {@link #mask(String)} of {@code lowerCaseText}.
+	 * @return The tier times 1000 plus, for {@link #CAMEL_CASE} and {@link #SUBSEQUENCE} matches, the quality of the match;
+	 *         or {@link #NONE} when not matching. See {@link #tier(int)}.
+	 */
+	int score(final String text, final String lowerCaseText, final long textMask) {
+		if (0 != (this.mask & ~textMask)) return NONE;
+		if (text.startsWith(this.pattern)) return PREFIX * 1000;
+		if (lowerCaseText.startsWith(this.lowerCasePattern)) return PREFIX_IGNORE_CASE * 1000;
+		final int quality = subsequence(text, lowerCaseText);
+		if (quality >= CAMEL_CASE_QUALITY) return CAMEL_CASE * 1000 + Math.min(quality - CAMEL_CASE_QUALITY, 999);
+		if (lowerCaseText.contains(this.lowerCasePattern)) return SUBSTRING * 1000;
+		return quality < 0 ? NONE : SUBSEQUENCE * 1000 + Math.min(quality, 999);
+	}
+	
+	/** @return The tier of a {@link #score(String, String, long)}. */
+	static int tier(final int score) {
+		return score < 0 ? NONE : score / 1000;
+	}
+	
+	/**
+	 * Match the characters of the pattern in order, preferring for upper case pattern characters the start of
+	 * a word in the text (an upper case letter after a lower case one, or a letter after an underscore),
+	 * and otherwise the next character.
+	 * 
+	 * @return The quality of the match, higher for more word starts and consecutive characters matched and fewer characters skipped;
+	 *         -1 when not matching.
+	 *         At least {@link #CAMEL_CASE_QUALITY} for a camel case pattern whose first and upper case characters all matched word starts.
+	 */
+	int subsequence(final String text, final String lowerCaseText) {
+		int quality = 500,
+		    pos = 0;
+		boolean camelCase = this.camelCase;
+		for (int i = 0; i < this.pattern.length(); ++i) {
+			final char c = this.lowerCasePattern.charAt(i);
+			int j = -1;
+			if (Character.isUpperCase(this.pattern.charAt(i)) || 0 == i) {
+				// Look for the next word start
+				for (int k = pos; k < text.length(); ++k) {
+					if (lowerCaseText.charAt(k) == c && isWordStart(text, k)) {
+						j = k;
+						break;
+					}
+				}
+			}
+			if (-1 == j) j = lowerCaseText.indexOf(c, pos);
+			if (-1 == j) return -1;
+			if (isWordStart(text, j)) quality += 10;
+			else if (0 == i || Character.isUpperCase(this.pattern.charAt(i))) camelCase = false;
+			if (j == pos && i > 0) quality += 5;
+			if (i > 0) quality -= j - pos;
+			pos = j + 1;
+		}
+		quality = Math.max(0, quality);
+		return camelCase ? CAMEL_CASE_QUALITY + quality : quality;
+	}
+	
+	static private boolean isWordStart(final String text, final int k) {
+		if (0 == k) return true;
+		final char prior = text.charAt(k - 1),
+		           c = text.charAt(k);
+		return ('_' == prior && '_' != c)
+		    || (Character.isUpperCase(c) && !Character.isUpperCase(prior));
+	}
+}
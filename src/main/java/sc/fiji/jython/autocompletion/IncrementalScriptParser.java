@@ -0,0 +1,431 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.python.antlr.base.mod;
+import org.python.core.CompileMode;
+import org.python.core.CompilerFlags;
+import org.python.core.ParserFacade;
+import org.python.core.PyException;
+
+/**
+ * Parses jython code incrementally: the contribution of each top-level statement to the top-level {@code Scope}
+ * is remembered, keyed by the text of the statement and its offset within the code.
+ * When parsing again, only the statements from the first edited one onward are parsed and resolved anew,
+ * and the contributions of the prior statements are reused.
+ * 
+ * Code being edited often doesn't parse. Then the statements before the first unparseable one, known to be good,
+ * are kept, and only the unparseable statements are analyzed with error tolerance, by dropping their broken lines
+ * and by adding a "pass" to blocks without a body, e.g. "for x in xs:". What is made out of an unparseable statement
+ * is applied on top of its last good version, if any. Tolerated statements are not remembered, and are parsed anew
+ * by the next call.
+ * 
+ * The returned {@code Scope} is reused and mutated by subsequent calls to {@link #parse(String)}.
+ */
+public class IncrementalScriptParser {
+	
+	/** The top-level scope, reused across calls. */
+	private final Scope root = new Scope(null);
+	
+	/** The top-level statements parsed so far, in order, each with what it changed in the {@code root} scope. */
+	private final ArrayList<Statement> statements = new ArrayList<>();
+	
+	/** The text of each top-level statement of the prior call, to align {@link #lastGood} with the statements of the next call. */
+	private List<String> texts = new ArrayList<>();
+	
+	/** For each statement of {@link #texts}, the text of its last version that parsed, if any, for when it doesn't parse anymore. */
+	private List<String> lastGood = new ArrayList<>();
+	
+	static private final class Statement {
+		final int offset;
+		final String text;
+		/** Tables of the root scope prior to this statement, for undoing the statement. */
+		SymbolTable priorImports, priorVars;
+		/** Number of child scopes (function and class definitions) that this statement appended to the root scope. */
+		int n_children = 0;
+		/** Reverts the attributes that the statement added to classes declared by prior statements, see {@link Scope#journal}. */
+		final List<Runnable> journal = new ArrayList<>();
+		/** Whether the statement didn't parse and its errors were tolerated, to be parsed anew. */
+		boolean tolerated = false;
+		/** The parsed statement, until its usage is recorded once unchanged by an edit, see {@link UsageStats}. */
+		mod tree = null;
+		
+		Statement(final int offset, final String text) {
+			this.offset = offset;
+			this.text = text;
+		}
+		
+		boolean sameAs(final Statement st) {
+			return !this.tolerated && this.offset == st.offset && this.text.equals(st.text);
+		}
+	}
+	
+	/**
+	 * Parse valid jython code, reusing the analysis of the unchanged top-level statements from the prior call.
+	 * 
+	 * @return The top-level {@code Scope}. When the code has errors, it includes the statements up to the first
+	 *         unparseable one, and what could be made out of the rest with error tolerance.
+	 */
+	public synchronized Scope parse(final String code) {
+		final List<Statement> current = split(code);
+		align(current);
+		// Find the first statement that differs
+		int first = 0;
+		final int n = Math.min(current.size(), statements.size());
+		while (first < n && statements.get(first).sameAs(current.get(first))) ++first;
+		// Statements that survived the edit count as used; not those being typed, e.g. "imp.g", "imp.ge", ...
+		for (int i = 0; i < first; ++i)
+			if (null != statements.get(i).tree) record(statements.get(i));
+		final Set<String> prior = new HashSet<>();
+		// Undo, in reverse order, the statements from the first edited one onward
+		for (int i = statements.size() -1; i >= first; --i) {
+			final Statement st = statements.remove(i);
+			if (!st.tolerated) prior.add(st.text);
+			undo(st);
+		}
+		final int reused = first;
+		JythonScriptParser.print(() -> "Reusing " + reused + " of " + current.size() + " top-level statements");
+		// Parse and resolve the new statements
+		for (int i = first; i < current.size(); ++i) {
+			final Statement st = current.get(i);
+			mod m;
+			try (final PhaseEvent e = PhaseEvent.begin("parse")) {
+				e.codeLength(st.text.length());
+				m = ParserFacade.parse(st.text, CompileMode.exec, "<none>", new CompilerFlags());
+			} catch (Throwable t) {
+				JythonScriptParser.print(() -> "Tolerating errors in: " + st.text + "\n" + t);
+				st.tolerated = true;
+				// The last good version of the statement, e.g. before the edit that broke it
+				if (null != lastGood.get(i) && !st.text.equals(lastGood.get(i))) {
+					final Statement good = new Statement(st.offset, lastGood.get(i));
+					good.tolerated = true;
+					try {
+						apply(good, ParserFacade.parse(good.text, CompileMode.exec, "<none>", new CompilerFlags()));
+						statements.add(good);
+					} catch (Throwable tt) {
+						JythonScriptParser.print(() -> "Could not reuse the prior version of: " + st.text);
+					}
+				}
+				m = tolerate(st.text);
+				if (null == m) continue;
+			}
+			try (final PhaseEvent e = PhaseEvent.begin("scope").codeLength(st.text.length())) {
+				apply(st, m);
+				e.scopes(st.n_children);
+			} catch (Throwable t) {
+				t.printStackTrace();
+				// Statements parsed so far remain cached for the next call
+				return root;
+			}
+			statements.add(st);
+			if (!st.tolerated) {
+				lastGood.set(i, st.text);
+				st.tree = m;
+				if (prior.contains(st.text)) record(st); // unchanged, e.g. moved down by an edit above
+			}
+		}
+		return root;
+	}
+	
+	/** Opens a block: ends with a colon, ignoring comments. */
+	static private final Pattern blockStart = Pattern.compile("^[^#]*:[ \\t]*(#.*|)$");
+	
+	/**
+	 * Parse code with errors, by repeatedly fixing the line at which the parser fails:
+	 * adding a "pass" after a line that opens a block without a body; or else blanking the lines
+	 * from an unclosed bracket onward, e.g. "x = f(", which swallows the lines that follow; or else blanking the line.
+	 * 
+	 * @return The parsed code, or null when it can't be made to parse.
+	 */
+	static mod tolerate(final String text) {
+		final List<String> lines = new ArrayList<>(Arrays.asList(text.split("\n", -1)));
+		for (int attempt = 0; attempt < 16; ++attempt) {
+			int last = lines.size() -1;
+			while (last >= 0 && lines.get(last).trim().isEmpty()) --last;
+			if (last < 0) return null;
+			try {
+				return ParserFacade.parse(String.join("\n", lines) + "\n", CompileMode.exec, "<none>", new CompilerFlags());
+			} catch (Throwable t) {
+				int index = lineOf(t) -1;
+				if (index < 0 || index > last) index = last;
+				if (index > 0 && opensEmptyBlock(lines, index -1, index))
+					lines.add(index, indentation(lines.get(index -1)) + "    pass"); // e.g. "expecting INDENT"
+				else if (index == last && opensEmptyBlock(lines, index, index + 1))
+					lines.add(index + 1, indentation(lines.get(index)) + "    pass");
+				else {
+					final int open = unclosedBracket(lines, index);
+					if (-1 == open) lines.set(index, "");
+					else for (int k = open; k < index; ++k) lines.set(k, ""); // keep the swallowed line
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return The index of the line, before {@code index}, with a bracket still unclosed at line {@code index};
+	 *         or -1 if none. Brackets within string literals on a single line are ignored.
+	 */
+	static private int unclosedBracket(final List<String> lines, final int index) {
+		int depth = 0,
+		    open = -1;
+		for (int k = 0; k < index; ++k) {
+			final String line = lines.get(k);
+			char quote = 0;
+			for (int i = 0; i < line.length(); ++i) {
+				final char c = line.charAt(i);
+				if (0 != quote) {
+					if ('\\' == c) ++i;
+					else if (c == quote) quote = 0;
+				}
+				else if ('\'' == c || '"' == c) quote = c;
+				else if ('#' == c) break;
+				else if ('(' == c || '[' == c || '{' == c) {
+					if (0 == depth++) open = k;
+				}
+				else if ((')' == c || ']' == c || '}' == c) && depth > 0) --depth;
+			}
+		}
+		return depth > 0 ? open : -1;
+	}
+	
+	/** Whether the line at {@code opener} opens a block, and the line at {@code next}, if any, isn't indented further. */
+	static private boolean opensEmptyBlock(final List<String> lines, final int opener, final int next) {
+		if (!blockStart.matcher(lines.get(opener)).find()) return false;
+		return next >= lines.size() || lines.get(next).trim().isEmpty()
+			|| indentation(lines.get(next)).length() <= indentation(lines.get(opener)).length();
+	}
+	
+	static private String indentation(final String line) {
+		int i = 0;
+		while (i < line.length() && (' ' == line.charAt(i) || '\t' == line.charAt(i))) ++i;
+		return line.substring(0, i);
+	}
+	
+	/** @return The line number, starting at 1, of a python syntax error; or -1 if unknown. */
+	static private int lineOf(final Throwable t) {
+		if (t instanceof PyException) {
+			try {
+				// The value of a SyntaxError is (msg, (filename, lineno, offset, text))
+				return ((PyException)t).value.__getitem__(1).__getitem__(1).asInt();
+			} catch (Exception e) {
+				// e.g. jython not initialized
+			}
+		}
+		return -1;
+	}
+	
+	/** Above this product of the numbers of edited statements before and after, these are aligned by position. */
+	static private final int MAX_ALIGNMENT = 1 << 16;
+	
+	/**
+	 * Carry over {@link #lastGood} to the {@code current} statements: those of the unchanged prefix and suffix
+	 * keep theirs, e.g. when a statement is inserted above or removed. In between, statements with unchanged text
+	 * are matched in order (their longest common subsequence), and each edited statement takes the last good version
+	 * of the replaced statement, in the same gap between matches, whose text starts most like its own; or none, when new.
+	 */
+	private void align(final List<Statement> current) {
+		final int n = Math.min(texts.size(), current.size());
+		int prefix = 0;
+		while (prefix < n && texts.get(prefix).equals(current.get(prefix).text)) ++prefix;
+		int suffix = 0;
+		while (suffix < n - prefix && texts.get(texts.size() -1 -suffix).equals(current.get(current.size() -1 -suffix).text)) ++suffix;
+		final List<String> good = new ArrayList<>(current.size()),
+		                   ts = new ArrayList<>(current.size());
+		for (int i = 0; i < current.size(); ++i) {
+			ts.add(current.get(i).text);
+			good.add(i < prefix ? lastGood.get(i) : null);
+		}
+		for (int k = 0; k < suffix; ++k)
+			good.set(current.size() -1 -k, lastGood.get(texts.size() -1 -k));
+		// The edited statements in between
+		final int a = texts.size() - suffix - prefix,
+		          b = current.size() - suffix - prefix;
+		if ((long)a * b > MAX_ALIGNMENT) {
+			for (int k = 0; k < Math.min(a, b); ++k) good.set(prefix + k, lastGood.get(prefix + k));
+		} else if (a > 0 && b > 0) {
+			// Lengths of the longest common subsequences of the ends of both
+			final int[][] lcs = new int[a + 1][b + 1];
+			for (int i = a -1; i >= 0; --i)
+				for (int j = b -1; j >= 0; --j)
+					lcs[i][j] = texts.get(prefix + i).equals(ts.get(prefix + j)) ? lcs[i+1][j+1] + 1 : Math.max(lcs[i+1][j], lcs[i][j+1]);
+			final List<Integer> gapOld = new ArrayList<>(),
+			                    gapNew = new ArrayList<>();
+			int i = 0, j = 0;
+			while (i < a || j < b) {
+				if (i < a && j < b && texts.get(prefix + i).equals(ts.get(prefix + j))) {
+					pair(gapOld, gapNew, ts, good);
+					good.set(prefix + j, lastGood.get(prefix + i));
+					++i;
+					++j;
+				}
+				else if (j == b || (i < a && lcs[i+1][j] >= lcs[i][j+1])) gapOld.add(prefix + i++);
+				else gapNew.add(prefix + j++);
+			}
+			pair(gapOld, gapNew, ts, good);
+		}
+		texts = ts;
+		lastGood = good;
+	}
+	
+	/** Give each new statement of a gap the last good version of the old statement of the gap whose text shares the longest start with its own, if any; then empty the gap. */
+	private void pair(final List<Integer> gapOld, final List<Integer> gapNew, final List<String> ts, final List<String> good) {
+		for (final int j : gapNew) {
+			int best = -1,
+			    bestLength = 0;
+			for (int k = 0; k < gapOld.size(); ++k) {
+				final int length = commonPrefix(texts.get(gapOld.get(k)), ts.get(j));
+				if (length > bestLength) {
+					best = k;
+					bestLength = length;
+				}
+			}
+			if (-1 != best) good.set(j, lastGood.get(gapOld.remove(best)));
+		}
+		gapOld.clear();
+		gapNew.clear();
+	}
+	
+	static private int commonPrefix(final String s1, final String s2) {
+		final int n = Math.min(s1.length(), s2.length());
+		int i = 0;
+		while (i < n && s1.charAt(i) == s2.charAt(i)) ++i;
+		return i;
+	}
+	
+	/** Count the names used in the statement, unless it was injected to capture a returned class, see {@link JythonAutoCompletions#GRAB}. */
+	static private void record(final Statement st) {
+		if (!st.text.contains(JythonAutoCompletions.GRAB)) UsageStats.record(st.text, st.tree);
+		st.tree = null;
+	}
+	
+	/** Discard all cached statements. */
+	public synchronized void clear() {
+		for (int i = statements.size() -1; i >= 0; --i)
+			undo(statements.remove(i));
+		texts.clear();
+		lastGood.clear();
+	}
+	
+	/** Parse the statement into an overlay of the root scope, then merge the overlay into the root scope, recording what it replaced. */
+	private void apply(final Statement st, final mod m) {
+		final Scope overlay = Scope.overlay(root);
+		overlay.journal = st.journal;
+		JythonScriptParser.parseNode(overlay, m.getChildren(), null);
+		st.priorImports = root.imports;
+		st.priorVars = root.vars;
+		root.setImports(root.imports.plusAll(overlay.imports));
+		root.setVars(root.vars.plusAll(overlay.vars));
+		for (final Scope child : overlay.children) {
+			child.parent = root;
+			child.journal = st.journal; // also when its body is analyzed later
+			root.children.add(child);
+		}
+		st.n_children = overlay.children.size();
+	}
+	
+	private void undo(final Statement st) {
+		synchronized (root.tree) { // not while analyzing a deferred scope, which may add to the journal
+			synchronized (st.journal) {
+				for (int i = st.journal.size() -1; i >= 0; --i)
+					st.journal.get(i).run();
+				st.journal.clear();
+			}
+		}
+		root.setImports(st.priorImports);
+		root.setVars(st.priorVars);
+		for (int i = 0; i < st.n_children; ++i)
+			root.children.remove(root.children.size() -1);
+	}
+	
+	/**
+	 * Split the code into top-level statements, without parsing it.
+	 * A top-level statement starts at a line without indentation that isn't blank, a comment,
+	 * a continuation of a prior line (open brackets, triple-quoted strings, or a trailing backslash),
+	 * the clause of a compound statement (else, elif, except, finally), or a definition following a decorator.
+	 * Blank and comment lines between statements are not part of any statement.
+	 */
+	static List<Statement> split(final String code) {
+		final List<Statement> sts = new ArrayList<>();
+		int depth = 0; // of brackets
+		String quote = null; // the open triple quote, if any
+		boolean continued = false, // prior line ends with a backslash
+		        decorated = false; // prior statement is a decorator
+		int start = -1, // of the current statement
+		    end = -1; // of the last non-blank, non-comment line of the current statement
+		int lineStart = 0;
+		while (lineStart < code.length()) {
+			int lineEnd = code.indexOf('\n', lineStart);
+			if (-1 == lineEnd) lineEnd = code.length();
+			final boolean inside = depth > 0 || null != quote || continued;
+			final String line = code.substring(lineStart, lineEnd);
+			final String trimmed = line.trim();
+			final boolean blank = trimmed.isEmpty() || trimmed.startsWith("#");
+			if (!inside && !blank && !Character.isWhitespace(line.charAt(0))
+					&& !decorated && !isClause(trimmed)) {
+				if (-1 != start) sts.add(new Statement(start, code.substring(start, end)));
+				start = lineStart;
+			}
+			if (!inside && !blank) decorated = trimmed.startsWith("@");
+			if (!blank || inside) end = lineEnd;
+			// Scan the line for brackets, strings and comments
+			continued = false;
+			String single = null; // the open single quote, if any
+			for (int i = lineStart; i < lineEnd; ++i) {
+				final char c = code.charAt(i);
+				if (null != quote) {
+					if ('\\' == c) ++i;
+					else if (code.startsWith(quote, i)) { i += 2; quote = null; }
+				} else if (null != single) {
+					if ('\\' == c) ++i;
+					else if (single.charAt(0) == c) single = null;
+				} else if ('#' == c) {
+					break;
+				} else if ('\'' == c || '"' == c) {
+					if (code.startsWith("" + c + c + c, i)) { quote = "" + c + c + c; i += 2; }
+					else single = "" + c;
+				} else if ("([{".indexOf(c) > -1) ++depth;
+				else if (")]}".indexOf(c) > -1) depth = Math.max(0, depth -1);
+				else if ('\\' == c && i == lineEnd -1) continued = true;
+			}
+			lineStart = lineEnd + 1;
+		}
+		if (-1 != start) sts.add(new Statement(start, code.substring(start, end)));
+		return sts;
+	}
+	
+	static private boolean isClause(final String trimmed) {
+		for (final String keyword : new String[]{"else", "elif", "except", "finally"}) {
+			if (trimmed.startsWith(keyword) && (trimmed.length() == keyword.length()
+					|| !Character.isJavaIdentifierPart(trimmed.charAt(keyword.length()))))
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,330 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.ProviderNotFoundException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The names of the java packages and top-level classes in the jar files under {@code ij.dir/jars}
+ * and on the class path, and of the JDK's java.* and javax.* packages, to complete them after "import" and "from",
+ * e.g. "from ij.process import B".
+ * 
+ * The names are read from the central directory of each jar file, without reading the class files,
+ * on first use, and are stored sorted in a compact file keyed by the paths, sizes and modification times
+ * of the jar files, and the java version, one per set of jar files so that several Fiji installations don't overwrite each other's. On later starts the file is memory-mapped and queried by binary search, without opening any jar.
+ * 
+ * File format: magic, version, stamp of the jar files, number of names N, N+1 offsets into the names block,
+ * N kinds (see {@link #CLASS}, {@link #PACKAGE} and {@link #PACKAGE_WITH_CLASSES}), and then the names block:
+ * all qualified names in UTF-8, sorted, concatenated.
+ */
+public final class JavaPackages {
+	
+	/** Kinds of names. A package without classes is the parent of other packages, e.g. "net" of "net.imglib2". */
+	static public final byte CLASS = 0,
+	                         PACKAGE = 1,
+	                         PACKAGE_WITH_CLASSES = 2;
+	
+	static private final int MAGIC = 0x4A504B49, // "JPKI"
+	                         VERSION = 1;
+	
+	static private volatile JavaPackages instance = null;
+	static private final AtomicBoolean started = new AtomicBoolean();
+	
+	private final ByteBuffer buffer;
+	private final int count,
+	                  offsets, // position of the offsets table
+	                  kinds, // position of the kinds
+	                  names; // position of the names block
+	
+	private JavaPackages(final ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.count = buffer.getInt(2 * 4 + 8);
+		this.offsets = 2 * 4 + 8 + 4;
+		this.kinds = this.offsets + (count + 1) * 4;
+		this.names = this.kinds + count;
+	}
+	
+	static private final JavaPackages EMPTY = new JavaPackages(ByteBuffer.wrap(encode(0, Collections.emptyMap())));
+	
+	/** Compute or load the index in a background thread, unless already done. */
+	static public void prefetch() {
+		if (null != instance || !started.compareAndSet(false, true)) return;
+		final Thread t = new Thread(JavaPackages::get, "jython java package index");
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	static public JavaPackages get() {
+		JavaPackages jp = instance;
+		if (null != jp) return jp;
+		synchronized (JavaPackages.class) {
+			if (null == instance) {
+				try (final PhaseEvent e = PhaseEvent.begin("javaPackages")) {
+					instance = load();
+					e.candidates(instance.count);
+				} catch (Exception e) {
+					System.out.println("Could not index the java packages of the jar files");
+					e.printStackTrace();
+					instance = EMPTY;
+				}
+			}
+			return instance;
+		}
+	}
+	
+	public int size() {
+		return count;
+	}
+	
+	/** @return Whether {@code name} is the name of a java package. */
+	public boolean isPackage(final String name) {
+		final int i = lowerBound(name);
+		return i < count && CLASS != kind(i) && name(i).equals(name);
+	}
+	
+	/**
+	 * The names one level below {@code parent} that start with {@code prefix}, e.g. for "ij" and "pro",
+	 * "ij.process" and "ij.prompt" but not "ij.process.ByteProcessor".
+	 * Deeper names are skipped by binary search, without visiting them.
+	 * 
+	 * @param parent A package name, or the empty string for the top level.
+	 * @param prefix The start of the last part of the names.
+	 * @param packagesOnly Whether to skip classes.
+	 * @return The sorted qualified names, and their kinds.
+	 */
+	public Map<String, Byte> findChildren(final String parent, final String prefix, final boolean packagesOnly) {
+		final String start = parent.isEmpty() ? prefix : parent + "." + prefix;
+		final int depth = parent.isEmpty() ? 0 : parent.length() + 1;
+		final Map<String, Byte> found = new TreeMap<>();
+		int i = lowerBound(start);
+		while (i < count) {
+			final String name = name(i);
+			if (!name.startsWith(start)) break;
+			final int dot = name.indexOf('.', depth);
+			if (-1 != dot) {
+				// Below a child: skip its subtree, which ends before the child name followed by the character after '.'
+				i = lowerBound(name.substring(0, dot) + (char)('.' + 1));
+				continue;
+			}
+			final byte kind = kind(i);
+			if (!packagesOnly || CLASS != kind) found.put(name, kind);
+			++i;
+		}
+		return found;
+	}
+	
+	private byte kind(final int i) {
+		return buffer.get(kinds + i);
+	}
+	
+	private String name(final int i) {
+		final int start = buffer.getInt(offsets + i * 4),
+		          end = buffer.getInt(offsets + (i + 1) * 4);
+		final byte[] bytes = new byte[end - start];
+		for (int k = 0; k < bytes.length; ++k)
+			bytes[k] = buffer.get(names + start + k);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/** Binary search for the index of the first name that is equal to or larger than {@code s}. */
+	private int lowerBound(final String s) {
+		int low = 0,
+		    high = count;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (name(mid).compareTo(s) < 0) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+	
+	static private JavaPackages load() throws IOException {
+		final List<File> jars = findJars();
+		return load(jars, StdlibModules.cacheFile("java-packages", stamp(jars)));
+	}
+	
+	/** Read the index of the {@code jars} from the {@code cacheFile}, or else make it and write it there. */
+	static JavaPackages load(final List<File> jars, final File cacheFile) throws IOException {
+		final long stamp = stamp(jars);
+		// Reuse the cache file if the jar files it was made from are unchanged
+		if (cacheFile.exists()) {
+			try (final FileChannel fc = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+				final ByteBuffer b = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+				if (MAGIC == b.getInt() && VERSION == b.getInt() && stamp == b.getLong())
+					return new JavaPackages(b);
+			} catch (Exception e) {
+				System.out.println("Ignoring unreadable cache file " + cacheFile + " :: " + e.getMessage());
+			}
+		}
+		final byte[] bytes = encode(stamp, listNames(jars));
+		StdlibModules.write("java-packages", cacheFile, bytes);
+		return new JavaPackages(ByteBuffer.wrap(bytes));
+	}
+	
+	/** @return The jar files under {@code ij.dir/jars} and of the class path, sorted. */
+	static private List<File> findJars() throws IOException {
+		final Set<File> jars = new TreeSet<>(ClassIndex.jarFiles(ClassIndex.classLoader()));
+		final Path dir = Paths.get(System.getProperty("ij.dir") + "/jars/");
+		if (Files.isDirectory(dir)) {
+			try (final Stream<Path> paths = Files.walk(dir)) {
+				jars.addAll(paths
+					.map(Path::toFile)
+					.filter(file -> file.getName().endsWith(".jar") && file.isFile())
+					.collect(Collectors.toList()));
+			}
+		}
+		return new ArrayList<>(jars);
+	}
+	
+	static private long stamp(final List<File> jars) {
+		long stamp = System.getProperty("java.home", "").hashCode() * 31 + System.getProperty("java.version", "").hashCode();
+		for (final File jar : jars)
+			stamp = 31 * (31 * (31 * stamp + jar.getAbsolutePath().hashCode()) + jar.length()) + jar.lastModified();
+		return stamp;
+	}
+	
+	/** @return The qualified names of the packages, including those of their parent packages, and top-level classes. */
+	static private Map<String, Byte> listNames(final List<File> jars) {
+		final Map<String, Byte> names = new TreeMap<>();
+		for (final File jar : jars) {
+			try (final ZipFile zip = new ZipFile(jar)) {
+				final Enumeration<? extends ZipEntry> entries = zip.entries();
+				while (entries.hasMoreElements())
+					add(entries.nextElement().getName(), names);
+			} catch (Exception e) {
+				System.out.println("Could not list the classes of jar file " + jar + " :: " + e.getMessage());
+			}
+		}
+		listJdkNames(names);
+		return names;
+	}
+	
+	/** Add the java.* and javax.* classes of the JDK: from its runtime image in java 9 or later, else from its jar files. */
+	static private void listJdkNames(final Map<String, Byte> names) {
+		try {
+			final FileSystem jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+			try (final DirectoryStream<Path> modules = Files.newDirectoryStream(jrt.getPath("/modules"))) {
+				for (final Path module : modules) {
+					if (!module.getFileName().toString().startsWith("java.")) continue; // e.g. java.base, java.desktop
+					try (final Stream<Path> paths = Files.walk(module)) {
+						paths.forEach(path -> {
+							final String entry = module.relativize(path).toString();
+							if (entry.startsWith("java/") || entry.startsWith("javax/")) add(entry, names);
+						});
+					}
+				}
+			}
+			return;
+		} catch (ProviderNotFoundException | FileSystemNotFoundException e) {
+			// java 8
+		} catch (Exception e) {
+			System.out.println("Could not list the classes of the JDK :: " + e.getMessage());
+			return;
+		}
+		for (final String path : System.getProperty("sun.boot.class.path", "").split(File.pathSeparator)) {
+			if (!path.endsWith(".jar") || !new File(path).isFile()) continue;
+			try (final ZipFile zip = new ZipFile(path)) {
+				final Enumeration<? extends ZipEntry> entries = zip.entries();
+				while (entries.hasMoreElements()) {
+					final String entry = entries.nextElement().getName();
+					if (entry.startsWith("java/") || entry.startsWith("javax/")) add(entry, names);
+				}
+			} catch (Exception e) {
+				System.out.println("Could not list the classes of jar file " + path + " :: " + e.getMessage());
+			}
+		}
+	}
+	
+	/** Add the top-level class of the jar {@code entry} and its package, including parent packages. */
+	static private void add(final String entry, final Map<String, Byte> names) {
+		// Not nested classes, nor those for other java versions under META-INF/versions/
+		if (!entry.endsWith(".class") || -1 != entry.indexOf('$') || -1 != entry.indexOf('-')) return;
+		final int slash = entry.lastIndexOf('/');
+		if (-1 == slash) return; // the default package can't be imported from
+		final String pkg = entry.substring(0, slash).replace('/', '.'),
+		             name = entry.substring(slash + 1, entry.length() - 6);
+		if ("module-info".equals(name) || "package-info".equals(name)) return;
+		names.put(pkg + "." + name, CLASS);
+		names.put(pkg, PACKAGE_WITH_CLASSES);
+		for (int dot = pkg.lastIndexOf('.'); dot > 0; dot = pkg.lastIndexOf('.', dot - 1))
+			names.putIfAbsent(pkg.substring(0, dot), PACKAGE);
+	}
+	
+	static private byte[] encode(final long stamp, final Map<String, Byte> sorted) {
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(bytes));
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeLong(stamp);
+			dos.writeInt(sorted.size());
+			final List<byte[]> names = new ArrayList<>(sorted.size());
+			int offset = 0;
+			dos.writeInt(offset);
+			for (final String s : sorted.keySet()) {
+				final byte[] name = s.getBytes(StandardCharsets.UTF_8);
+				names.add(name);
+				offset += name.length;
+				dos.writeInt(offset);
+			}
+			for (final byte kind : sorted.values())
+				dos.writeByte(kind);
+			for (final byte[] name : names)
+				dos.write(name);
+			dos.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e); // can't happen: writing to memory
+		}
+	}
+}
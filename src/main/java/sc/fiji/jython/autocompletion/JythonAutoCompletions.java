@@ -22,17 +22,10 @@
 package sc.fiji.jython.autocompletion;
 
 import java.io.File;
-import java.io.IOException;
-import java.nio.file.FileVisitOption;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
-import java.util.function.Function;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -40,67 +33,123 @@ import java.util.stream.Collectors;
 import org.fife.ui.autocomplete.BasicCompletion;
 import org.fife.ui.autocomplete.Completion;
 import org.fife.ui.autocomplete.CompletionProvider;
-import org.python.indexer.types.NModuleType;
 import org.scijava.ui.swing.script.autocompletion.AutoCompletionListener;
+import org.scijava.ui.swing.script.autocompletion.CompletionText;
 import org.scijava.ui.swing.script.autocompletion.JythonAutocompletionProvider;
 
 public class JythonAutoCompletions implements AutoCompletionListener
 {
 	static {
-		// Register as listener for jython autocompletions
-		JythonAutocompletionProvider.addAutoCompletionListener(new JythonAutoCompletions());
+		// The classes to complete are those of the class loader of the thread that registers: not of each thread that requests completions
+		ClassIndex.setClassLoader(Thread.currentThread().getContextClassLoader());
+		// Register as listener for jython autocompletions, analyzing in the background so that the editor doesn't freeze
+		JythonAutocompletionProvider.addAutoCompletionListener(new AsyncJythonAutoCompletions());
+		// Fill in the caches for commonly used classes and modules, at low priority
+		Prewarm.start();
+	}
+	
+	/**
+	 * Set the class loader whose classes to complete, e.g. after Fiji refreshes its plugins.
+	 * By default, the context class loader of the thread that loaded this class.
+	 */
+	static public void setClassLoader(final ClassLoader loader) {
+		ClassIndex.setClassLoader(loader);
 	}
 	
 	static private final Pattern assign = Pattern.compile("^([ \\t]*)(([a-zA-Z_][a-zA-Z0-9_ \\t,]*)[ \\t]+=[ \\t]+(.*))$"),
 						         nameToken = Pattern.compile("^(.*?[ \\t]+|)([a-zA-Z_][a-zA-Z0-9_]+)$"),
 						         dotNameToken = Pattern.compile("^(.*?[ \\t]+|)([a-zA-Z0-9_\\.\\[\\](){}]+)\\.([a-zA-Z0-9_]*)$"),
-						     	 endingCode = Pattern.compile("^([ \\t]*)[^#]*?(.*?)[ \\t]*:[ \\t]*(#.*|)[\\n]*$"),
-						     	 sysPathAppend = Pattern.compile("sys.path.append[ \\t]*[(][ \\t]*['\"](.*?)['\"][ \\t]*[)]"), // fragile to line breaks in e.g. .append
 						    	 importPkg = Pattern.compile("^(import|from)[ \\t]+([a-zA-Z_][a-zA-Z0-9._]*)$"),
 								 importMember = Pattern.compile("^from[ \\t]+([a-z_][a-zA-Z0-9_.]*)[ \\t]+import[ \\t]*([a-zA-Z0-9_]*)$");
 
-	static public final List<String> jython_jar_modules;
+	/**
+	 * The names of the modules of jython's standard library, listed on first access.
+	 * 
+	 * @deprecated Use {@link StdlibModules#get()}, which can be queried by prefix without listing all names.
+	 */
+	@Deprecated
+	static public final List<String> jython_jar_modules = new AbstractList<String>() {
+		@Override
+		public String get(final int i) {
+			return StdlibModules.get().asList().get(i);
+		}
+		@Override
+		public int size() {
+			return StdlibModules.get().size();
+		}
+	};
 	
-	static {
-		List<String> ls = Collections.emptyList();
+	/** An injected var to capture the class returned by the code before a dot, e.g. "____GRAB____ = imp.getProcessor()". */
+	static final String GRAB = "____GRAB____";
+	
+	/** The maximum number of completions listed after a dot, the best ranked ones; zero or less for all. */
+	static public int MAX_COMPLETIONS = 0;
+	
+	/** Controls whether the code is parsed incrementally, reusing the analysis of unchanged top-level statements. */
+	static public boolean INCREMENTAL = true;
+	
+	public JythonAutoCompletions() {}
+
+	@Override
+	public List<Completion> completionsFor(final CompletionProvider provider, final String codeWithoutLastLine, final String lastLine, final String alreadyEnteredText) {
+		return completionsFor(provider, codeWithoutLastLine, lastLine, alreadyEnteredText, CompletionRequest.NONE);
+	}
+	
+	/**
+	 * Like {@link #completionsFor(CompletionProvider, String, String, String)}, but can be cancelled between phases,
+	 * and records partial results into the {@code request} as they become available.
+	 * Reuses the analysis of prior requests of the same {@code provider}, i.e. of the same editor tab, see {@link CompletionSessions#get(Object)}.
+	 * 
+	 * @throws java.util.concurrent.CancellationException when the {@code request} is cancelled.
+	 */
+	public List<Completion> completionsFor(final CompletionProvider provider, final String codeWithoutLastLine, final String lastLine, final String alreadyEnteredText,
+			final CompletionRequest request) {
+		final CompletionSession session = CompletionSessions.acquire(provider); // not evicted meanwhile
 		try {
-			ls = Files.walk(new File(System.getProperty("ij.dir") + "/jars/").toPath())
-				.filter(path -> path.toFile().getName().startsWith("jython-slim-")) // path.getFileName() doesn't start with ... but prints as if it does ???
-				.map(new Function<Path, List<String>>() {
-					@Override
-					public List<String> apply(final Path filepath) {
-						JarFile jar = null;
-						try {
-							jar = new JarFile(filepath.toString());
-							final List<String> modules = jar.stream()
-									.map(JarEntry::getName)
-									.filter(s -> s.startsWith("Lib/") && s.endsWith(".py"))
-									.map(s -> (s.endsWith("/__init__.py") ?
-											  s.substring(4, s.length() - 12) // the parent folder
-											: s.substring(4, s.length() - 3)) // avoid the .py extension
-											.replace('/', '.'))
-									.collect(Collectors.toList());
-							return modules;
-						} catch (Exception e) {
-							e.printStackTrace();
-						} finally {
-							if (null != jar) try { jar.close(); } catch (Exception ee) {}
-						}
-						return Collections.emptyList();
-					}
-				}).findFirst().orElse(Collections.emptyList());
-		} catch (IOException e) {
-			e.printStackTrace();
+			return completionsFor(provider, codeWithoutLastLine, lastLine, alreadyEnteredText, request, session);
 		} finally {
-			jython_jar_modules = ls;
+			session.exit();
 		}
 	}
 	
+	/**
+	 * Like {@link #completionsFor(CompletionProvider, String, String, String, CompletionRequest)}, reusing the analysis
+	 * of the document of the {@code session} from prior requests, see {@link CompletionSessions#get(Object)}.
+	 * Requests of the same session run one at a time: each changes the state of the session.
+	 */
+	public List<Completion> completionsFor(final CompletionProvider provider, final String codeWithoutLastLine, final String lastLine, final String alreadyEnteredText,
+			final CompletionRequest request, final CompletionSession session) {
+		session.enter(); // not evicted meanwhile
+		try {
+			synchronized (session) {
+				if (null != request) request.checkpoint(); // e.g. superseded while waiting
+				return completionsForLocked(provider, codeWithoutLastLine, lastLine, alreadyEnteredText, request, session);
+			}
+		} finally {
+			session.exit();
+		}
+	}
 	
-	public JythonAutoCompletions() {}
-
-	@Override
-	public List<Completion> completionsFor(final CompletionProvider provider, String codeWithoutLastLine, final String lastLine, final String alreadyEnteredText) {
+	private List<Completion> completionsForLocked(final CompletionProvider provider, final String codeWithoutLastLine, final String lastLine, final String alreadyEnteredText,
+			final CompletionRequest request, final CompletionSession session) {
+		try (final PhaseEvent e = PhaseEvent.begin("completionsFor").codeLength(codeWithoutLastLine.length() + lastLine.length())) {
+			CompletionSession.setCurrent(session);
+			session.update(codeWithoutLastLine);
+			final List<Completion> list = complete(provider, codeWithoutLastLine, lastLine, alreadyEnteredText,
+					null == request ? CompletionRequest.NONE : request, session);
+			e.candidates(list.size());
+			return list;
+		} finally {
+			CompletionSession.setCurrent(null);
+		}
+	}
+	
+	private List<Completion> complete(final CompletionProvider provider, final String codeWithoutLastLine, final String lastLine, final String alreadyEnteredText,
+			final CompletionRequest request, final CompletionSession session) {
+		
+		// List jython's standard library modules in the background, ahead of the first import completion
+		StdlibModules.prefetch();
+		JavaPackages.prefetch();
 		
 		// Replacing of text will start at crop, given the already entered text that is considered for replacement
 		final int crop = lastLine.length() - alreadyEnteredText.length();
@@ -112,83 +161,65 @@ public class JythonAutoCompletions implements AutoCompletionListener
 		if (0 == lastLine.length() || "()[]{},; ".indexOf(lastChar) > -1)
 			return Collections.emptyList();
 		
-		// Preconditions 2: codeWithoutLastLine has to be valid
-		// Analyze last line of codeWithoutLastLine: if it ends with a ':', must add a "pass" to make it a valid code block
-		// so that the ParserFacade can work
-		boolean add_pass = false;
-		if (codeWithoutLastLine.endsWith("\n")) {
-			JythonScriptParser.print("codeWithoutLastLine ends with line break");
-			final int priorLineBreak = codeWithoutLastLine.lastIndexOf('\n', codeWithoutLastLine.length() - 2);
-			final String endingLine = codeWithoutLastLine.substring(priorLineBreak + 1);
-			final Matcher me = endingCode.matcher(endingLine);
-			if (me.find()) {
-				codeWithoutLastLine = codeWithoutLastLine.substring(0, priorLineBreak + 1) + me.group(1) + me.group(2);
-				add_pass = true;
-				JythonScriptParser.print("changed code to: \n" + codeWithoutLastLine + "\n###");
-			}
-		}
+		// Code with errors, as is common while editing, is parsed with error tolerance: see IncrementalScriptParser
 		
-		// Check if there are any additions to the sys.path to search for custom modules
-		try {
-			final Matcher mpath = sysPathAppend.matcher(codeWithoutLastLine);
-			while (mpath.find()) {
-				final File path = new File(mpath.group(1));
-				if (path.exists() && path.isDirectory() && !Scope.indexer.getLoadPath().stream().filter(s -> path.equals(new File(s))).findFirst().isPresent())
-					Scope.indexer.addPath(path.getAbsolutePath());
-			}
-			JythonScriptParser.print("PYTHONPATH:\n" + String.join("\n", Scope.indexer.getLoadPath()));
-		} catch (Exception e) {
-			System.out.println("Failed to add path from sys.path.append expression.");
-			e.printStackTrace();
-		}
+		request.checkpoint();
 		
 		// Situations to autocomplete:
-		// 0) a python module import
+		// 0) a python module or java package import
 		// 1) a plain name: delimited with space (or none) to the left, and without parentheses.
 		// 2) a method or field: none or some text after a period.
 		
 		final Matcher mi = importPkg.matcher(lastLine);
-		if (mi.find()) {
+		if (find(mi)) {
+			// Parse the code for the directories it adds to sys.path, see SysPathTracker
+			parse(session, codeWithoutLastLine);
+			request.checkpoint();
 			// Complete package name
 			final String first = mi.group(1), // import or from
 			             pkgName = mi.group(2);
 			final ArrayList<Completion> ac = new ArrayList<>();
 			// Find completions among jython's standard library
-			ac.addAll(jython_jar_modules.stream()
-					.filter(s -> s.startsWith(pkgName))
+			ac.addAll(StdlibModules.get().findStartsWith(pkgName).stream()
 					.map(s -> new BasicCompletion(provider, first + " " + s + (first.equals("from") ? " import " : ""), null, "Python standard library module"))
 					.collect(Collectors.toList()));
+			request.offer(new ArrayList<>(ac));
+			request.checkpoint();
 			// Find completions among sys.path libraries
-			final String pkgNameFile = pkgName.replace('.', '/');
-			ac.addAll(Scope.indexer.getLoadPath().stream()
-					.map(dir -> {
-						try {
-							return Files.walk(new File(dir).toPath(), FileVisitOption.FOLLOW_LINKS)
-									.map(path -> path.toFile().getAbsolutePath())
-									.filter(s -> s.startsWith(dir + pkgNameFile) && s.endsWith(".py"))
-									.map(s -> (s.endsWith("__init__.py") ?
-											  s.substring(dir.length(), s.length() - 12) // remove ending "__init__.py"
-											: s.substring(dir.length(), s.length() -3))  // remove ending ".py"
-											.replace('/', '.'));
-						} catch (IOException e) {
-							e.printStackTrace();
-						}
-						return null;
-					}).flatMap(Function.identity())
+			ac.addAll(ModulePathIndex.findStartsWith(pkgName).stream()
 					.map(s -> new BasicCompletion(provider, first + " " + s + (first.equals("from") ? " import " : ""), null, "Custom python module"))
 					.collect(Collectors.toList()));
+			request.offer(new ArrayList<>(ac));
+			request.checkpoint();
+			// Find completions among java packages, and classes for "import"
+			final int dot = pkgName.lastIndexOf('.');
+			JavaPackages.get().findChildren(-1 == dot ? "" : pkgName.substring(0, dot), pkgName.substring(dot + 1), first.equals("from"))
+				.forEach((s, kind) -> ac.add(new BasicCompletion(provider,
+						first + " " + s + (JavaPackages.PACKAGE_WITH_CLASSES == kind && first.equals("from") ? " import " : ""), null,
+						JavaPackages.CLASS == kind ? "Java class" : "Java package")));
 			return ac;
 		}
 		
 		final Matcher mm = importMember.matcher(lastLine);
-		if (mm.find()) {
+		if (find(mm)) {
+			parse(session, codeWithoutLastLine);
+			request.checkpoint();
 			// Complete member name
 			final String pkgName = mm.group(1),
 					     member = mm.group(2) == null ? "" : mm.group(2);
+			// Complete the classes and subpackages of a java package
+			if (JavaPackages.get().isPackage(pkgName)) {
+				final ArrayList<Completion> ac = new ArrayList<>();
+				JavaPackages.get().findChildren(pkgName, member, false)
+					.forEach((s, kind) -> ac.add(new BasicCompletion(provider, "from " + pkgName + " import " + s.substring(pkgName.length() + 1), null,
+							JavaPackages.CLASS == kind ? "Java class" : "Java package")));
+				return ac;
+			}
 			// Check that the module exists
-			final NModuleType mod = Scope.loadPythonModule(pkgName);
-			if (null != mod && !mod.getTable().keySet().isEmpty()) {
-				return mod.getTable().keySet().stream()
+			final ModuleLoader.Snapshot mod = ModuleLoader.load(pkgName);
+			request.checkpoint();
+			if (null != mod && !mod.isEmpty()) {
+				return mod.names.stream()
 					.filter(s -> s.startsWith(member))
 					.map(s -> new BasicCompletion(provider, "from " + pkgName + " import " + s, null, null)) // todo call "help" on that function
 					.collect(Collectors.toList());
@@ -196,16 +227,13 @@ public class JythonAutoCompletions implements AutoCompletionListener
 			if (null != mod) {
 				// Module exists but its __init__.py is empty. Look into its folder
 				final ArrayList<Completion> ac = new ArrayList<>();
-				for (final String dir : Scope.indexer.getLoadPath()) {
-					final File fdir = new File(dir + pkgName.replace('.', '/'));
-					if (fdir.exists() && fdir.isDirectory()) {
-						for (final String filename: fdir.list()) {
-							if (filename.startsWith(member) && (new File(fdir.getAbsolutePath() + "/" + filename).isDirectory() || filename.endsWith(".py"))) {
-								ac.add(new BasicCompletion(provider,
-										"from " + pkgName + " import " + (filename.endsWith(".py") ?
-												filename.substring(0, filename.length() -3)
-												: filename), null, null));
-							}
+				for (final File fdir : ModuleLoader.packageDirs(pkgName)) {
+					for (final String filename: fdir.list()) {
+						if (filename.startsWith(member) && (new File(fdir.getAbsolutePath() + "/" + filename).isDirectory() || filename.endsWith(".py"))) {
+							ac.add(new BasicCompletion(provider,
+									"from " + pkgName + " import " + (filename.endsWith(".py") ?
+											filename.substring(0, filename.length() -3)
+											: filename), null, null));
 						}
 					}
 				}
@@ -216,13 +244,16 @@ public class JythonAutoCompletions implements AutoCompletionListener
 		}
 
 		final Matcher m1 = nameToken.matcher(lastLine);
-		if (m1.find())
-			return JythonScriptParser.parseAST(codeWithoutLastLine).getLast().findStartsWith(m1.group(2)).stream()
+		if (find(m1)) {
+			final Scope scope = parse(session, codeWithoutLastLine).getEnclosing(indentation(lastLine));
+			request.checkpoint();
+			return scope.findStartsWith(m1.group(2)).stream()
 					.map(s -> new BasicCompletion(provider, (lastLine + s.substring(m1.group(2).length())).substring(crop)))
 					.collect(Collectors.toList());
+		}
 		
 		final Matcher m2 = dotNameToken.matcher(lastLine);
-		if (m2.find()) {
+		if (find(m2)) {
 			final String seed = m2.group(3); // can be empty
 			// Expand fields and methods of previous class
 			// Assume code is correct up to the dot
@@ -242,59 +273,57 @@ public class JythonAutoCompletions implements AutoCompletionListener
 				int start = 0;
 				while (Character.isWhitespace(lastLine.charAt(start++)));
 				--start;
-				String suffix = "";
-				if (add_pass) {
-					add_pass = false; // don't
-					JythonScriptParser.print("Removed ' pass'");
-					suffix = ":\n  ";
-				}
-				varName = "____GRAB____"; // an injected var to capture the returned class
-				code = codeWithoutLastLine + (add_pass ? ": pass" : "") + suffix + lastLine.substring(0, start) + varName + " = " + lastLine.substring(start, lastLine.length() - 1 - seed.length());
-				JythonScriptParser.print("codeWithoutLastLine:\n" + codeWithoutLastLine);
+				varName = GRAB;
+				code = codeWithoutLastLine + lastLine.substring(0, start) + varName + " = " + lastLine.substring(start, lastLine.length() - 1 - seed.length());
+				JythonScriptParser.print(() -> "codeWithoutLastLine:\n" + codeWithoutLastLine);
+			}
+			// Typing more of the seed doesn't change the receiver: reuse its type while the code before it is unchanged
+			final String receiver = lastLine.substring(0, lastLine.length() - seed.length());
+			DotAutocompletions da = session.receivers.get(receiver);
+			if (null == da) {
+				da = parse(session, code).getEnclosing(indentation(lastLine)).find(varName, DotAutocompletions.EMPTY);
+				session.receivers.put(receiver, da);
 			}
-			final DotAutocompletions da = JythonScriptParser.parseAST(code).getLast().find(varName, DotAutocompletions.EMPTY);
+			request.checkpoint();
 			final String fullPre = lastLine.substring(crop);
 			final String pre = fullPre.substring(0, fullPre.lastIndexOf(seed));
-			final String lowerCaseSeed = seed.toLowerCase();
-			List<Completion> list = da.get().stream()
-					.filter(s -> s.getReplacementText().toLowerCase().contains(lowerCaseSeed))
-					.map(s -> s.getCompletion(provider, pre + s.getReplacementText()))
-					.collect(Collectors.toList());
-			sortCompletions(list, seed);
-			return list;
+			final List<CompletionText> candidates = da.get();
+			if (CompletionRequest.NONE != request) {
+				request.offer(Ranking.unranked(provider, candidates, seed, pre)); // in case the deadline expires while ranking
+				request.checkpoint();
+			}
+			try (final PhaseEvent e = PhaseEvent.begin("rank")) {
+				e.candidates(candidates.size());
+				return Ranking.top(provider, candidates, seed, pre, MAX_COMPLETIONS);
+			}
 		}
 
 		return Collections.emptyList();
 	}
 
-	@SuppressWarnings("unused")
-	private static String removeLastOptionalDot(final String s) {
-		return (s != null && s.endsWith(".")) ? s.substring(0, s.length() - 1) : s;
+	/** Run a {@code Matcher} of the regex cascade that finds out what needs autocompletion. */
+	static private boolean find(final Matcher m) {
+		final PhaseEvent e = PhaseEvent.begin("match");
+		try {
+			return m.find();
+		} finally {
+			e.close();
+		}
 	}
 
-	/**
-	 * @param completions The list of completions
-	 * @param pre         the text just before the current caret position that could
-	 *                    be the start of something auto-completable.
-	 */
-	private void sortCompletions(final List<Completion> completions, final String pre) {
-		Collections.sort(completions, new Comparator<Completion>() {
-			int prefix1Index = Integer.MAX_VALUE;
-			int prefix2Index = Integer.MAX_VALUE;
+	/** @return The number of whitespace characters at the start of the line, to find the scope it is in (see {@link Scope#getEnclosing(int)}). */
+	static private int indentation(final String line) {
+		int i = 0;
+		while (i < line.length() && (' ' == line.charAt(i) || '\t' == line.charAt(i))) ++i;
+		return i;
+	}
 
-			@Override
-			public int compare(final Completion o1, final Completion o2) {
-				prefix1Index = Integer.MAX_VALUE;
-				prefix2Index = Integer.MAX_VALUE;
-				if (o1.getReplacementText().startsWith(pre))
-					prefix1Index = 0;
-				if (o2.getReplacementText().startsWith(pre))
-					prefix2Index = 0;
-				if (prefix1Index == prefix2Index)
-					return o1.getReplacementText().compareTo(o2.getReplacementText());
-				else
-					return prefix1Index - prefix2Index;
-			}
-		});
+	static private Scope parse(final CompletionSession session, final String code) {
+		return INCREMENTAL ? session.parser.parse(code) : JythonScriptParser.parseAST(code);
+	}
+
+	@SuppressWarnings("unused")
+	private static String removeLastOptionalDot(final String s) {
+		return (s != null && s.endsWith(".")) ? s.substring(0, s.length() - 1) : s;
 	}
 }
@@ -21,14 +21,20 @@
  */
 package sc.fiji.jython.autocompletion;
 
-import java.lang.reflect.Method;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
+import org.antlr.runtime.CharStream;
+import org.antlr.runtime.Token;
 import org.antlr.runtime.tree.CommonTree;
 import org.python.antlr.PythonTree;
 import org.python.antlr.ast.Assign;
@@ -59,7 +65,6 @@ import org.python.core.CompilerFlags;
 import org.python.core.ParserFacade;
 import org.python.core.PyInteger;
 import org.python.core.PyObject;
-import org.python.indexer.types.NModuleType;
 import org.scijava.ui.swing.script.autocompletion.CompletionText;
 
 public class JythonScriptParser {
@@ -70,14 +75,27 @@ public class JythonScriptParser {
 	/**
 	 * Parse valid jython code.
 	 * 
-	 * @return The top-level {@code Scope}, which is empty (see {@code {@link Scope#isEmpty()}) when the code has errors and can't be parsed by {@code ParserFacade#parse(String, CompileMode, String, CompilerFlags)}.
+	 * @return The top-level {@code Scope}, which is empty (see {@code {@link Scope#isEmpty()}) when the code has errors and can't be parsed by {@code ParserFacade#parse(String, CompileMode, String, CompilerFlags)},
+	 *         not even with the error tolerance of {@link IncrementalScriptParser#tolerate(String)}.
 	 */
 	static public Scope parseAST(final String code) {
 		// The code includes from beginning of the file until the point at which an autocompletion is requested.
 		// Therefore, remove the last line, which would fail to parse because it is incomplete
 		try {
-			final mod m = ParserFacade.parse(code, CompileMode.exec, "<none>", new CompilerFlags());
-			return parseNode(m.getChildren(), null, null);
+			mod m;
+			try (final PhaseEvent e = PhaseEvent.begin("parse")) {
+				e.codeLength(code.length());
+				m = ParserFacade.parse(code, CompileMode.exec, "<none>", new CompilerFlags());
+			} catch (Throwable t) {
+				print(() -> "Tolerating errors: " + t);
+				m = IncrementalScriptParser.tolerate(code);
+				if (null == m) return new Scope(null);
+			}
+			try (final PhaseEvent e = PhaseEvent.begin("scope").codeLength(code.length())) {
+				final Scope scope = parseNode(m.getChildren(), null, null);
+				e.scopes(scope);
+				return scope;
+			}
 		} catch (Throwable t) {
 			t.printStackTrace();
 			return new Scope(null);
@@ -106,11 +124,11 @@ public class JythonScriptParser {
 			print(child.getClass());
 			
 			if (child instanceof ImportFrom)
-				scope.imports.putAll(parseImportFromStatement( (ImportFrom)child ));
+				scope.putImports(parseImportFromStatement( (ImportFrom)child ));
 			else if (child instanceof Import)
-				scope.imports.putAll(parseImportStatement((Import)child));
+				scope.putImports(parseImportStatement((Import)child));
 			else if (child instanceof Assign)
-				scope.vars.putAll(parseAssignStatement( (Assign)child, scope ));
+				scope.putVars(parseAssignStatement( (Assign)child, scope ));
 			else if (child instanceof FunctionDef)
 				parseFunctionDef((FunctionDef)child, scope);
 			else if (child instanceof ClassDef)
@@ -122,15 +140,17 @@ public class JythonScriptParser {
 				// no new scope in if/for/while/with/try/ statements in python
 				parseNode(scope, child.getChildren(), null);
 			else
-				print("IGNORING child: " + child + " -- " + (null != child.getChildren() ?
+				print(() -> "IGNORING child: " + child + " -- " + (null != child.getChildren() ?
 						String.join("::", child.getChildren().stream().map(c -> c.toString()).collect(Collectors.toList()))
 						: ""));
 		}
 	}
 	
 	static public void parseExpr(final Expr child, final Scope scope) {
+		// Directories added to sys.path, for the imports that follow
+		SysPathTracker.record(child, scope);
 		// child.getText() shows child is the base
-		print("Expr: " + child.getText() + ", " + child.getInternalValue() + ", " + child.getValue() + ", children: " + String.join(", ", child.getChildren().stream().map(PythonTree::toString).collect(Collectors.toList())));
+		print(() -> "Expr: " + child.getText() + ", " + child.getInternalValue() + ", " + child.getValue() + ", children: " + String.join(", ", child.getChildren().stream().map(PythonTree::toString).collect(Collectors.toList())));
 	}
 
 	/**
@@ -217,7 +237,9 @@ public class JythonScriptParser {
 						// Add the name of the Attribute to the list of expansions for the prior varName
 						scopeC = cda.scope; // prepare scope for next iteration
 						//scopeC.vars.put(varName, cda); // Is this needed? I think it isn't
-						cda.put(new CompletionText(varName)); // add varName (e.g. "width") as a possible expansion for the prior varName (e.g. "self").
+						// add varName (e.g. "width") as a possible expansion for the prior varName (e.g. "self").
+						final CompletionText entry = new CompletionText(varName);
+						if (cda.put(entry)) scope.added(cda, entry);
 					} else {
 						// Don't know how to handle e.g. self.doThis().that = 10 because for "doThis()" there would be a class return type stored 
 						break;
@@ -232,7 +254,8 @@ public class JythonScriptParser {
 	
 	/**
 	 * Adds a child Scope to the given parent Scope, and also a variable to the parent scope
-	 * with no class, just for the function name. Then populates the child scope.
+	 * with no class, just for the function name. The child scope is populated only when needed,
+	 * e.g. when completing within the function or to infer its return class, see {@link Scope#analyze()}.
 	 * 
 	 * @fn
 	 * @parent
@@ -243,36 +266,118 @@ public class JythonScriptParser {
 		// Get the list of argument names, if any
 		arguments args = fn.getInternalArgs();
 		final List<String> argumentNames = args != null && args.getChildren() != null ? // why oh why not return an empty List<PythonTree>
-				args.getChildren().stream().map(arg -> arg.getNode().toString()).collect(Collectors.toList())
+				args.getChildren().stream().map(arg -> Symbols.canonical(arg.getNode().toString())).collect(Collectors.toList())
 				: Collections.emptyList();
-		// Parse the function body
 		final List<PythonTree> children = fn.getChildren();
 		if (null == children) return;
 		final Scope fn_scope = new Scope(parent, null);
-		// Add arguments to the scope -- must be done BEFORE parseNode
-		for (final String arg: argumentNames) {
-			// Empty. For the first argument ("self" or similar) will be replaced later if it's part of a class definition.
-			fn_scope.vars.put(arg, new ClassDotAutocompletions("<unknown>", Collections.emptyList(), Collections.emptyList(), 
-					new ArrayList<CompletionText>(), fn_scope));
+		fn_scope.column = fn.getCol_offset();
+		final PythonTree last = children.get(children.size() -1);
+		final DefVarDotAutocompletions fnda = new DefVarDotAutocompletions(name, argumentNames, fn_scope,
+				last instanceof Return && null != ((Return)last).getInternalValue()); // not for a bare return
+		defer(fn_scope, fn, FunctionDef.class, def -> {
+			// Add arguments to the scope -- must be done BEFORE parseNode
+			for (int i = 0; i < argumentNames.size(); ++i) {
+				// Empty, except for the first argument ("self" or similar) of a method: see parseClassDef.
+				// Attributes can be added, e.g. "self.n = n": the list of completions is mutable
+				final ClassDotAutocompletions argda = new ClassDotAutocompletions("<unknown>", Collections.emptyList(), Collections.emptyList(),
+						new ArrayList<CompletionText>(), fn_scope);
+				if (0 == i && null != fnda.receiver) argda.mutateIntoPlus(fnda.receiver);
+				fn_scope.putVar(argumentNames.get(i), argda);
+			}
+			// Parse the function body
+			final List<PythonTree> body = def.getChildren();
+			parseNode(fn_scope, body, null);
+			final PythonTree end = body.get(body.size() -1);
+			if (end instanceof Return) fnda.returns(((Return)end).getInternalValue());
+		});
+		parent.putVar(name, fnda);
+	}
+	
+	/**
+	 * Defer the analysis of the body of a function or class definition until needed, see {@link Scope#analyze()}.
+	 * The syntax tree is held weakly, as it retains that of the whole script: if gone, parse the source code again.
+	 * 
+	 * @param analysis Populates the {@code scope} from the definition; must not retain the syntax tree.
+	 */
+	static private <T extends PythonTree> void defer(final Scope scope, final T def, final Class<T> type, final Consumer<T> analysis) {
+		final Token token = def.getNode().getToken();
+		final CharStream input = null == token ? null : token.getInputStream();
+		final int start = def.getCharStartIndex(),
+		          stop = def.getCharStopIndex(),
+		          col = def.getCol_offset();
+		final boolean reparseable = null != input && stop > start;
+		final T strong = reparseable ? null : def; // not captured otherwise
+		final WeakReference<T> weak = reparseable ? new WeakReference<>(def) : null;
+		scope.defer(() -> {
+			PythonTree d = reparseable ? weak.get() : strong;
+			if (null == d) d = reparse(source(input, start, stop, col));
+			if (type.isInstance(d)) analysis.accept(type.cast(d));
+		});
+	}
+	
+	/**
+	 * @param start The index of the first character of a statement, e.g. of a function definition including its decorators.
+	 * @param stop The index of its last character, or of the first one of the next statement.
+	 * @param col The indentation of the statement.
+	 * @return The source code of the statement, with the indentation of all its lines reduced by {@code col}
+	 *         so that it can be parsed on its own.
+	 */
+	static private String source(final CharStream input, final int start, final int stop, final int col) {
+		int last = Math.min(stop, input.size() -1);
+		if ('\n' == input.substring(last -1, last -1).charAt(0)) --last;
+		final String text = input.substring(start, last);
+		if (0 == col) return text;
+		final StringBuilder sb = new StringBuilder(text.length());
+		for (final String line : text.split("\n", -1)) {
+			int k = 0;
+			while (k < col && k < line.length() && (' ' == line.charAt(k) || '\t' == line.charAt(k))) ++k;
+			sb.append(line, k, line.length()).append('\n');
+		}
+		return sb.toString();
+	}
+	
+	/** @return The first statement of the source code, e.g. a function definition; null if it can't be parsed. */
+	static private PythonTree reparse(final String source) {
+		try {
+			mod m;
+			try {
+				m = ParserFacade.parse(source, CompileMode.exec, "<none>", new CompilerFlags());
+			} catch (Throwable t) {
+				m = IncrementalScriptParser.tolerate(source);
+			}
+			return null == m || null == m.getChildren() || m.getChildren().isEmpty() ? null : m.getChildren().get(0);
+		} catch (Throwable t) {
+			print(() -> "Could not parse again:\n" + source + "\n" + t);
+			return null;
 		}
-		parseNode(fn_scope, fn.getChildren(), null);
-		// Get the return type, if any
-		final PythonTree last = fn.getChildren().get(fn.getChildCount() -1);
-		final String returnClassName = last instanceof Return ? parseRight(last.getChildren().get(0), fn_scope).toString() : null;
-		parent.vars.put(name, new DefVarDotAutocompletions(name, returnClassName, argumentNames, fn_scope));
 	}
 	
 	/**
 	 * Adds an entry to the parent scope with the python classname, e.g. "Volume", with its parameters (from its __init__ method if any),
 	 * including as well the methods and fields from any superclass,
-	 * and adds another entry in the class scope for "self" with all the class method names.
+	 * and sets the class of the first argument ("self") of its methods to that entry.
+	 * 
+	 * Only the signatures of the methods are parsed; the other statements of the class body only when needed, see {@link Scope#analyze()}.
 	 * 
 	 * @param c
 	 * @param parent
 	 */
 	static public void parseClassDef(final ClassDef c, final Scope parent) {
 		final String pyClassname = c.getInternalName();
-		final Scope class_scope = parseNode(c.getChildren(), parent, pyClassname);
+		final Scope class_scope = new Scope(parent, pyClassname);
+		class_scope.column = c.getCol_offset();
+		boolean statements = false;
+		if (null != c.getChildren()) {
+			for (final PythonTree child: c.getChildren()) {
+				if (child instanceof FunctionDef) parseFunctionDef((FunctionDef)child, class_scope);
+				else statements = true;
+			}
+		}
+		if (statements) {
+			defer(class_scope, c, ClassDef.class, def -> parseNode(class_scope,
+					def.getChildren().stream().filter(child -> !(child instanceof FunctionDef)).collect(Collectors.toList()), pyClassname));
+		}
 		// Methods of the class
 		final List<CompletionText> classDotAutocompletions = new ArrayList<>();
 		// Iterate vars of the scope, which are those of the class only
@@ -287,38 +392,31 @@ public class JythonScriptParser {
 		for (final expr e: c.getInternalBases()) {
 			final DotAutocompletions da = parent.find(e.getText(), null);
 			if (null == da || null == da.getClassname())
-				print("Could not find completions and className for " + e.getText());
+				print(() -> "Could not find completions and className for " + e.getText());
 			else
 				superclassNames.add(da.getClassname());
 		}
 		// Search for the constructor __init__ if any to get the constructor parameters
 		final List<String> argumentNames = new ArrayList<>();
 		final ClassDotAutocompletions cda = new ClassDotAutocompletions(pyClassname, superclassNames, argumentNames, classDotAutocompletions, class_scope);
-		for (final PythonTree child: c.getChildren()) {
-			if (!(child instanceof FunctionDef)) continue;
-			final FunctionDef fn = (FunctionDef)child;
-			final List<PythonTree> args = fn.getInternalArgs().getChildren();
+		for (final DotAutocompletions da: class_scope.vars.values()) {
+			if (!(da instanceof DefVarDotAutocompletions)) continue;
+			final DefVarDotAutocompletions fnda = (DefVarDotAutocompletions)da;
+			final List<String> args = fnda.getArgumentNames();
 			if (args.size() > 0) {
 				// Populate class constructor argument list by reading them from the __init__ method
-				if ("__init__".equals(fn.getInternalName())) {
+				if ("__init__".equals(fnda.fnName)) {
 					// Add all arguments except the first one, which is the internal reference conventionally named "self"
-					argumentNames.addAll(args.subList(1, args.size()).stream()
-						.map(arg -> arg.getNode().toString()).collect(Collectors.toList()));
+					argumentNames.addAll(args.subList(1, args.size()));
 				}
-				// Add completions to the first argument (generally "self")
+				// Completions for the first argument (generally "self"), plus whichever it accumulates within the method when analyzed
 				// TODO check annotations, shouldn't add them if the function is static
-				final DefVarDotAutocompletions fnda = (DefVarDotAutocompletions)class_scope.vars.get(fn.getInternalName());
-				final DotAutocompletions argda = fnda.scope.vars.get(args.get(0).getNode().toString());
-				if (argda instanceof ClassDotAutocompletions) {
-					// Replace the autocompletions for the first argument with cda plus whichever autocompletions it accumulated within the function definition.
-					((ClassDotAutocompletions)argda).mutateIntoPlus(cda);
-				}
-				//.scope.vars.put(args.get(0).getNode().toString(), cda);
+				fnda.receiver = cda;
 			}
 		}
 		
 		// Add to the parent scope for expansion of the constructor name plus parameters 
-		parent.vars.put(pyClassname, cda);
+		parent.putVar(pyClassname, cda);
 	}
 	
 	/** Discover the class returned by the right statement in an assignment.
@@ -347,24 +445,19 @@ public class JythonScriptParser {
 			if (DotAutocompletions.EMPTY == da)
 				return da;
 			final String name = attr.getInternalAttr();
-			final String className = da.getClassname();
-			try {
-				final Class<?> c = Class.forName(className);
-				for (final Method m : c.getMethods())
-					if (m.getName().equals(name))
-						return new VarDotAutocompletions(m.getReturnType().getName());
-				return new VarDotAutocompletions(c.getField(name).getType().getName());
-			} catch (Exception e) {
-				print("Could not find method or field " + name + " in class " + className);
-			}
-			// Could also be a python module, e.g. attempting to autocomplete "os.path."
-			try {
-				final NModuleType module = Scope.indexer.loadModule(className + "." + name); // overly expensive: any way to check it exists without loading it?
-				if (null != module)
-					return new StaticDotAutocompletions(className  + "." + name);
-			} catch (Exception e) {
-				print("Not a python module: " + className + "." + name);
+			final List<String> classNames = da.getClassnames();
+			if (1 == classNames.size())
+				return Resolver.attribute(classNames.get(0), name); // memoized, a field, method or python module
+			// Any of several classes, e.g. returned by overloaded methods: the attribute of any of them
+			final Set<String> types = new LinkedHashSet<>();
+			DotAutocompletions found = DotAutocompletions.EMPTY;
+			for (final String className : classNames) {
+				final DotAutocompletions a = Resolver.attribute(className, name);
+				if (DotAutocompletions.EMPTY == a) continue;
+				if (DotAutocompletions.EMPTY == found) found = a;
+				types.addAll(a.getClassnames());
 			}
+			return types.size() > 1 ? new VarDotAutocompletions(new ArrayList<>(types)) : found;
 		}
 		if (right instanceof Call) {
 			// e.g. a method call, in particular the last one in the chain
@@ -383,4 +476,9 @@ public class JythonScriptParser {
 	static public final void print(Object s) {
 		if (DEBUG) System.out.println(s);
 	}
+	
+	/** Like {@link #print(Object)}, but the message is only built when {@link #DEBUG} is true. */
+	static public final void print(final Supplier<?> s) {
+		if (DEBUG) System.out.println(s.get());
+	}
 }
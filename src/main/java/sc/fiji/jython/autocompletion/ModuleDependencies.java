@@ -0,0 +1,95 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.python.indexer.Def;
+import org.python.indexer.Indexer;
+import org.python.indexer.NBinding;
+import org.python.indexer.types.NModuleType;
+
+/**
+ * Which loaded python module files depend on which others, to evict from the {@code Indexer}
+ * only a changed module file and those that import it, directly or indirectly.
+ * 
+ * Not thread-safe: access it while synchronized on the {@code Indexer}.
+ */
+final class ModuleDependencies {
+	
+	/** For each loaded file, the loaded files that import names from it. */
+	private final Map<String, Set<String>> dependents = new HashMap<>();
+	
+	/**
+	 * Record the dependencies of files just loaded by the indexer: any name bound in their module
+	 * and defined in another file makes them depend on that file.
+	 * 
+	 * @param indexer
+	 * @param files Files loaded by a call to {@code Indexer#loadModule(String)}.
+	 */
+	void record(final Indexer indexer, final Collection<String> files) {
+		for (final String file : files) {
+			final NModuleType mod;
+			try {
+				mod = indexer.getModuleForFile(file); // already loaded: returns the cached module
+			} catch (Exception e) {
+				JythonScriptParser.print(() -> "Could not find the module for file " + file);
+				continue;
+			}
+			if (null == mod || null == mod.getTable()) continue;
+			for (final NBinding binding : mod.getTable().values()) {
+				if (binding.getType() instanceof NModuleType)
+					add(((NModuleType)binding.getType()).getFile(), file);
+				for (final Def def : binding.getDefs())
+					add(def.getFile(), file);
+			}
+		}
+	}
+	
+	private void add(final String dependency, final String file) {
+		if (null == dependency || dependency.equals(file)) return;
+		dependents.computeIfAbsent(dependency, k -> new HashSet<>()).add(file);
+	}
+	
+	/**
+	 * Forget the file and all files that depend on it, directly or indirectly.
+	 * 
+	 * @return The file and all files that depend on it.
+	 */
+	Set<String> remove(final String file) {
+		final Set<String> removed = new HashSet<>();
+		final ArrayDeque<String> next = new ArrayDeque<>();
+		next.add(file);
+		while (!next.isEmpty()) {
+			final String f = next.poll();
+			if (!removed.add(f)) continue;
+			final Set<String> ds = dependents.remove(f);
+			if (null != ds) next.addAll(ds);
+		}
+		return removed;
+	}
+}
@@ -0,0 +1,167 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.python.indexer.types.NModuleType;
+import org.scijava.ui.swing.script.autocompletion.CompletionText;
+
+/**
+ * Loads python modules into the {@link Scope#indexer}, once per qualified name: concurrent requests for a module
+ * being loaded wait for that same load instead of queuing up for their own.
+ * 
+ * The indexer isn't thread-safe, so only the parsing of module files holds its monitor; watching the directories
+ * of the loaded files happens outside of it, and readers never take it: they get an immutable {@link Snapshot}
+ * of the names bound in the module, which evicting module files (see {@link Scope#evict(String)}) discards
+ * instead of modifying.
+ */
+final class ModuleLoader {
+	
+	/** The names bound in a loaded python module, as they were when it was loaded. */
+	static final class Snapshot {
+		final String qname;
+		/** Sorted, unmodifiable. */
+		final List<String> names;
+		/** The names as completions, shared. */
+		final CompletionList completions;
+		/** The module file, or null for builtin modules. */
+		final String file;
+		
+		private Snapshot(final String qname, final NModuleType mod) {
+			final ArrayList<String> names = new ArrayList<>(mod.getTable().keySet());
+			Collections.sort(names);
+			this.qname = qname;
+			this.names = Collections.unmodifiableList(names);
+			final List<CompletionText> completions = new ArrayList<>(names.size());
+			for (final String name : names)
+				completions.add(new CompletionText(name));
+			this.completions = CompletionList.of(completions);
+			this.file = mod.getFile();
+		}
+		
+		/** For {@link ModuleLoader#FAILED}. */
+		private Snapshot() {
+			this.qname = null;
+			this.names = Collections.emptyList();
+			this.completions = CompletionList.of(Collections.emptyList());
+			this.file = null;
+		}
+		
+		boolean isEmpty() {
+			return names.isEmpty();
+		}
+	}
+	
+	/** The loaded modules. Replaced, not cleared, so that loads that were in flight can't publish stale snapshots. */
+	static private volatile Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+	/** Marks a module that could not be loaded, so as not to try again until the modules or the load path change. */
+	static private final Snapshot FAILED = new Snapshot();
+	/** The loads in flight, by qualified name. */
+	static private final Map<String, CompletableFuture<Snapshot>> inflight = new ConcurrentHashMap<>();
+	
+	private ModuleLoader() {}
+	
+	/**
+	 * Load a python module, or wait for the load in flight of the same module.
+	 * 
+	 * @param qname The qualified name of the module, e.g. "os.path".
+	 * @return A snapshot of the module, or null if it could not be loaded.
+	 */
+	static Snapshot load(final String qname) {
+		final Map<String, Snapshot> snapshots = ModuleLoader.snapshots;
+		final Snapshot snapshot = snapshots.get(qname);
+		if (null != snapshot) return FAILED == snapshot ? null : snapshot;
+		final CompletableFuture<Snapshot> future = new CompletableFuture<>();
+		final CompletableFuture<Snapshot> prior = inflight.putIfAbsent(qname, future);
+		if (null != prior) return prior.join();
+		try {
+			final Snapshot loaded = loadNow(qname);
+			snapshots.put(qname, null == loaded ? FAILED : loaded);
+			future.complete(loaded);
+			return loaded;
+		} catch (Throwable t) {
+			future.complete(null);
+			throw t;
+		} finally {
+			inflight.remove(qname, future);
+		}
+	}
+	
+	static private Snapshot loadNow(final String qname) {
+		final List<String> loaded;
+		final Snapshot snapshot;
+		synchronized (Scope.indexer) {
+			final Set<String> before = new HashSet<>(Scope.indexer.getLoadedFiles());
+			try (final PhaseEvent e = PhaseEvent.begin("module")) {
+				final NModuleType mod = Scope.indexer.loadModule(qname);
+				if (null == mod) return null;
+				snapshot = new Snapshot(qname, mod);
+				e.candidates(snapshot.names.size());
+			} catch (Exception e) {
+				System.out.println("Could not load python module named " + qname);
+				e.printStackTrace();
+				return null;
+			}
+			// The files loaded by this call: the module, its parent packages, and the modules it imports
+			loaded = Scope.indexer.getLoadedFiles().stream()
+					.filter(s -> !before.contains(s))
+					.collect(Collectors.toList());
+			Scope.dependencies.record(Scope.indexer, loaded);
+			if (!loaded.isEmpty()) BuiltinIndex.changed();
+		}
+		if (loaded.isEmpty() && null == snapshot.file)
+			JythonScriptParser.print(() -> "Python module " + qname + " doesn't have an associated file path.");
+		Scope.watch(loaded);
+		return snapshot;
+	}
+	
+	/** Discard all snapshots, for the modules to be loaded anew when next requested. Call while synchronized on the indexer. */
+	static void invalidate() {
+		snapshots = new ConcurrentHashMap<>();
+		BuiltinIndex.changed();
+	}
+	
+	/** Forget the modules that could not be loaded, to try again when next requested, e.g. when the load path changed. */
+	static void forgetFailures() {
+		snapshots.values().removeIf(s -> FAILED == s);
+	}
+	
+	/** @return The directory of the package named {@code qname} within each of the directories of the load path. */
+	static List<File> packageDirs(final String qname) {
+		final List<File> dirs = new ArrayList<>();
+		for (final String dir : Scope.loadPath()) {
+			final File fdir = new File(dir + qname.replace('.', '/'));
+			if (fdir.isDirectory()) dirs.add(fdir);
+		}
+		return dirs;
+	}
+}
@@ -0,0 +1,334 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A sorted index of the names of the python modules found under each directory of the load path
+ * of the {@code Scope#indexer}, for completing module names after "import" and "from".
+ * 
+ * The index of a directory is built in parallel and in the background when first needed, and then kept up to date
+ * by watching its subdirectories for created and deleted files, up to {@link #MAX_WATCHED} directories in total
+ * so as not to exhaust the watches of the operating system (e.g. inotify's). Beyond that, and for file systems
+ * that don't report changes, e.g. network mounts, a module not found triggers a rescan of the directories
+ * whose modification time changed, at most every {@link #RESCAN_INTERVAL} milliseconds.
+ */
+public final class ModulePathIndex {
+	
+	/** For each directory of the load path, the sorted names of the modules under it. */
+	static private final Map<String, Root> roots = new ConcurrentHashMap<>();
+	/** Watched directories. */
+	static private final Map<WatchKey, Dir> keys = new ConcurrentHashMap<>();
+	
+	static private WatchService watcher;
+	static private Thread index_watcher;
+	
+	/** The maximum number of directories to watch. */
+	static public int MAX_WATCHED = 1024;
+	/** The minimum time between rescans of the modification times of the indexed directories, in milliseconds. */
+	static public long RESCAN_INTERVAL = 2000;
+	
+	static private final AtomicInteger n_watched = new AtomicInteger();
+	static private final AtomicLong lastRescan = new AtomicLong();
+	
+	static private final class Root {
+		final Path path;
+		final NavigableSet<String> modules = new ConcurrentSkipListSet<>();
+		/** Real paths of indexed directories, to avoid cycles through symbolic links. */
+		final Set<Path> visited = ConcurrentHashMap.newKeySet();
+		/** The modification time of each indexed directory when listed, for rescanning. */
+		final Map<Path, Long> mtimes = new ConcurrentHashMap<>();
+		private boolean started = false;
+		private volatile boolean complete = false;
+		
+		Root(final String path) {
+			this.path = Paths.get(path).toAbsolutePath();
+		}
+		
+		/** Index all directories under the root in the background, once. Meanwhile, callers see a partial index. */
+		void build() {
+			synchronized (this) {
+				if (started) return;
+				started = true;
+			}
+			ForkJoinPool.commonPool().execute(() -> {
+				try {
+					if (Files.isDirectory(path))
+						new Indexing(this, path).invoke();
+				} finally {
+					complete = true;
+					Resolver.invalidateModules(); // names not found meanwhile
+				}
+			});
+		}
+		
+		/** Index anew the directories whose modification time changed, and the subdirectories of those. */
+		void rescan() {
+			if (!complete) return;
+			boolean changed = false;
+			if (mtimes.isEmpty() && Files.isDirectory(path)) { // created since
+				new Indexing(this, path).invoke();
+				changed = true;
+			}
+			for (final Map.Entry<Path, Long> e : mtimes.entrySet()) {
+				final Path dir = e.getKey();
+				if (e.getValue() == mtime(dir)) continue;
+				changed = true;
+				mtimes.remove(dir);
+				try {
+					remove(this, dir, dir.toRealPath());
+				} catch (IOException ioe) {
+					remove(this, dir, dir.toAbsolutePath()); // deleted
+					continue;
+				}
+				new Indexing(this, dir).invoke();
+			}
+			if (changed) Resolver.invalidateModules();
+		}
+	}
+	
+	static private final class Dir {
+		final Root root;
+		final Path path, real;
+		Dir(final Root root, final Path path, final Path real) {
+			this.root = root;
+			this.path = path;
+			this.real = real;
+		}
+	}
+	
+	static {
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			index_watcher = new Thread() {
+				@Override
+				public void run() {
+					while (true) {
+						if (isInterrupted()) return;
+						WatchKey key = null;
+						try {
+							key = watcher.take(); // waits until there is an event
+						} catch (InterruptedException x) {
+							return;
+						}
+						final Dir dir = keys.get(key);
+						if (null == dir) {
+							key.cancel();
+							continue;
+						}
+						for (final WatchEvent<?> event : key.pollEvents())
+							update(dir, event);
+						if (!key.reset()) {
+							if (null != keys.remove(key)) n_watched.decrementAndGet();
+							dir.root.visited.remove(dir.real);
+						}
+					}
+				}
+			};
+			index_watcher.setPriority(Thread.MIN_PRIORITY);
+			index_watcher.setDaemon(true);
+			index_watcher.start();
+		} catch (Exception e) {
+			System.out.println("Failed to start filesystem watcher service for the python module path index");
+		}
+	}
+	
+	/**
+	 * Find the names of python modules under the directories of the load path.
+	 * 
+	 * @param prefix The start of the module name, e.g. "os.pa"; can be empty.
+	 * @return The names of all modules that start with the prefix, sorted per directory of the load path.
+	 */
+	static public List<String> findStartsWith(final String prefix) {
+		final List<String> names = new ArrayList<>();
+		for (final String dir : Scope.loadPath()) {
+			final Root root = roots.computeIfAbsent(dir, Root::new);
+			root.build(); // only the first time
+			names.addAll(root.modules.subSet(prefix, true, prefix + Character.MAX_VALUE, false));
+		}
+		if (names.isEmpty()) rescan();
+		return names;
+	}
+	
+	/** @return Whether a python module named {@code qname} exists under any directory of the load path. */
+	static public boolean contains(final String qname) {
+		for (final String dir : Scope.loadPath()) {
+			final Root root = roots.computeIfAbsent(dir, Root::new);
+			root.build(); // only the first time
+			if (root.modules.contains(qname)) return true;
+		}
+		rescan();
+		return false;
+	}
+	
+	/** @return Whether the index of every directory of the load path is complete, and therefore a module not found doesn't exist. */
+	static public boolean ready() {
+		for (final String dir : Scope.loadPath()) {
+			final Root root = roots.get(dir);
+			if (null == root || !root.complete) return false;
+		}
+		return true;
+	}
+	
+	/** Rescan all indexes in the background, unless done recently. */
+	static private void rescan() {
+		final long now = System.currentTimeMillis(),
+		           last = lastRescan.get();
+		if (now - last < RESCAN_INTERVAL || !lastRescan.compareAndSet(last, now)) return;
+		ForkJoinPool.commonPool().execute(() -> {
+			for (final Root root : roots.values())
+				root.rescan();
+		});
+	}
+	
+	/** @return The modification time of the directory, or -1 if it doesn't exist anymore. */
+	static private long mtime(final Path dir) {
+		try {
+			return Files.getLastModifiedTime(dir).toMillis();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+	
+	/** Index a directory and, in parallel, its subdirectories. */
+	static private final class Indexing extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final Root root;
+		final Path dir;
+		Indexing(final Root root, final Path dir) {
+			this.root = root;
+			this.dir = dir;
+		}
+		@Override
+		protected void compute() {
+			final Path real;
+			try {
+				real = dir.toRealPath();
+				if (!root.visited.add(real)) return; // FOLLOW_LINKS, without cycles
+			} catch (IOException e) {
+				return;
+			}
+			watch(root, dir, real);
+			root.mtimes.put(dir, mtime(dir)); // before listing: a change while listing is seen by the next rescan
+			final List<Indexing> subdirs = new ArrayList<>();
+			try (final DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+				for (final Path path : ds) {
+					if (Files.isDirectory(path)) subdirs.add(new Indexing(root, path));
+					else add(root, path);
+				}
+			} catch (IOException e) {
+				System.out.println("Could not list directory " + dir + " :: " + e.getMessage());
+			}
+			invokeAll(subdirs);
+		}
+	}
+	
+	static private void watch(final Root root, final Path dir, final Path real) {
+		if (null == watcher) return;
+		if (n_watched.incrementAndGet() > MAX_WATCHED) {
+			n_watched.decrementAndGet(); // to be rescanned instead
+			return;
+		}
+		try {
+			final WatchKey key = dir.register(watcher,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE);
+			if (null != keys.put(key, new Dir(root, dir, real))) n_watched.decrementAndGet(); // already watched
+		} catch (IOException e) {
+			n_watched.decrementAndGet();
+			JythonScriptParser.print(() -> "Could not watch directory " + dir + ", to be rescanned instead :: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * @return The module name for a python file under the root, e.g. "a.b.c" for "a/b/c.py" and "a.b" for "a/b/__init__.py",
+	 *         or null if not a python file.
+	 */
+	static private String moduleName(final Root root, final Path file) {
+		final String s = root.path.relativize(file).toString();
+		if (!s.endsWith(".py")) return null;
+		final String name = (s.endsWith("__init__.py") ?
+				  s.substring(0, Math.max(0, s.length() - 12)) // remove ending "/__init__.py"
+				: s.substring(0, s.length() - 3)) // remove ending ".py"
+				.replace('/', '.').replace('\\', '.');
+		return name.isEmpty() ? null : name;
+	}
+	
+	static private void add(final Root root, final Path file) {
+		final String name = moduleName(root, file);
+		if (null != name) root.modules.add(name);
+	}
+	
+	static private void update(final Dir dir, final WatchEvent<?> event) {
+		Resolver.invalidateModules();
+		if (StandardWatchEventKinds.OVERFLOW == event.kind()) {
+			// Events were lost: index the directory anew
+			remove(dir.root, dir.path, dir.real);
+			new Indexing(dir.root, dir.path).invoke();
+			return;
+		}
+		final Path path = dir.path.resolve((Path)event.context());
+		if (StandardWatchEventKinds.ENTRY_CREATE == event.kind()) {
+			if (Files.isDirectory(path)) new Indexing(dir.root, path).invoke();
+			else add(dir.root, path);
+		} else {
+			// Deleted: either a file or a directory, there's no way to know anymore
+			final String name = moduleName(dir.root, path);
+			if (null != name) dir.root.modules.remove(name);
+			else remove(dir.root, path, dir.real.resolve((Path)event.context()));
+		}
+	}
+	
+	/** Remove from the index all modules under the directory, so that it can be indexed anew. */
+	static private void remove(final Root root, final Path dir, final Path real) {
+		root.visited.removeIf(p -> p.startsWith(real));
+		final String s = root.path.relativize(dir).toString();
+		if (s.isEmpty()) {
+			root.modules.clear();
+			return;
+		}
+		final String prefix = s.replace('/', '.').replace('\\', '.');
+		root.modules.remove(prefix); // its __init__.py
+		root.modules.subSet(prefix + ".", true, prefix + "." + Character.MAX_VALUE, false).clear();
+	}
+}
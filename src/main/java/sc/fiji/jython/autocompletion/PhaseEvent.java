@@ -0,0 +1,212 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Times a phase of the autocompletion, such as parsing, loading a python module or ranking the completions,
+ * and records it as a JDK Flight Recorder event named "sc.fiji.jython.autocompletion.Phase", with the code length,
+ * the number of scopes and the number of candidates. Use with try-with-resources:
+ * 
+ * <pre>
+ * try (final PhaseEvent e = PhaseEvent.begin("parse")) {
+ *     e.codeLength(code.length());
+ *     ...
+ * }
+ * </pre>
+ * 
+ * Set the values inside the block, or else javac -Xlint:try warns that {@code e} is never referenced;
+ * for phases without values, call {@link #close()} in a finally block instead.
+ * 
+ * Events are recorded only while a recording is running, e.g. started with -XX:StartFlightRecording
+ * or from JDK Mission Control; otherwise {@link #begin(String)} returns a shared no-op instance.
+ * Whether the event is enabled is cached, and updated by a listener when a recording starts or stops.
+ * The jdk.jfr API is looked up reflectively, because this library targets java 8, whose older releases lack it.
+ */
+final class PhaseEvent implements AutoCloseable {
+	
+	static private final PhaseEvent NOOP = new PhaseEvent(null, null);
+	
+	/** The jdk.jfr.EventFactory, and its jdk.jfr.EventType; null when JFR isn't available. */
+	static private final Object factory, type;
+	static private final Method isEnabled, newEvent, begin, set, commit;
+	/** Whether a running recording includes the event, as of the last change of the state of any recording. */
+	static private volatile boolean enabled = false;
+	
+	static {
+		Object f = null, t = null;
+		Method[] m = new Method[5];
+		try {
+			final Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement"),
+			               valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor"),
+			               eventFactory = Class.forName("jdk.jfr.EventFactory"),
+			               eventType = Class.forName("jdk.jfr.EventType"),
+			               event = Class.forName("jdk.jfr.Event");
+			final Constructor<?> ae = annotationElement.getConstructor(Class.class, Object.class),
+			                     vd = valueDescriptor.getConstructor(Class.class, String.class, List.class);
+			final Class<?> name = Class.forName("jdk.jfr.Name"),
+			               label = Class.forName("jdk.jfr.Label"),
+			               category = Class.forName("jdk.jfr.Category"),
+			               description = Class.forName("jdk.jfr.Description");
+			final List<Object> annotations = Arrays.asList(
+					ae.newInstance(name, "sc.fiji.jython.autocompletion.Phase"),
+					ae.newInstance(label, "Autocompletion Phase"),
+					ae.newInstance(category, new String[]{"Jython", "Autocompletion"}),
+					ae.newInstance(description, "A phase of the jython autocompletion"));
+			// In the order of the indices used in close()
+			final List<Object> fields = Arrays.asList(
+					vd.newInstance(String.class, "phase", Collections.singletonList(ae.newInstance(label, "Phase"))),
+					vd.newInstance(int.class, "codeLength", Collections.singletonList(ae.newInstance(label, "Code Length"))),
+					vd.newInstance(int.class, "scopes", Collections.singletonList(ae.newInstance(label, "Scopes"))),
+					vd.newInstance(int.class, "candidates", Collections.singletonList(ae.newInstance(label, "Candidates"))));
+			f = eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+			t = eventFactory.getMethod("getEventType").invoke(f);
+			m[0] = eventType.getMethod("isEnabled");
+			m[1] = eventFactory.getMethod("newEvent");
+			m[2] = event.getMethod("begin");
+			m[3] = event.getMethod("set", int.class, Object.class);
+			m[4] = event.getMethod("commit");
+		} catch (ClassNotFoundException e) {
+			// JFR not available: events are no-ops
+			f = t = null;
+		} catch (Exception e) {
+			System.out.println("Could not define the JFR event for autocompletion phases.");
+			e.printStackTrace();
+			f = t = null;
+		}
+		factory = f;
+		type = t;
+		isEnabled = m[0];
+		newEvent = m[1];
+		begin = m[2];
+		set = m[3];
+		commit = m[4];
+	}
+	
+	static {
+		if (null != factory) {
+			refresh();
+			try {
+				// Implement jdk.jfr.FlightRecorderListener, to be told when a recording starts, stops or closes
+				final Class<?> listener = Class.forName("jdk.jfr.FlightRecorderListener");
+				final Object proxy = Proxy.newProxyInstance(listener.getClassLoader(), new Class<?>[]{listener}, (p, method, args) -> {
+					switch (method.getName()) {
+					case "recordingStateChanged": refresh(); return null;
+					case "hashCode": return System.identityHashCode(p);
+					case "equals": return p == args[0];
+					case "toString": return "PhaseEvent listener";
+					default: return null;
+					}
+				});
+				Class.forName("jdk.jfr.FlightRecorder").getMethod("addListener", listener).invoke(null, proxy);
+			} catch (Exception e) {
+				System.out.println("Could not listen to JFR recordings: autocompletion phases are not recorded.");
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/** Update whether the event is enabled. */
+	static private void refresh() {
+		try {
+			enabled = (Boolean)isEnabled.invoke(type);
+		} catch (Exception e) {
+			enabled = false;
+		}
+	}
+	
+	private final String phase;
+	/** The jdk.jfr.Event, or null for the no-op instance. */
+	private final Object event;
+	private int codeLength = -1,
+	            scopes = -1,
+	            candidates = -1;
+	
+	private PhaseEvent(final String phase, final Object event) {
+		this.phase = phase;
+		this.event = event;
+	}
+	
+	/**
+	 * Start timing a phase.
+	 * 
+	 * @param phase The name of the phase, e.g. "parse".
+	 * @return A new event, or a no-op one when no recording includes it.
+	 */
+	static PhaseEvent begin(final String phase) {
+		if (!enabled) return NOOP;
+		try {
+			final Object event = newEvent.invoke(factory);
+			begin.invoke(event);
+			return new PhaseEvent(phase, event);
+		} catch (Exception e) {
+			return NOOP;
+		}
+	}
+	
+	/** Whether this event will be recorded: use to skip computing costly values. */
+	boolean isEnabled() {
+		return null != this.event;
+	}
+	
+	PhaseEvent codeLength(final int codeLength) {
+		this.codeLength = codeLength;
+		return this;
+	}
+	
+	PhaseEvent scopes(final int scopes) {
+		this.scopes = scopes;
+		return this;
+	}
+	
+	/** Counts the {@code scope} and its descendants, only when this event will be recorded. */
+	PhaseEvent scopes(final Scope scope) {
+		if (null != this.event) this.scopes = scope.countScopes();
+		return this;
+	}
+	
+	PhaseEvent candidates(final int candidates) {
+		this.candidates = candidates;
+		return this;
+	}
+	
+	/** End the timing and record the event. */
+	@Override
+	public void close() {
+		if (null == this.event) return;
+		try {
+			set.invoke(this.event, 0, this.phase);
+			set.invoke(this.event, 1, this.codeLength);
+			set.invoke(this.event, 2, this.scopes);
+			set.invoke(this.event, 3, this.candidates);
+			commit.invoke(this.event);
+		} catch (Exception e) {
+			// Not worth interrupting the autocompletion
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Fill in the caches of completions for commonly used java classes and python modules in a low priority
+ * background thread, so that the first completion after e.g. "IJ." or "imp." doesn't pay for class loading
+ * and reflection. Started once the {@link JythonAutoCompletions} listener is registered.
+ * 
+ * The classes and modules are those listed in {@link #NAMES}, followed by those most imported
+ * in the user's scripts (see {@link UsageStats#topImports(int)}).
+ */
+public final class Prewarm {
+	
+	/** Whether to prewarm at all; read when the prewarming thread starts running. */
+	static public boolean ENABLED = true;
+	
+	/** The maximum number of the user's most imported classes and modules to prewarm. */
+	static public int MAX_RECENT_IMPORTS = 32;
+	
+	/** The qualified names of the classes and modules to prewarm, in order. Those not found are skipped. */
+	static public final List<String> NAMES = new CopyOnWriteArrayList<>(Arrays.asList(
+			"ij.IJ",
+			"ij.ImagePlus",
+			"ij.ImageStack",
+			"ij.WindowManager",
+			"ij.process.ImageProcessor",
+			"ij.process.ByteProcessor",
+			"ij.process.ShortProcessor",
+			"ij.process.FloatProcessor",
+			"ij.process.ColorProcessor",
+			"ij.gui.Roi",
+			"ij.gui.GenericDialog",
+			"ij.plugin.frame.RoiManager",
+			"ij.measure.ResultsTable",
+			"ij.io.Opener",
+			"ij.io.FileSaver",
+			"net.imglib2.img.display.imagej.ImageJFunctions",
+			"net.imglib2.view.Views",
+			"java.io.File",
+			"java.lang.Math",
+			"java.lang.String",
+			"java.lang.System",
+			"java.util.ArrayList",
+			"java.util.HashMap",
+			"os",
+			"os.path",
+			"sys",
+			"re"));
+	
+	static private Thread thread = null;
+	
+	private Prewarm() {}
+	
+	/** Start prewarming in a background thread, unless already started or not {@link #ENABLED}. */
+	static public synchronized void start() {
+		if (null != thread) return;
+		thread = new Thread(Prewarm::run, "Jython autocompletion prewarm");
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	static private void run() {
+		if (!ENABLED) return;
+		final Set<String> names = new LinkedHashSet<>(NAMES);
+		names.addAll(UsageStats.topImports(MAX_RECENT_IMPORTS));
+		try (final PhaseEvent e = PhaseEvent.begin("prewarm")) {
+			e.candidates(names.size());
+			for (final String qname : names) {
+				if (Thread.currentThread().isInterrupted()) return;
+				warm(qname);
+			}
+		}
+	}
+	
+	/** Load the class or python module named {@code qname} and compute its completions, as a completion would. */
+	static void warm(final String qname) {
+		try {
+			switch (Resolver.resolve(qname)) {
+			case PYTHON_MODULE:
+				ModuleLoader.load(qname);
+				break;
+			case JAVA_CLASS:
+				Resolver.membersFor(qname);
+				break;
+			default:
+				JythonScriptParser.print(() -> "Nothing to prewarm for " + qname);
+			}
+		} catch (Exception e) {
+			System.out.println("Could not prewarm completions for " + qname);
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.RandomAccess;
+
+import org.fife.ui.autocomplete.Completion;
+import org.fife.ui.autocomplete.CompletionProvider;
+import org.scijava.ui.swing.script.autocompletion.CompletionText;
+
+/**
+ * Filter and rank the candidate fields and methods for a dot completion, keeping only the best {@code k}.
+ * 
+ * Candidates are ranked by how well they match the seed (see {@link FuzzyMatcher}), then by how often
+ * they have been used (see {@link UsageStats}), then by the quality of their fuzzy match, then by replacement text.
+ * Instead of sorting all candidates, which for wide classes number in the hundreds, a bounded heap
+ * holds the best {@code k} seen so far. What ranking needs of each candidate is precomputed in the shared
+ * {@link CompletionList}, a candidate is allocated an entry only when it enters the heap, and the
+ * {@code Completion} of each of the best is created only when the list is read, e.g. when the popup shows it.
+ */
+final class Ranking {
+	
+	/** A candidate that passed the filter, with its rank computed once. */
+	static private final class Ranked implements Comparable<Ranked> {
+		final CompletionText text;
+		final String replacement;
+		final int tier,
+		          usage,
+		          score;
+		
+		Ranked(final CompletionText text, final String replacement, final int tier, final int usage, final int score) {
+			this.text = text;
+			this.replacement = replacement;
+			this.tier = tier;
+			this.usage = usage;
+			this.score = score;
+		}
+		
+		/** Best first. */
+		@Override
+		public int compareTo(final Ranked o) {
+			return compare(this.tier, this.usage, this.score, this.replacement, o);
+		}
+	}
+	
+	/** The best completions in rank order, each created on first access. */
+	static private final class Top extends AbstractList<Completion> implements RandomAccess {
+		final CompletionProvider provider;
+		final String pre;
+		final Ranked[] best;
+		final Completion[] completions;
+		
+		Top(final CompletionProvider provider, final String pre, final Ranked[] best) {
+			this.provider = provider;
+			this.pre = pre;
+			this.best = best;
+			this.completions = new Completion[best.length];
+		}
+		
+		@Override
+		public Completion get(final int index) {
+			Completion c = completions[index];
+			if (null == c) {
+				final Ranked r = best[index];
+				c = completions[index] = r.text.getCompletion(provider, pre.isEmpty() ? r.replacement : pre + r.replacement);
+			}
+			return c;
+		}
+		
+		@Override
+		public int size() {
+			return best.length;
+		}
+	}
+	
+	private Ranking() {}
+	
+	static private int compare(final int tier, final int usage, final int score, final String replacement, final Ranked o) {
+		if (tier != o.tier) return o.tier - tier;
+		if (usage != o.usage) return o.usage > usage ? 1 : -1;
+		if (score != o.score) return o.score - score;
+		return replacement.compareTo(o.replacement);
+	}
+	
+	/**
+	 * @param provider    The provider for the new {@code Completion} instances.
+	 * @param candidates  The fields and methods to choose from, preferably a shared {@link CompletionList}.
+	 * @param seed        The text typed after the dot, possibly empty.
+	 * @param pre         The text to prepend to the replacement text of each completion.
+	 * @param k           The maximum number of completions to return, or zero or less for all.
+	 * @return The best {@code k} completions, in rank order, as an immutable list.
+	 */
+	static List<Completion> top(final CompletionProvider provider, final List<CompletionText> candidates,
+			final String seed, final String pre, final int k) {
+		final CompletionList list = CompletionList.of(candidates);
+		final FuzzyMatcher matcher = new FuzzyMatcher(seed);
+		final int bound = k > 0 ? k : Integer.MAX_VALUE;
+		// The worst of the best so far at the head
+		final PriorityQueue<Ranked> heap = new PriorityQueue<>(Math.min(bound, Math.max(1, list.size())), Collections.reverseOrder());
+		for (int i = 0; i < list.size(); ++i) {
+			final String replacement = list.replacements[i];
+			final int score = matcher.score(replacement, list.lowerCase[i], list.masks[i]);
+			if (FuzzyMatcher.NONE == score) continue;
+			final int tier = FuzzyMatcher.tier(score),
+			          usage = UsageStats.countName(list.names[i]);
+			if (heap.size() < bound) heap.add(new Ranked(list.get(i), replacement, tier, usage, score));
+			else if (compare(tier, usage, score, replacement, heap.peek()) < 0) {
+				heap.poll();
+				heap.add(new Ranked(list.get(i), replacement, tier, usage, score));
+			}
+		}
+		if (heap.isEmpty()) return Collections.emptyList();
+		final Ranked[] best = heap.toArray(new Ranked[heap.size()]);
+		Arrays.sort(best);
+		return new Top(provider, pre, best);
+	}
+	
+	/**
+	 * The candidates whose replacement text starts with the seed, ignoring case, in their order and unranked:
+	 * cheaper than {@link #top(CompletionProvider, List, String, String, int)}, to offer as partial results meanwhile.
+	 * 
+	 * @return The matching completions, as an immutable list.
+	 */
+	static List<Completion> unranked(final CompletionProvider provider, final List<CompletionText> candidates,
+			final String seed, final String pre) {
+		final CompletionList list = CompletionList.of(candidates);
+		final String lowerCaseSeed = seed.toLowerCase();
+		final List<Ranked> matching = new ArrayList<>();
+		for (int i = 0; i < list.size(); ++i)
+			if (list.lowerCase[i].startsWith(lowerCaseSeed))
+				matching.add(new Ranked(list.get(i), list.replacements[i], 0, 0, 0));
+		if (matching.isEmpty()) return Collections.emptyList();
+		return new Top(provider, pre, matching.toArray(new Ranked[matching.size()]));
+	}
+}
@@ -0,0 +1,266 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches what a qualified name such as "os.path", "ij.IJ" or "ij.IJ.getImage" resolves to,
+ * including when it resolves to nothing, so that failed lookups aren't attempted again on every request.
+ * 
+ * Python modules are found without loading them, among the builtin modules of the indexer,
+ * jython's standard library (see {@link StdlibModules}) and the modules under the load path (see {@link ModulePathIndex}).
+ * 
+ * Python entries are invalidated when module files change (see {@link Scope#evict(String)}) or the load path grows,
+ * and all entries are invalidated when the class loader changes (see {@link JythonAutoCompletions#setClassLoader(ClassLoader)}), e.g. after Fiji refreshes its plugins.
+ * Java classes are described from their class files when in a jar file (see {@link ClassIndex}), without loading them;
+ * otherwise they are loaded without initializing them, and held weakly so that their class loaders can be garbage collected.
+ * 
+ * Also caches what each attribute of a type evaluates to, e.g. "getProcessor" of "ij.ImagePlus", so that
+ * resolving each link of a chain of calls such as {@code IJ.getImage().getProcessor().getPixels()} costs two map lookups.
+ */
+final class Resolver {
+	
+	enum Kind { PYTHON_MODULE, JAVA_CLASS, JAVA_STATIC_MEMBER, NOT_FOUND }
+	
+	static private final class Entry {
+		final Kind kind;
+		/** For a JAVA_CLASS, its members; for a JAVA_STATIC_MEMBER, those of the class that declares the member.
+		 *  Either read from class files, or else those of the loaded {@code type}. */
+		final ClassMembers members;
+		final WeakReference<Class<?>> type;
+		
+		Entry(final Kind kind, final ClassMembers members) {
+			this.kind = kind;
+			this.members = members;
+			this.type = null;
+		}
+		
+		Entry(final Kind kind, final Class<?> type) {
+			this.kind = kind;
+			this.members = null;
+			this.type = new WeakReference<>(type);
+		}
+		
+		/** The same class, for another kind. */
+		Entry(final Kind kind, final Entry other) {
+			this.kind = kind;
+			this.members = other.members;
+			this.type = other.type;
+		}
+		
+		/** @return The members, or null if the class was garbage collected. */
+		ClassMembers members() {
+			if (null != members) return members;
+			final Class<?> c = type.get();
+			return null == c ? null : ClassMembers.of(c);
+		}
+	}
+	
+	static private final Entry NOT_FOUND = new Entry(Kind.NOT_FOUND, (ClassMembers)null);
+	
+	static private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+	
+	/** Maximum number of names not found kept per type, see {@link #attribute(String, String)}. */
+	static public int MAX_MISSES = 256;
+	
+	/** By the name of the type and then of the attribute, see {@link #attribute(String, String)}. */
+	static private final Map<String, Map<String, DotAutocompletions>> attributes = new ConcurrentHashMap<>();
+	
+	static private WeakReference<ClassLoader> loader = new WeakReference<>(null);
+	
+	/** Incremented by {@link #invalidateModules()}: what was looked up meanwhile may be stale, and is not cached. */
+	static private final AtomicLong generation = new AtomicLong();
+	
+	private Resolver() {}
+	
+	/**
+	 * @param qname A qualified name, e.g. "os.path", "ij.IJ" or "ij.IJ.getImage".
+	 * @return What the name is, trying first a python module, then a java class, then a static member of a java class.
+	 */
+	static Kind resolve(final String qname) {
+		return entry(qname).kind;
+	}
+	
+	/** @return The members of the java class named {@code qname}, or null if not found. */
+	static ClassMembers membersFor(final String qname) {
+		final Entry e = entry(qname);
+		if (Kind.JAVA_CLASS != e.kind) return null;
+		final ClassMembers members = e.members();
+		if (null != members) return members;
+		cache.remove(qname); // garbage collected
+		return membersFor(qname);
+	}
+	
+	/** @return The members of the java class that declares the static field or method {@code qname}, or null if not one. */
+	static ClassMembers declaringMembersFor(final String qname) {
+		final Entry e = entry(qname);
+		if (Kind.JAVA_STATIC_MEMBER != e.kind) return null;
+		final ClassMembers members = e.members();
+		if (null != members) return members;
+		cache.remove(qname);
+		return declaringMembersFor(qname);
+	}
+	
+	/**
+	 * @param className The type of a value, e.g. "ij.ImagePlus", or a python module, e.g. "os".
+	 * @param name The name of a field or method of the type, e.g. "getProcessor", or of a submodule, e.g. "path".
+	 * @return What {@code className.name} evaluates to: the type of the field or the return type of the method,
+	 *         or all those of the overloads of the method and fields so named when they differ (see {@link ClassMembers#typesOf(String)});
+	 *         or a python module; or {@code DotAutocompletions.EMPTY} if not found. Shared: not to be modified.
+	 */
+	static DotAutocompletions attribute(final String className, final String name) {
+		if (null == className) return DotAutocompletions.EMPTY;
+		checkLoader();
+		final Map<String, DotAutocompletions> byName = attributes.computeIfAbsent(className, k -> new ConcurrentHashMap<>());
+		final DotAutocompletions da = byName.get(name);
+		if (null != da) return da;
+		final long gen = generation.get();
+		final DotAutocompletions found = lookupAttribute(className, name);
+		if (gen != generation.get()) return found;
+		if (DotAutocompletions.EMPTY == found && !keepMiss(className, name, byName)) return found;
+		final DotAutocompletions prior = byName.putIfAbsent(name, found);
+		return null == prior ? found : prior;
+	}
+	
+	/**
+	 * Names being typed, e.g. "getPro" of "ij.ImagePlus", aren't worth keeping: each would be looked up only once.
+	 * Nor are more than {@link #MAX_MISSES} per type, whose names found are bounded by its members.
+	 */
+	static private boolean keepMiss(final String className, final String name, final Map<String, DotAutocompletions> byName) {
+		if (byName.size() >= MAX_MISSES) return false;
+		final ClassMembers members = membersFor(className);
+		return null != members && !members.hasNameStartingWith(name);
+	}
+	
+	/** @return The number of names not found that are kept for the type, see {@link #keepMiss(String, String, Map)}. */
+	static int misses(final String className) {
+		final Map<String, DotAutocompletions> byName = attributes.get(className);
+		if (null == byName) return 0;
+		int n = 0;
+		for (final DotAutocompletions da : byName.values())
+			if (DotAutocompletions.EMPTY == da) ++n;
+		return n;
+	}
+	
+	static private DotAutocompletions lookupAttribute(final String className, final String name) {
+		final ClassMembers members = membersFor(className);
+		if (null != members) {
+			final List<String> types = members.typesOf(name);
+			if (!types.isEmpty())
+				return new VarDotAutocompletions(types);
+			JythonScriptParser.print(() -> "Could not find method or field " + name + " in class " + className);
+		}
+		// Could also be a python module, e.g. attempting to autocomplete "os.path."
+		final String qname = className + "." + name;
+		if (Kind.PYTHON_MODULE == resolve(qname))
+			return new StaticDotAutocompletions(qname);
+		JythonScriptParser.print(() -> "Not a python module: " + qname);
+		return DotAutocompletions.EMPTY;
+	}
+	
+	/** Forget all python modules and names not found, e.g. when module files or the load path change. */
+	static void invalidateModules() {
+		generation.incrementAndGet();
+		cache.values().removeIf(e -> Kind.PYTHON_MODULE == e.kind || Kind.NOT_FOUND == e.kind);
+		attributes.clear();
+	}
+	
+	/** Forget everything, e.g. when classes are reloaded. */
+	static public void invalidate() {
+		cache.clear();
+		attributes.clear();
+	}
+	
+	/** Forget everything when the class loader changes. */
+	static private void checkLoader() {
+		final ClassLoader current = ClassIndex.classLoader();
+		if (loader.get() != current) {
+			synchronized (Resolver.class) {
+				if (loader.get() != current) {
+					cache.clear();
+					attributes.clear();
+					loader = new WeakReference<>(current);
+				}
+			}
+		}
+	}
+	
+	static private Entry entry(final String qname) {
+		if (null == qname) return NOT_FOUND;
+		checkLoader();
+		// Not computeIfAbsent: lookup is recursive for static members
+		final Entry e = cache.get(qname);
+		if (null != e) return e;
+		// Whether a name not found may be a module not indexed yet: checked before the lookup, which may race with the indexing
+		final boolean complete = ModulePathIndex.ready() && StdlibModules.isLoaded();
+		final long gen = generation.get();
+		final Entry found = lookup(qname);
+		if (gen != generation.get() || (NOT_FOUND == found && !complete)) return found;
+		final Entry prior = cache.putIfAbsent(qname, found);
+		return null == prior ? found : prior;
+	}
+	
+	static private Entry lookup(final String qname) {
+		if (isPythonModule(qname)) return new Entry(Kind.PYTHON_MODULE, (ClassMembers)null);
+		final ClassIndex.ClassInfo info = ClassIndex.find(qname);
+		if (null != info) return new Entry(Kind.JAVA_CLASS, ClassMembers.of(info));
+		try {
+			return new Entry(Kind.JAVA_CLASS, Class.forName(qname, false, ClassIndex.classLoader()));
+		} catch (ClassNotFoundException | LinkageError e) {
+			JythonScriptParser.print(() -> "Cannot find java class " + qname);
+		}
+		final int idot = qname.lastIndexOf('.');
+		if (idot > 0) {
+			final Entry declaring = entry(qname.substring(0, idot));
+			if (Kind.JAVA_CLASS == declaring.kind) {
+				final ClassMembers members = declaring.members();
+				if (null != members && members.isStatic(qname.substring(idot + 1)))
+					return new Entry(Kind.JAVA_STATIC_MEMBER, declaring);
+			}
+		}
+		JythonScriptParser.print(() -> "Not a python module, java class or static member: " + qname);
+		return NOT_FOUND;
+	}
+	
+	static private boolean isPythonModule(final String qname) {
+		// Lazily creates the builtin module and its bindings: not while others read them, see BuiltinIndex
+		synchronized (Scope.indexer) {
+			final int n_bindings = Scope.indexer.getBindings().size();
+			try {
+				if (null != Scope.indexer.getBuiltinModule(qname)) return true; // e.g. sys, os.path
+			} catch (Exception e) {
+				JythonScriptParser.print(() -> "Failed to look up builtin module " + qname + " :: " + e);
+			} finally {
+				if (Scope.indexer.getBindings().size() != n_bindings) BuiltinIndex.changed();
+			}
+		}
+		// Unknown until listed: don't wait for it, see entry(String)
+		if (StdlibModules.isLoaded() && StdlibModules.get().contains(qname)) return true;
+		StdlibModules.prefetch();
+		return ModulePathIndex.contains(qname);
+	}
+}
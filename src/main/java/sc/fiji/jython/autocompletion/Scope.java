@@ -25,36 +25,61 @@ import java.io.File;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.function.BiConsumer;
 
 import org.python.indexer.Indexer;
-import org.python.indexer.types.NModuleType;
 import org.scijava.ui.swing.script.autocompletion.CompletionText;
 
 
 public class Scope {
-	final Scope parent;
+	Scope parent; // not final: see IncrementalScriptParser, which re-parents scopes from overlays
 	final String className; // if any
-	final private List<Scope> children = new ArrayList<>();
-	final HashMap<String, DotAutocompletions> imports = new HashMap<>();
-	final HashMap<String, DotAutocompletions> vars = new HashMap<>();
+	/** The indentation of the function or class definition that opens this scope, see {@link #getEnclosing(int)}; -1 for the top level. */
+	int column = -1;
+	final List<Scope> children = new ArrayList<>();
+	/** Names declared in this scope. The tables are immutable: they are replaced, never modified. */
+	SymbolTable imports = SymbolTable.EMPTY,
+	            vars = SymbolTable.EMPTY;
+	/** Shared by all scopes of the same tree. */
+	final Tree tree;
+	/**
+	 * For the scopes of a top-level statement parsed by {@link IncrementalScriptParser}, shared among them:
+	 * how to revert the attributes that the statement added in place to classes, e.g. "extra" to that of "v" by "v.extra = 5",
+	 * and the directories it added to the load path (see {@link SysPathTracker}), for when the statement is undone.
+	 * Null otherwise, see {@link #journal(Runnable)}.
+	 */
+	List<Runnable> journal = null;
+	/** The analysis of the body of a function or class, deferred until needed, see {@link #analyze()}. Guarded by the tree. */
+	private Runnable deferred = null;
+	private volatile boolean pending = false;
+	
+	/** The lock for analyzing the scopes of a tree, see {@link #analyze()}. */
+	static final class Tree {}
 	
 	/** Access to jython's builtins (functions in the global scope) and default modules (array, itertools, csv, etc.)
 	 *  as well as to an other user-defined modules.
 	 */
 	static final Indexer indexer = new Indexer();
 	
+	/** The load path of the {@code indexer}, unmodifiable: a snapshot for reading it without its monitor. */
+	static private volatile List<String> loadPath = Collections.unmodifiableList(indexer.getLoadPath());
+	
 	static private Thread module_watcher;
 	static private WatchService watcher;
+	/** Watched directories, each containing at least one loaded python module file. */
 	static private Hashtable<WatchKey, Path> keys = new Hashtable<>();
+	/** Which loaded module files import from which others; guarded by the indexer. */
+	static final ModuleDependencies dependencies = new ModuleDependencies();
 	
 	static {
 		try {
@@ -70,65 +95,97 @@ public class Scope {
 						} catch (InterruptedException x) {
 							return;
 						}
-						if (keys.containsKey(key)) {
-							System.out.println("Python module at:\n" + keys.get(key) + "\n ... was updated. Clearing indexer cache.");
-							// One of the files changed: unload all, given that parent modules would have been loaded as well
-							// and it gets complicated quickly to find out which need to be reloaded and which don't.
-							keys.clear();
-							synchronized (indexer) {
-								indexer.clearModuleTable();
+						final Path dir = keys.get(key);
+						if (null == dir) {
+							key.cancel();
+							continue;
+						}
+						for (final WatchEvent<?> event : key.pollEvents()) {
+							if (StandardWatchEventKinds.OVERFLOW == event.kind()) {
+								// Events were lost: evict every module file in the directory
+								final String dirpath = dir.toAbsolutePath().toString() + File.separator;
+								synchronized (indexer) {
+									for (final String file : indexer.getLoadedFiles())
+										if (file.startsWith(dirpath) && -1 == file.indexOf(File.separatorChar, dirpath.length()))
+											evict(file);
+								}
+							} else {
+								final Path file = dir.resolve((Path)event.context()).toAbsolutePath();
+								System.out.println("Python module at:\n" + file + "\n ... was updated. Evicting it and its dependents from the indexer cache.");
+								evict(file.toString());
 							}
 						}
+						// Keep watching the directory, unless it no longer exists
+						if (!key.reset())
+							keys.remove(key);
 					}
 				}
 			};
 			module_watcher.setPriority(Thread.NORM_PRIORITY);
+			module_watcher.setDaemon(true);
 			module_watcher.start();
 		} catch (Exception e ){
 			System.out.println("Failed to start filesystem watcher service for python modules");
 		}
 	}
 	
+	/** @return The directories of the load path of the {@code indexer}, as of the last change. */
+	static List<String> loadPath() {
+		return loadPath;
+	}
+	
 	/**
-	 * Load a python module and watch its file, if any.
-	 * When the file is updated or deleted, all loaded modules will be removed from the cache,
-	 * because the loading of a module may trigger the loading of a parent module
-	 * or additional modules that it links to.
+	 * Take a new snapshot of the load path, and forget the modules that failed to load, which may now be found.
+	 * Call while synchronized on the indexer, after changing its load path.
+	 */
+	static void loadPathChanged() {
+		loadPath = Collections.unmodifiableList(indexer.getLoadPath());
+		indexer.failedModules.clear();
+		ModuleLoader.forgetFailures();
+	}
+	
+	/**
+	 * Remove a python module file, and the loaded module files that depend on it, from the indexer's module table,
+	 * so that they will be loaded anew when next requested. Other loaded modules are kept.
 	 * 
-	 * @param qname
-	 * @return The python module.
+	 * @param filepath The absolute path to the python file that changed.
 	 */
-	static NModuleType loadPythonModule(final String qname) {
+	static void evict(final String filepath) {
 		synchronized (indexer) {
-			NModuleType mod = null;
-			try {
-				mod = indexer.loadModule(qname);
-				if (null == mod) return null;
-			} catch (Exception e) {
-				System.out.println("Could not load python module named " + qname);
-				e.printStackTrace();
-				return null;
+			for (final String file : dependencies.remove(filepath)) {
+				JythonScriptParser.print(() -> "Evicting python module file " + file);
+				indexer.moduleTable.remove(file);
 			}
+			// Else the indexer would reuse the parsed tree of the prior version of the file
+			indexer.clearAstCache();
+			// A new or fixed file may now resolve a module that failed to load before
+			indexer.failedModules.clear();
+			ModuleLoader.invalidate();
+		}
+		Resolver.invalidateModules();
+	}
+	
+	/**
+	 * Watch the directories of the given python module files, just loaded (see {@link ModuleLoader}).
+	 * When a file is created, updated or deleted, it will be removed from the cache
+	 * along with any other loaded module files that import from it.
+	 * 
+	 * @param files The absolute paths of the loaded files.
+	 */
+	static void watch(final List<String> files) {
+		for (final String filepath : files) {
+			final Path path = new File(filepath).getParentFile().toPath(); // watching directories
 			try {
-				// Watch ALL THE FILES in the containing directly
-				final String qname_slash = qname.replace(".", "/");
-				final String filepath = indexer.getLoadedFiles().stream()
-						.filter(s -> s.endsWith("/" + qname_slash + ".py") || s.endsWith("/" + qname_slash + "/__init__.py")).findFirst().orElse(null);
-				if (null != filepath) {
-					final Path path = new File(filepath).getParentFile().toPath(); // watching directories
-					final WatchKey key = path.register(watcher,
-							StandardWatchEventKinds.ENTRY_MODIFY,
-							StandardWatchEventKinds.ENTRY_DELETE);
-					keys.put(key, path);
-				} else {
-					System.out.println("Python module " + qname + " doesn't have an associated file path.");
-				}
+				final WatchKey key = path.register(watcher,
+						StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY,
+						StandardWatchEventKinds.ENTRY_DELETE);
+				keys.put(key, path); // same key when the directory was already registered
 			} catch (Exception e) {
-				System.out.println("Could not load python module named " + qname);
+				System.out.println("Could not watch the directory of python module file " + filepath);
 				System.out.println(e.getMessage());
 				e.printStackTrace();
 			}
-			return mod;
 		}
 	}
 	
@@ -137,11 +194,102 @@ public class Scope {
 	}
 	
 	public Scope(final Scope parent, final String className) {
-		this.parent = parent;
+		this(parent, className, null == parent ? new Tree() : parent.tree);
 		if (null != parent) {
 			parent.children.add(this);
 		}
-		this.className = className;
+	}
+	
+	private Scope(final Scope parent, final String className, final Tree tree) {
+		this.parent = parent;
+		this.className = Symbols.canonical(className);
+		this.tree = tree;
+	}
+	
+	/**
+	 * A scope whose lookups fall through to {@code parent}, but which isn't registered
+	 * among the children of {@code parent}.
+	 * Used to collect the declarations of a single statement before merging them into {@code parent}.
+	 */
+	static Scope overlay(final Scope parent) {
+		return new Scope(parent, null, parent.tree);
+	}
+	
+	void putImport(final String name, final DotAutocompletions da) {
+		setImports(this.imports.plus(name, da));
+	}
+	
+	void putImports(final Map<String, DotAutocompletions> imports) {
+		setImports(this.imports.plusAll(imports));
+	}
+	
+	void setImports(final SymbolTable imports) {
+		this.imports = imports;
+	}
+	
+	void putVar(final String name, final DotAutocompletions da) {
+		setVars(this.vars.plus(name, da));
+	}
+	
+	void putVars(final Map<String, DotAutocompletions> vars) {
+		setVars(this.vars.plusAll(vars));
+	}
+	
+	void setVars(final SymbolTable vars) {
+		this.vars = vars;
+	}
+	
+	/** Record that {@code entry} was added to {@code cda} from within this scope, see {@link #journal(Runnable)}. */
+	void added(final ClassDotAutocompletions cda, final CompletionText entry) {
+		journal(() -> cda.remove(entry));
+	}
+	
+	/** Record how to revert a change made from within this scope, in the journal of the nearest scope that has one, if any. */
+	void journal(final Runnable undo) {
+		for (Scope scope = this; null != scope; scope = scope.parent) {
+			if (null != scope.journal) {
+				synchronized (scope.journal) {
+					scope.journal.add(undo);
+				}
+				return;
+			}
+		}
+	}
+	
+	/** Defer populating this scope until needed, see {@link #analyze()}. */
+	void defer(final Runnable analysis) {
+		this.deferred = analysis;
+		this.pending = true;
+	}
+	
+	/**
+	 * Populate this scope, if deferred, e.g. parse the body of a function when completing within it
+	 * or when inferring its return class (see {@link DefVarDotAutocompletions}), after its parent scopes. Within the analysis,
+	 * e.g. for a recursive function, the scope is returned as populated so far.
+	 * 
+	 * @return This scope.
+	 */
+	Scope analyze() {
+		if (null != parent) parent.analyze();
+		if (pending) {
+			synchronized (tree) {
+				final Runnable analysis = deferred;
+				if (null != analysis) {
+					deferred = null;
+					try {
+						analysis.run();
+					} finally {
+						pending = false;
+					}
+				}
+			}
+		}
+		return this;
+	}
+	
+	/** @return Whether the analysis of this scope is deferred until needed, see {@link #analyze()}. */
+	boolean isPending() {
+		return pending;
 	}
 	
 	public boolean isEmpty() {
@@ -149,66 +297,47 @@ public class Scope {
 	}
 	
 	public DotAutocompletions find(final String name, final DotAutocompletions default_value) {
-		Scope scope = this;
-		while (null != scope) {
-			DotAutocompletions da = scope.vars.get(name);
-			if (null == da)
-				da = scope.imports.get(name);
-			if (null != da)
-				return da;
-			scope = scope.parent;
+		// Vars shadow imports of the same scope, and inner scopes shadow outer ones.
+		for (Scope scope = this; null != scope; scope = scope.parent) {
+			final DotAutocompletions var = scope.vars.get(name);
+			if (null != var)
+				return var;
+			final DotAutocompletions imported = scope.imports.get(name);
+			if (null != imported)
+				return imported;
 		}
-		// Check python builtins
-		final String builtin_className = "__builtin__." + name + "."; // e.g. __builtin__.str.join
-		final List<CompletionText> dotAutocompletions = indexer.getBindings().keySet().stream()
-				.filter(s -> s.startsWith(builtin_className))
-				.map(s -> new CompletionText(s.substring(builtin_className.length())))
-				.collect(Collectors.toList());
-		if (!dotAutocompletions.isEmpty())
-			return new ClassDotAutocompletions(name, Collections.emptyList(), Collections.emptyList(), dotAutocompletions, this);
+		// Check python builtins, e.g. __builtin__.str.join
+		final DotAutocompletions builtin = BuiltinIndex.findMembers(name);
+		if (null != builtin)
+			return builtin;
 		
 		return default_value;
 	}
 	
 	public List<String> findStartsWith(final String name) {
 		final List<String> completions = new ArrayList<>();
-		Scope scope = this;
-		while (null != scope) {
-			for (final String varName: scope.vars.keySet()) {
-				if (varName.startsWith(name)) completions.add(varName);
-			}
-			for (final String importName: scope.imports.keySet()) {
-				if (importName.startsWith(name)) completions.add(importName);
-			}
-			for (String builtinName: indexer.getBindings().keySet()) {
-				if (builtinName.startsWith("__builtin__."))
-					builtinName = builtinName.substring(12); // without the "__builtin__." prefix
-				if (builtinName.startsWith(name)) completions.add(builtinName);
-			}
-			scope = scope.parent;
+		final Set<String> seen = new HashSet<>();
+		final BiConsumer<String, DotAutocompletions> fn = (s, da) -> {
+			if (s.startsWith(name) && seen.add(s)) completions.add(s);
+		};
+		for (Scope scope = this; null != scope; scope = scope.parent) {
+			scope.vars.forEach(fn);
+			scope.imports.forEach(fn);
 		}
+		// Builtins, without the "__builtin__." prefix
+		BuiltinIndex.findStartsWith(name, completions);
 		return completions;
 	}
 	
 	
-	public HashMap<String, DotAutocompletions> getImports() {
-		final HashMap<String, DotAutocompletions> imports = new HashMap<>(this.imports);
-		Scope parent = this.parent;
-		while (parent != null) {
-			imports.putAll(parent.getImports());
-			parent = parent.parent;
-		}
-		return imports;
+	/** @return The imports visible from this scope, including those of its parent scopes: an immutable snapshot. */
+	public SymbolTable getImports() {
+		return null == parent ? imports : parent.getImports().plusAll(imports);
 	}
 	
-	public HashMap<String, DotAutocompletions> getVars() {
-		final HashMap<String, DotAutocompletions> vars = new HashMap<>(this.vars);
-		Scope parent = this.parent;
-		while (parent != null) {
-			vars.putAll(parent.getVars());
-			parent = parent.parent;
-		}
-		return vars;
+	/** @return The vars visible from this scope, including those of its parent scopes: an immutable snapshot. */
+	public SymbolTable getVars() {
+		return null == parent ? vars : parent.getVars().plusAll(vars);
 	}
 	
 	public boolean isClass() {
@@ -216,23 +345,44 @@ public class Scope {
 	}
 	
 	public Scope getLast() {
+		analyze();
 		if (children.isEmpty()) return this;
 		return children.get(children.size() -1).getLast();
 	}
 	
+	/**
+	 * Find the scope in which a line appended to the parsed code would be: the last function or class definition,
+	 * recursively, for as long as it is indented less than the line. Only the scopes along the way are analyzed,
+	 * not the bodies of any other definitions.
+	 * 
+	 * @param indent The indentation of the line, e.g. that of the line being completed.
+	 */
+	public Scope getEnclosing(final int indent) {
+		analyze();
+		if (children.isEmpty()) return this;
+		final Scope last = children.get(children.size() -1);
+		return last.column < indent ? last.getEnclosing(indent) : this;
+	}
+	
+	/** @return The number of scopes in this subtree, including this one. */
+	int countScopes() {
+		int n = 1;
+		for (final Scope child: children)
+			n += child.countScopes();
+		return n;
+	}
+	
 	public void print(final String indent) {
 		if ("" == indent) {
 			System.out.println("scope global:");
 		}
-		System.out.println(indent + "available imports: " + String.join(", ", this.getImports().keySet()));
+		analyze();
+		System.out.println(indent + "available imports: " + String.join(", ", this.getImports().keys()));
 		System.out.println(indent + "declared imports:");
-		for (final Map.Entry<String, DotAutocompletions> e: imports.entrySet())
-			System.out.println(indent + "  import :: " + e.getKey() + " --> " + e.getValue());
-		System.out.println(indent + "available vars: " + String.join(", ", this.getVars().keySet()));
+		imports.forEach((name, da) -> System.out.println(indent + "  import :: " + name + " --> " + da));
+		System.out.println(indent + "available vars: " + String.join(", ", this.getVars().keys()));
 		System.out.println(indent + "declared vars:");
-		for (final Map.Entry<String, DotAutocompletions> e: vars.entrySet()) {
-			System.out.println(indent + "  var :: " + e.getKey() + " = " + e.getValue());
-		}
+		vars.forEach((name, da) -> System.out.println(indent + "  var :: " + name + " = " + da));
 		
 		int i = 0;
 		for (final Scope child: children) {
@@ -21,15 +21,10 @@
  */
 package sc.fiji.jython.autocompletion;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
-import org.python.indexer.types.NModuleType;
 import org.scijava.ui.swing.script.autocompletion.CompletionText;
 
 public class StaticDotAutocompletions implements DotAutocompletions
@@ -44,75 +39,37 @@ public class StaticDotAutocompletions implements DotAutocompletions
 	}
 	@Override
 	public List<CompletionText> get() {
-		final List<CompletionText> ac = new ArrayList<>();
-		if (null != this.className) {
-			String msg = "";
-			try {
-				// Check first if it's a python module
-				final NModuleType module = Scope.loadPythonModule(this.className); // Scope.indexer.getBuiltinModule(this.className);
-				System.out.println("module is: " + module);
-				if (null != module) {
-					module.getTable().keySet().forEach( m -> ac.add(new CompletionText(m)));
-					// Not need to remove: a file system watcher will do so when the module file is updated or deleted.
-					// Scope.indexer.moduleTable.remove(this.className);
-					return ac;
-				} else {
-					msg += "Not a python module: " + this.className;
-				}
-				// Or a java class:
-				try {
-					fieldsAndStaticMethodsInto(Class.forName(this.className), ac);
-					return ac;
-				} catch (ClassNotFoundException cnfe) {
-					msg += "\nCannot find java class " + this.className;
-				}
-				// Or a static method of a java class
-				try {
-					final int idot = this.className.lastIndexOf('.');
-					final String name = this.className.substring(idot + 1);
-					final Class<?> c = Class.forName(this.className.substring(0, idot));
-					// There could be more than one method, with more than one return type
-					for (final Class<?> r: Arrays.asList(c.getMethods()).stream()
-							.filter(m -> m.getName().equals(name))
-							.map(m -> m.getReturnType())
-							.distinct()
-							.collect(Collectors.toList())) {
-						fieldsAndMethodsInto(r, ac);
-					}
-					return ac;
-				} catch (ClassNotFoundException cnfe) {
-					msg += "\nCannot derive static method or field from " + this.className;
-				}
-				
-				if (null != msg) {
-					System.out.println(msg);
-				}
-			} catch (Exception e) {
-				if (null != msg) System.out.println(msg);
-				e.printStackTrace();
+		if (null == this.className) return CompletionList.EMPTY;
+		// What the name is, cached, and without loading python modules, see Resolver
+		switch (Resolver.resolve(this.className)) {
+		case PYTHON_MODULE:
+			final ModuleLoader.Snapshot module = ModuleLoader.load(this.className);
+			JythonScriptParser.print(() -> "module is: " + (null == module ? null : module.file));
+			// Not need to remove: a file system watcher will do so when the module file is updated or deleted.
+			return null == module ? CompletionList.EMPTY : module.completions;
+		case JAVA_CLASS:
+			final ClassMembers members = Resolver.membersFor(this.className);
+			return null == members ? CompletionList.EMPTY : members.getStaticFieldsAndMethods();
+		case JAVA_STATIC_MEMBER:
+			final ClassMembers declaring = Resolver.declaringMembersFor(this.className);
+			if (null == declaring) return CompletionList.EMPTY;
+			// There could be more than one method, with more than one return type
+			final List<String> types = declaring.typesOf(this.className.substring(this.className.lastIndexOf('.') + 1));
+			if (1 == types.size()) {
+				final ClassMembers r = Resolver.membersFor(types.get(0));
+				return null == r ? CompletionList.EMPTY : r.getInstanceFieldsAndMethods(); // shared, not copied
 			}
+			final List<CompletionText> ac = new ArrayList<>();
+			for (final String type : types) {
+				final ClassMembers r = Resolver.membersFor(type);
+				if (null != r) ac.addAll(r.getInstanceFieldsAndMethods());
+			}
+			return ac;
+		default:
+			return CompletionList.EMPTY;
 		}
-		return ac;
-	}
-
-	private void fieldsAndStaticMethodsInto(final Class<?> c, final List<CompletionText> ac) {
-		for (final Field f: c.getDeclaredFields())
-			if (Modifier.isStatic(f.getModifiers()))
-				ac.add(new CompletionText(f.getName(), c, f));
-		for (final Method m: c.getDeclaredMethods())
-			if (Modifier.isStatic(m.getModifiers()))
-				ac.add(new CompletionText(m.getName() + "()", c, m)); // TODO could do a parameter-driven autocompletion
 	}
 
-	private void fieldsAndMethodsInto(final Class<?> c, final List<CompletionText> ac) {
-		for (final Field f: c.getDeclaredFields())
-			if (!Modifier.isStatic(f.getModifiers()))
-				ac.add(new CompletionText(f.getName(), c, f));
-		for (final Method m: c.getDeclaredMethods())
-			if (!Modifier.isStatic(m.getModifiers()))
-				ac.add(new CompletionText(m.getName() + "()", c, m)); // TODO could do a parameter-driven autocompletion
-	}
-	
 	@Override
 	public String toString() {
 		final String completions = get().stream().map(c -> c.getReplacementText()).collect(Collectors.joining(",", "[", "]"));
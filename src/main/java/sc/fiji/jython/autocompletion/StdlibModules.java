@@ -0,0 +1,283 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+/**
+ * The names of the python modules of jython's standard library, as found in the jython-slim jar under {@code ij.dir/jars}.
+ * 
+ * The list is computed on first use, not when the Script Editor starts, and is stored sorted in a compact file
+ * keyed by the path, size and modification time of the jar, one per jar so that several Fiji installations
+ * don't overwrite each other's. On later starts the file is memory-mapped and queried by binary search, without opening the jar.
+ * 
+ * File format: magic, version, jar path (modified UTF-8), jar size, jar modification time, number of modules N,
+ * N+1 offsets into the names block, and then the names block: all names in UTF-8, sorted, concatenated.
+ */
+public final class StdlibModules {
+	
+	static private final int MAGIC = 0x4A534D49, // "JSMI"
+	                         VERSION = 1;
+	
+	static private final File cacheDir = new File(System.getProperty("user.home") + "/.cache/jython-autocompletion");
+	
+	static private volatile StdlibModules instance = null;
+	static private final AtomicBoolean started = new AtomicBoolean();
+	
+	private final ByteBuffer buffer;
+	private final int count,
+	                  offsets, // position of the offsets table
+	                  names; // position of the names block
+	
+	private StdlibModules(final ByteBuffer buffer) {
+		this.buffer = buffer;
+		buffer.position(2 * 4);
+		buffer.position(buffer.position() + 2 + (buffer.getShort() & 0xffff) + 2 * 8);
+		this.count = buffer.getInt();
+		this.offsets = buffer.position();
+		this.names = this.offsets + (count + 1) * 4;
+	}
+	
+	static private final StdlibModules EMPTY = new StdlibModules(ByteBuffer.wrap(encode("", 0, 0, Collections.emptyList())));
+	
+	/** Compute or load the list in a background thread, unless already done. */
+	static public void prefetch() {
+		if (null != instance || !started.compareAndSet(false, true)) return;
+		final Thread t = new Thread(StdlibModules::get, "jython stdlib module list");
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	static public StdlibModules get() {
+		StdlibModules sm = instance;
+		if (null != sm) return sm;
+		synchronized (StdlibModules.class) {
+			if (null == instance) {
+				try {
+					instance = load();
+				} catch (Exception e) {
+					System.out.println("Could not list the modules of jython's standard library");
+					e.printStackTrace();
+					instance = EMPTY;
+				}
+				Resolver.invalidateModules(); // names looked up before were not known to be modules
+			}
+			return instance;
+		}
+	}
+	
+	public int size() {
+		return count;
+	}
+	
+	/** @return Whether {@code name} is the name of a module. */
+	public boolean contains(final String name) {
+		final int i = lowerBound(name);
+		return i < count && name(i).equals(name);
+	}
+	
+	/** @return The sorted names of modules that start with {@code prefix}. */
+	public List<String> findStartsWith(final String prefix) {
+		final int low = lowerBound(prefix);
+		final List<String> found = new ArrayList<>();
+		for (int i = low; i < count; ++i) {
+			final String name = name(i);
+			if (!name.startsWith(prefix)) break;
+			found.add(name);
+		}
+		return found;
+	}
+	
+	/** @return An unmodifiable view of the sorted names of all modules. */
+	public List<String> asList() {
+		return new AbstractList<String>() {
+			@Override
+			public String get(final int i) {
+				if (i < 0 || i >= count) throw new IndexOutOfBoundsException("Index: " + i + ", size: " + count);
+				return name(i);
+			}
+			@Override
+			public int size() {
+				return count;
+			}
+		};
+	}
+	
+	private String name(final int i) {
+		final int start = buffer.getInt(offsets + i * 4),
+		          end = buffer.getInt(offsets + (i + 1) * 4);
+		final byte[] bytes = new byte[end - start];
+		for (int k = 0; k < bytes.length; ++k)
+			bytes[k] = buffer.get(names + start + k);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/** Binary search for the index of the first name that is equal to or larger than {@code s}. */
+	private int lowerBound(final String s) {
+		int low = 0,
+		    high = count;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (name(mid).compareTo(s) < 0) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+	
+	/** @return Whether the list is available without waiting for it to be computed or loaded. */
+	static public boolean isLoaded() {
+		return null != instance;
+	}
+	
+	static private StdlibModules load() throws IOException {
+		final File jar = findJar();
+		if (null == jar) return EMPTY;
+		return load(jar, cacheFile("stdlib-modules", jar.getAbsolutePath().hashCode() & 0xffffffffL, jar.length(), jar.lastModified()));
+	}
+	
+	/** List the modules of the {@code jar}, or read them from the {@code cacheFile} if made from the same jar. */
+	static StdlibModules load(final File jar, final File cacheFile) throws IOException {
+		// Reuse the cache file if the jar it was made from is unchanged
+		if (cacheFile.exists()) {
+			try (final FileChannel fc = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+				final ByteBuffer b = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+				if (MAGIC == b.getInt() && VERSION == b.getInt()) {
+					final byte[] path = new byte[b.getShort() & 0xffff];
+					b.get(path);
+					if (jar.getAbsolutePath().equals(new String(path, StandardCharsets.UTF_8))
+							&& jar.length() == b.getLong() && jar.lastModified() == b.getLong())
+						return new StdlibModules(b);
+				}
+			} catch (Exception e) {
+				System.out.println("Ignoring unreadable cache file " + cacheFile + " :: " + e.getMessage());
+			}
+		}
+		final byte[] bytes = encode(jar.getAbsolutePath(), jar.length(), jar.lastModified(), listModules(jar));
+		write("stdlib-modules", cacheFile, bytes);
+		return new StdlibModules(ByteBuffer.wrap(bytes));
+	}
+	
+	/** @return The cache file named after {@code prefix} and the keys, e.g. those of the jar file it is made from. */
+	static File cacheFile(final String prefix, final long... keys) {
+		final StringBuilder sb = new StringBuilder(prefix);
+		for (final long key : keys) sb.append('-').append(Long.toHexString(key));
+		return new File(cacheDir, sb.append(".idx").toString());
+	}
+	
+	/**
+	 * Write the cache file atomically, and delete those in its directory with the same prefix unmodified in the last 30 days,
+	 * e.g. made from jar files that were updated since.
+	 */
+	static void write(final String prefix, final File cacheFile, final byte[] bytes) {
+		try {
+			cacheFile.getParentFile().mkdirs();
+			final Path tmp = Files.createTempFile(cacheFile.getParentFile().toPath(), prefix, ".tmp");
+			Files.write(tmp, bytes);
+			Files.move(tmp, cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (Exception e) {
+			System.out.println("Could not write cache file " + cacheFile + " :: " + e.getMessage());
+		}
+		final long old = System.currentTimeMillis() - 30L * 24 * 60 * 60 * 1000;
+		final File[] files = cacheFile.getParentFile().listFiles((dir, name) -> name.startsWith(prefix + "-") && name.endsWith(".idx"));
+		if (null != files)
+			for (final File file : files)
+				if (file.lastModified() < old && !file.equals(cacheFile)) file.delete();
+	}
+	
+	static private File findJar() throws IOException {
+		final Path jars = Paths.get(System.getProperty("ij.dir") + "/jars/");
+		if (!Files.isDirectory(jars)) return null;
+		try (final Stream<Path> paths = Files.walk(jars)) {
+			return paths
+				.map(Path::toFile)
+				.filter(file -> file.getName().startsWith("jython-slim-") && file.getName().endsWith(".jar"))
+				.findFirst().orElse(null);
+		}
+	}
+	
+	static private List<String> listModules(final File file) throws IOException {
+		final TreeSet<String> modules = new TreeSet<>();
+		try (final JarFile jar = new JarFile(file)) {
+			jar.stream()
+				.map(JarEntry::getName)
+				.filter(s -> s.startsWith("Lib/") && s.endsWith(".py"))
+				.map(s -> (s.endsWith("/__init__.py") ?
+						  s.substring(4, s.length() - 12) // the parent folder
+						: s.substring(4, s.length() - 3)) // avoid the .py extension
+						.replace('/', '.'))
+				.forEach(modules::add);
+		}
+		return new ArrayList<>(modules);
+	}
+	
+	static private byte[] encode(final String jarPath, final long size, final long lastModified, final List<String> modules) {
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(bytes));
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			final byte[] path = jarPath.getBytes(StandardCharsets.UTF_8);
+			dos.writeShort(path.length);
+			dos.write(path);
+			dos.writeLong(size);
+			dos.writeLong(lastModified);
+			dos.writeInt(modules.size());
+			final List<byte[]> names = new ArrayList<>(modules.size());
+			int offset = 0;
+			dos.writeInt(offset);
+			for (final String module : modules) {
+				final byte[] name = module.getBytes(StandardCharsets.UTF_8);
+				names.add(name);
+				offset += name.length;
+				dos.writeInt(offset);
+			}
+			for (final byte[] name : names)
+				dos.write(name);
+			dos.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e); // can't happen: writing to memory
+		}
+	}
+}
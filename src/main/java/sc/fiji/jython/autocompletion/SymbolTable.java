@@ -0,0 +1,271 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable map of names to {@code DotAutocompletions}, implemented as a hash array mapped trie:
+ * adding or removing a name returns a new table that shares all untouched branches with the original,
+ * at a cost of O(log32 n). Tables can therefore be snapshotted for free and shared across threads.
+ * 
+ * Names are keyed by their int symbol (see {@link Symbols}), which being unique needs no collision handling.
+ * Each node stores its entries in two arrays, of symbols and of values, and its child nodes in a third,
+ * without an object per entry.
+ */
+public final class SymbolTable {
+	
+	static public final SymbolTable EMPTY = new SymbolTable(null, 0);
+	
+	private final Node root;
+	private final int size;
+	
+	private SymbolTable(final Node root, final int size) {
+		this.root = root;
+		this.size = size;
+	}
+	
+	public int size() {
+		return this.size;
+	}
+	
+	public boolean isEmpty() {
+		return 0 == this.size;
+	}
+	
+	public DotAutocompletions get(final String name) {
+		if (null == root) return null;
+		final int symbol = Symbols.lookup(name);
+		return -1 == symbol ? null : root.get(symbol, 0);
+	}
+	
+	public boolean containsKey(final String name) {
+		return null != get(name);
+	}
+	
+	/** @return A table with {@code name} mapped to {@code value}, or this same table if it already was. */
+	public SymbolTable plus(final String name, final DotAutocompletions value) {
+		return plus(Symbols.intern(name), value);
+	}
+	
+	private SymbolTable plus(final int symbol, final DotAutocompletions value) {
+		final int[] added = new int[1];
+		final Node node = (null == root ? Node.EMPTY : root).plus(symbol, 0, value, added);
+		return node == root ? this : new SymbolTable(node, size + added[0]);
+	}
+	
+	/** @return A table with all entries of {@code table} added to or replacing those in this table. */
+	public SymbolTable plusAll(final SymbolTable table) {
+		if (this.isEmpty()) return table;
+		if (null == table.root) return this;
+		final SymbolTable[] t = new SymbolTable[]{this};
+		table.root.forEach((symbol, value) -> t[0] = t[0].plus(symbol, value));
+		return t[0];
+	}
+	
+	/** @return A table with all entries of {@code map} added to or replacing those in this table. */
+	public SymbolTable plusAll(final Map<String, DotAutocompletions> map) {
+		SymbolTable t = this;
+		for (final Map.Entry<String, DotAutocompletions> e : map.entrySet())
+			t = t.plus(e.getKey(), e.getValue());
+		return t;
+	}
+	
+	/** @return A table without {@code name}, or this same table if it didn't contain it. */
+	public SymbolTable minus(final String name) {
+		if (null == root) return this;
+		final int symbol = Symbols.lookup(name);
+		if (-1 == symbol) return this;
+		final Node node = root.minus(symbol, 0);
+		if (node == root) return this;
+		return null == node ? EMPTY : new SymbolTable(node, size - 1);
+	}
+	
+	/** Iterate all entries, in no particular order. */
+	public void forEach(final BiConsumer<String, DotAutocompletions> fn) {
+		if (null != root) root.forEach((symbol, value) -> fn.accept(Symbols.name(symbol), value));
+	}
+	
+	public List<String> keys() {
+		final List<String> keys = new ArrayList<>(size);
+		forEach((name, value) -> keys.add(name));
+		return keys;
+	}
+	
+	public List<DotAutocompletions> values() {
+		final List<DotAutocompletions> values = new ArrayList<>(size);
+		forEach((name, value) -> values.add(value));
+		return values;
+	}
+	
+	static private interface EntryConsumer {
+		void accept(int symbol, DotAutocompletions value);
+	}
+	
+	/**
+	 * Up to 32 slots, each an entry or a child node, present as set bits in {@code dataMap} or {@code nodeMap}.
+	 * Arrays are in the order of the bits.
+	 */
+	static private final class Node {
+		static final int[] NO_SYMBOLS = new int[0];
+		static final DotAutocompletions[] NO_VALUES = new DotAutocompletions[0];
+		static final Node[] NO_NODES = new Node[0];
+		static final Node EMPTY = new Node(0, 0, NO_SYMBOLS, NO_VALUES, NO_NODES);
+		
+		final int dataMap,
+		          nodeMap;
+		final int[] symbols;
+		final DotAutocompletions[] values;
+		final Node[] nodes;
+		
+		Node(final int dataMap, final int nodeMap, final int[] symbols, final DotAutocompletions[] values, final Node[] nodes) {
+			this.dataMap = dataMap;
+			this.nodeMap = nodeMap;
+			this.symbols = symbols;
+			this.values = values;
+			this.nodes = nodes;
+		}
+		
+		static private int bit(final int symbol, final int shift) {
+			return 1 << ((symbol >>> shift) & 31);
+		}
+		
+		static private int index(final int map, final int bit) {
+			return Integer.bitCount(map & (bit - 1));
+		}
+		
+		DotAutocompletions get(final int symbol, final int shift) {
+			final int bit = bit(symbol, shift);
+			if (0 != (dataMap & bit)) {
+				final int i = index(dataMap, bit);
+				return symbol == symbols[i] ? values[i] : null;
+			}
+			if (0 != (nodeMap & bit)) return nodes[index(nodeMap, bit)].get(symbol, shift + 5);
+			return null;
+		}
+		
+		/** Increments added[0] when {@code symbol} wasn't present. */
+		Node plus(final int symbol, final int shift, final DotAutocompletions value, final int[] added) {
+			final int bit = bit(symbol, shift);
+			if (0 != (dataMap & bit)) {
+				final int i = index(dataMap, bit);
+				if (symbol == symbols[i]) {
+					if (value == values[i]) return this;
+					final DotAutocompletions[] vs = values.clone();
+					vs[i] = value;
+					return new Node(dataMap, nodeMap, symbols, vs, nodes);
+				}
+				// Another symbol in the slot: move both down into a new child node
+				added[0] = 1;
+				final Node child = merge(symbols[i], values[i], symbol, value, shift + 5);
+				final int j = index(nodeMap, bit);
+				return new Node(dataMap & ~bit, nodeMap | bit, removeInt(symbols, i), remove(values, i, NO_VALUES), insert(nodes, j, child));
+			}
+			if (0 != (nodeMap & bit)) {
+				final int j = index(nodeMap, bit);
+				final Node child = nodes[j].plus(symbol, shift + 5, value, added);
+				if (child == nodes[j]) return this;
+				final Node[] ns = nodes.clone();
+				ns[j] = child;
+				return new Node(dataMap, nodeMap, symbols, values, ns);
+			}
+			added[0] = 1;
+			final int i = index(dataMap, bit);
+			return new Node(dataMap | bit, nodeMap, insertInt(symbols, i, symbol), insert(values, i, value), nodes);
+		}
+		
+		static private Node merge(final int s1, final DotAutocompletions v1, final int s2, final DotAutocompletions v2, final int shift) {
+			final int b1 = bit(s1, shift),
+			          b2 = bit(s2, shift);
+			if (b1 == b2) return new Node(0, b1, NO_SYMBOLS, NO_VALUES, new Node[]{merge(s1, v1, s2, v2, shift + 5)});
+			return Integer.compareUnsigned(b1, b2) < 0 ?
+					  new Node(b1 | b2, 0, new int[]{s1, s2}, new DotAutocompletions[]{v1, v2}, NO_NODES)
+					: new Node(b1 | b2, 0, new int[]{s2, s1}, new DotAutocompletions[]{v2, v1}, NO_NODES);
+		}
+		
+		/** @return null when the node ends up empty. */
+		Node minus(final int symbol, final int shift) {
+			final int bit = bit(symbol, shift);
+			if (0 != (dataMap & bit)) {
+				final int i = index(dataMap, bit);
+				if (symbol != symbols[i]) return this;
+				if (1 == symbols.length && 0 == nodeMap) return null;
+				return new Node(dataMap & ~bit, nodeMap, removeInt(symbols, i), remove(values, i, NO_VALUES), nodes);
+			}
+			if (0 == (nodeMap & bit)) return this;
+			final int j = index(nodeMap, bit);
+			final Node child = nodes[j].minus(symbol, shift + 5);
+			if (child == nodes[j]) return this;
+			if (null == child) {
+				if (0 == dataMap && 1 == nodes.length) return null;
+				return new Node(dataMap, nodeMap & ~bit, symbols, values, remove(nodes, j, NO_NODES));
+			}
+			if (0 == child.nodeMap && 1 == child.symbols.length) {
+				// Pull up the single remaining entry of the child
+				final int i = index(dataMap, bit);
+				return new Node(dataMap | bit, nodeMap & ~bit, insertInt(symbols, i, child.symbols[0]), insert(values, i, child.values[0]), remove(nodes, j, NO_NODES));
+			}
+			final Node[] ns = nodes.clone();
+			ns[j] = child;
+			return new Node(dataMap, nodeMap, symbols, values, ns);
+		}
+		
+		void forEach(final EntryConsumer fn) {
+			for (int i = 0; i < symbols.length; ++i) fn.accept(symbols[i], values[i]);
+			for (final Node node : nodes) node.forEach(fn);
+		}
+		
+		static private int[] insertInt(final int[] a, final int i, final int v) {
+			final int[] b = new int[a.length + 1];
+			System.arraycopy(a, 0, b, 0, i);
+			b[i] = v;
+			System.arraycopy(a, i, b, i + 1, a.length - i);
+			return b;
+		}
+		
+		static private int[] removeInt(final int[] a, final int i) {
+			if (1 == a.length) return NO_SYMBOLS;
+			final int[] b = new int[a.length - 1];
+			System.arraycopy(a, 0, b, 0, i);
+			System.arraycopy(a, i + 1, b, i, a.length - i - 1);
+			return b;
+		}
+		
+		static private <T> T[] insert(final T[] a, final int i, final T v) {
+			final T[] b = Arrays.copyOf(a, a.length + 1);
+			System.arraycopy(a, i, b, i + 1, a.length - i);
+			b[i] = v;
+			return b;
+		}
+		
+		static private <T> T[] remove(final T[] a, final int i, final T[] empty) {
+			if (1 == a.length) return empty;
+			final T[] b = Arrays.copyOf(a, a.length - 1);
+			System.arraycopy(a, i + 1, b, i, a.length - i - 1);
+			return b;
+		}
+	}
+}
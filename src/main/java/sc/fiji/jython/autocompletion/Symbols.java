@@ -0,0 +1,119 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Interned names: each distinct name, e.g. of a variable, function, argument or class, is stored once
+ * and numbered with a small int, its symbol, so that every parse of every open script shares the same
+ * {@code String} instances, and tables of names (see {@link SymbolTable}) can be keyed by int.
+ * 
+ * Names are added, never removed: their number is bounded by the distinct names in the scripts edited.
+ * Lookups don't lock: the arrays are read with volatile semantics, and a symbol's name is stored before its
+ * entry in the hash table. Additions are synchronized.
+ */
+final class Symbols {
+	
+	static private final class State {
+		/** By symbol. */
+		final AtomicReferenceArray<String> names;
+		/** Open addressing, linear probing: symbol + 1 at each slot, or 0 when empty. Its length is a power of two. */
+		final AtomicIntegerArray table;
+		
+		State(final int capacity) {
+			this.names = new AtomicReferenceArray<>(capacity);
+			this.table = new AtomicIntegerArray(capacity * 2);
+		}
+	}
+	
+	static private volatile State state = new State(1024);
+	/** The number of symbols; written while synchronized on the class. */
+	static private volatile int count = 0;
+	
+	private Symbols() {}
+	
+	/** @return The symbol of {@code name}, or -1 if it was never interned. */
+	static int lookup(final String name) {
+		final State s = state;
+		final int mask = s.table.length() - 1;
+		for (int i = spread(name.hashCode()) & mask; ; i = (i + 1) & mask) {
+			final int id = s.table.get(i) - 1;
+			if (-1 == id) return -1;
+			if (name.equals(s.names.get(id))) return id;
+		}
+	}
+	
+	/** @return The symbol of {@code name}, adding it if new. */
+	static int intern(final String name) {
+		final int id = lookup(name);
+		if (-1 != id) return id;
+		synchronized (Symbols.class) {
+			final int again = lookup(name);
+			if (-1 != again) return again;
+			State s = state;
+			if (count == s.names.length()) s = grow(s);
+			final int symbol = count;
+			s.names.set(symbol, name);
+			insert(s, name, symbol);
+			count = symbol + 1;
+			return symbol;
+		}
+	}
+	
+	/** @return The name of the {@code symbol}. */
+	static String name(final int symbol) {
+		return state.names.get(symbol);
+	}
+	
+	/** @return The interned instance equal to {@code name}, or null if null. */
+	static String canonical(final String name) {
+		return null == name ? null : name(intern(name));
+	}
+	
+	/** @return The number of interned names. */
+	static int size() {
+		return count;
+	}
+	
+	static private State grow(final State s) {
+		final State g = new State(s.names.length() * 2);
+		for (int i = 0; i < count; ++i) {
+			g.names.set(i, s.names.get(i));
+			insert(g, s.names.get(i), i);
+		}
+		state = g;
+		return g;
+	}
+	
+	static private void insert(final State s, final String name, final int symbol) {
+		final int mask = s.table.length() - 1;
+		int i = spread(name.hashCode()) & mask;
+		while (0 != s.table.get(i)) i = (i + 1) & mask;
+		s.table.set(i, symbol + 1);
+	}
+	
+	static private int spread(final int h) {
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,171 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.python.antlr.ast.Attribute;
+import org.python.antlr.ast.Call;
+import org.python.antlr.ast.Expr;
+import org.python.antlr.ast.Name;
+import org.python.antlr.ast.Str;
+import org.python.antlr.base.expr;
+
+/**
+ * Add to the load path of the {@link Scope#indexer} the directories that scripts add to sys.path,
+ * as found in their parsed statements, e.g. {@code sys.path.append("/path/to/lib")}
+ * or {@code sys.path.insert(0, "/path/to/lib")}, even when spanning multiple lines.
+ * 
+ * Statements are examined as they are parsed, in order, so that the directories are in the load path
+ * for the imports that follow. A hash set of the known load path entries skips directories already added.
+ * 
+ * Each {@link CompletionSession} counts the statements of its script that added each directory. When the
+ * {@link IncrementalScriptParser} undoes such a statement, e.g. because it was edited or deleted, and when the session
+ * closes, the directory is removed from the load path unless other statements or another open session added it too.
+ * 
+ * Calls within the body of a function or class definition are found only once that body is analyzed, which is deferred
+ * until needed (see {@link Scope#analyze()}): until then, the imports that follow don't see their directories.
+ */
+final class SysPathTracker {
+	
+	/** The absolute paths of the load path entries; guarded by the indexer. */
+	static private final Set<String> known = new HashSet<>();
+	/** The size of the load path when {@code known} was last filled in. */
+	static private int loadPathSize = -1;
+	/** The directories added to the load path from sys.path statements; guarded by the indexer. */
+	static private final Set<String> added = new HashSet<>();
+	
+	private SysPathTracker() {}
+	
+	/**
+	 * If the expression statement is a call to sys.path.append or sys.path.insert with a string literal,
+	 * add the directory to the load path, for as long as the statement isn't undone, see {@link Scope#journal(Runnable)}.
+	 */
+	static void record(final Expr statement, final Scope scope) {
+		if (!(statement.getInternalValue() instanceof Call)) return;
+		final Call call = (Call)statement.getInternalValue();
+		if (!(call.getInternalFunc() instanceof Attribute)) return;
+		final Attribute func = (Attribute)call.getInternalFunc();
+		if (!"append".equals(func.getInternalAttr()) && !"insert".equals(func.getInternalAttr())) return;
+		if (!isSysPath(func.getInternalValue())) return;
+		final List<expr> args = call.getInternalArgs();
+		if (null == args || args.isEmpty()) return;
+		final expr arg = args.get(args.size() -1); // the path is the last argument of insert(index, path)
+		if (arg instanceof Str)
+			add(((Str)arg).getInternalS().toString(), scope);
+	}
+	
+	static private boolean isSysPath(final expr e) {
+		if (!(e instanceof Attribute)) return false;
+		final Attribute a = (Attribute)e;
+		return "path".equals(a.getInternalAttr())
+		    && a.getInternalValue() instanceof Name
+		    && "sys".equals(((Name)a.getInternalValue()).getInternalId());
+	}
+	
+	/**
+	 * Add a directory to the load path, unless already there or not a directory.
+	 * 
+	 * @param dir The directory, absolute or relative to the working directory.
+	 * @param scope The scope of the statement that adds it, or null.
+	 */
+	static void add(final String dir, final Scope scope) {
+		final File file = new File(dir);
+		final String path = file.getAbsolutePath();
+		final CompletionSession session = CompletionSession.current();
+		synchronized (Scope.indexer) {
+			final List<String> loadPath = Scope.indexer.getLoadPath();
+			if (loadPath.size() != loadPathSize) {
+				// Changed elsewhere
+				known.clear();
+				for (final String s : loadPath)
+					known.add(new File(s).getAbsolutePath());
+				loadPathSize = loadPath.size();
+			}
+			if (known.contains(path)) {
+				if (added.contains(path)) own(session, path, scope); // e.g. by another statement or script
+				return;
+			}
+			if (!file.isDirectory()) return;
+			final PhaseEvent e = PhaseEvent.begin("sysPath");
+			try {
+				Scope.indexer.addPath(path);
+				Scope.loadPathChanged();
+				known.add(path);
+				added.add(path);
+				own(session, path, scope);
+				Resolver.invalidateModules();
+				loadPathSize = Scope.indexer.getLoadPath().size();
+				JythonScriptParser.print(() -> "PYTHONPATH:\n" + String.join("\n", Scope.indexer.getLoadPath()));
+			} catch (Exception ex) {
+				System.out.println("Failed to add path from sys.path expression: " + dir);
+				ex.printStackTrace();
+			} finally {
+				e.close();
+			}
+		}
+	}
+	
+	/** Count one more statement of the session that adds the path, to be discounted when the statement is undone. */
+	static private void own(final CompletionSession session, final String path, final Scope scope) {
+		if (null == session) return;
+		session.sysPath.merge(path, 1, Integer::sum);
+		if (null != scope) scope.journal(() -> disown(session, path));
+	}
+	
+	/** Count one less statement of the session that adds the path, and remove it from the load path when none is left in any open session. */
+	static private void disown(final CompletionSession session, final String path) {
+		synchronized (Scope.indexer) {
+			if (null != session.sysPath.computeIfPresent(path, (k, n) -> n > 1 ? n - 1 : null)) return;
+			if (CompletionSessions.DEFAULT.sysPath.containsKey(path)) return;
+			for (final CompletionSession s : CompletionSessions.open())
+				if (s.sysPath.containsKey(path)) return;
+			remove(path);
+		}
+		Resolver.invalidateModules();
+	}
+	
+	/** Remove from the load path the directories added only by the script of the closed {@code session}. */
+	static void release(final CompletionSession session) {
+		if (session.sysPath.isEmpty()) return;
+		final Set<String> others = new HashSet<>(CompletionSessions.DEFAULT.sysPath.keySet());
+		for (final CompletionSession s : CompletionSessions.open())
+			if (s != session) others.addAll(s.sysPath.keySet());
+		synchronized (Scope.indexer) {
+			for (final String path : session.sysPath.keySet())
+				if (!others.contains(path)) remove(path);
+		}
+		session.sysPath.clear();
+		Resolver.invalidateModules();
+	}
+	
+	/** Remove the path from the load path; guarded by the indexer. */
+	static private void remove(final String path) {
+		Scope.indexer.path.removeIf(s -> path.equals(new File(s).getAbsolutePath()));
+		added.remove(path);
+		Scope.loadPathChanged();
+		loadPathSize = -1; // fill in known anew
+	}
+}
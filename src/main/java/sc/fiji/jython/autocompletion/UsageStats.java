@@ -0,0 +1,254 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.python.antlr.PythonTree;
+import org.python.antlr.Visitor;
+import org.python.antlr.ast.Attribute;
+import org.python.antlr.ast.Import;
+import org.python.antlr.ast.ImportFrom;
+import org.python.antlr.ast.alias;
+
+/**
+ * How often each field or method name has been used in the scripts written locally, e.g. "getProcessor"
+ * in "imp.getProcessor()", to rank the most used ones first among completions that match equally well.
+ * Likewise for the imported classes and modules, e.g. "ij.IJ" in "from ij import IJ", to prewarm them (see {@link Prewarm}).
+ * 
+ * Counts are learned from each top-level statement once it is parsed unchanged after an edit (see {@link IncrementalScriptParser}),
+ * so that versions typed along the way, e.g. "from ij import I", don't count; and a statement is counted again
+ * only when its text hasn't been seen recently. They are persisted in the
+ * files usage.tsv and imports.tsv of ~/.cache/jython-autocompletion/, one "name TAB count" per line,
+ * written in the background at most once per {@link #SAVE_INTERVAL}, and on exit.
+ * Only the {@link #MAX_NAMES} most used names are kept, also in memory.
+ */
+final class UsageStats {
+	
+	static private final File file = new File(System.getProperty("user.home") + "/.cache/jython-autocompletion/usage.tsv"),
+	                           importsFile = new File(file.getParentFile(), "imports.tsv");
+	
+	/** Minimum milliseconds between writes of the file. */
+	static private final long SAVE_INTERVAL = 60000;
+	/** Maximum number of names kept in the file: the most used ones. */
+	static final int MAX_NAMES = 4096;
+	
+	/** Saves the files, off the threads that parse. */
+	static private final ExecutorService saver = Executors.newSingleThreadExecutor(r -> {
+		final Thread t = new Thread(r, "jython autocompletion usage");
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.setDaemon(true);
+		return t;
+	});
+	
+	static private final Map<String, Integer> counts = new ConcurrentHashMap<>(),
+	                                          imports = new ConcurrentHashMap<>();
+	
+	/** SHA-256 digests of recently counted statements, so that reparsing them after an edit elsewhere doesn't count them again. */
+	static private final Map<ByteBuffer, Boolean> seen = new LinkedHashMap<ByteBuffer, Boolean>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<ByteBuffer, Boolean> eldest) {
+			return size() > 4096;
+		}
+	};
+	
+	static private volatile boolean loaded = false,
+	                                dirty = false;
+	static private final AtomicLong lastSave = new AtomicLong(System.currentTimeMillis());
+	
+	private UsageStats() {}
+	
+	static private void load() {
+		if (loaded) return;
+		synchronized (UsageStats.class) {
+			if (loaded) return;
+			read(file, counts);
+			read(importsFile, imports);
+			trim(counts);
+			trim(imports);
+			Runtime.getRuntime().addShutdownHook(new Thread(UsageStats::save, "Jython autocompletion usage"));
+			loaded = true;
+		}
+	}
+	
+	/**
+	 * @param replacementText A field or method name, with or without the trailing "()".
+	 * @return The number of times the name has been used, zero if never.
+	 */
+	static int count(final String replacementText) {
+		return countName(replacementText.endsWith("()") ? replacementText.substring(0, replacementText.length() - 2) : replacementText);
+	}
+	
+	/**
+	 * @param name A field or method name, without the trailing "()".
+	 * @return The number of times the name has been used, zero if never.
+	 */
+	static int countName(final String name) {
+		load();
+		final Integer n = counts.get(name);
+		return null == n ? 0 : n;
+	}
+	
+	/**
+	 * @param n The maximum number of names to return.
+	 * @return The qualified names of the most imported classes and modules, most imported first.
+	 */
+	static List<String> topImports(final int n) {
+		load();
+		final List<Map.Entry<String, Integer>> entries = sorted(imports);
+		final List<String> names = new ArrayList<>();
+		for (final Map.Entry<String, Integer> e : entries.subList(0, Math.min(n, entries.size())))
+			names.add(e.getKey());
+		return names;
+	}
+	
+	/**
+	 * Count the attribute names used in a top-level statement, and the names it imports.
+	 * 
+	 * @param text The code of the statement.
+	 * @param tree The parsed statement.
+	 */
+	static void record(final String text, final PythonTree tree) {
+		load();
+		final ByteBuffer digest = digest(text);
+		synchronized (seen) {
+			if (null != seen.put(digest, Boolean.TRUE)) return;
+		}
+		final int[] n = new int[1];
+		try {
+			new Visitor() {
+				@Override
+				public Object visitAttribute(final Attribute node) throws Exception {
+					counts.merge(node.getInternalAttr(), 1, Integer::sum);
+					++n[0];
+					return super.visitAttribute(node);
+				}
+				@Override
+				public Object visitImport(final Import node) throws Exception {
+					for (final alias a : node.getInternalNames())
+						imported(a.getInternalName());
+					return super.visitImport(node);
+				}
+				@Override
+				public Object visitImportFrom(final ImportFrom node) throws Exception {
+					if (null == node.getInternalModule() || node.getInternalModule().isEmpty())
+						return super.visitImportFrom(node); // relative import
+					for (final alias a : node.getInternalNames())
+						if (!"*".equals(a.getInternalName()))
+							imported(node.getInternalModule() + "." + a.getInternalName());
+					return super.visitImportFrom(node);
+				}
+				private void imported(final String qname) {
+					imports.merge(qname, 1, Integer::sum);
+					++n[0];
+				}
+			}.visit(tree);
+		} catch (Exception e) {
+			System.out.println("Could not count the names used in: " + text);
+			e.printStackTrace();
+		}
+		if (n[0] > 0) {
+			trim(counts);
+			trim(imports);
+			dirty = true;
+			final long now = System.currentTimeMillis(),
+			           last = lastSave.get();
+			if (now - last > SAVE_INTERVAL && lastSave.compareAndSet(last, now))
+				saver.execute(UsageStats::save);
+		}
+	}
+	
+	/** Keep only the {@link #MAX_NAMES} most used names, once there are a quarter more, so as to sort only now and then. */
+	static private void trim(final Map<String, Integer> counts) {
+		if (counts.size() <= MAX_NAMES + MAX_NAMES / 4) return;
+		synchronized (counts) {
+			final List<Map.Entry<String, Integer>> entries = sorted(counts);
+			for (final Map.Entry<String, Integer> e : entries.subList(Math.min(MAX_NAMES, entries.size()), entries.size()))
+				counts.remove(e.getKey(), e.getValue());
+		}
+	}
+	
+	/** @return The SHA-256 digest of the text: unlike its hashCode, without collisions between distinct statements in practice. */
+	static private ByteBuffer digest(final String text) {
+		try {
+			return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // every java platform has SHA-256
+		}
+	}
+	
+	static private void read(final File file, final Map<String, Integer> counts) {
+		if (!file.exists()) return;
+		try {
+			for (final String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+				final int tab = line.indexOf('\t');
+				if (tab > 0) counts.put(line.substring(0, tab), Integer.parseInt(line.substring(tab + 1).trim()));
+			}
+		} catch (Exception e) {
+			System.out.println("Ignoring unreadable usage file " + file + " :: " + e.getMessage());
+		}
+	}
+	
+	static private List<Map.Entry<String, Integer>> sorted(final Map<String, Integer> counts) {
+		final List<Map.Entry<String, Integer>> entries = new ArrayList<>(counts.entrySet());
+		entries.sort((e1, e2) -> e2.getValue() - e1.getValue());
+		return entries;
+	}
+	
+	static private synchronized void save() {
+		if (!dirty) return;
+		dirty = false;
+		write(file, counts);
+		write(importsFile, imports);
+	}
+	
+	static private void write(final File file, final Map<String, Integer> counts) {
+		final List<Map.Entry<String, Integer>> entries = sorted(counts);
+		final StringBuilder sb = new StringBuilder();
+		for (final Map.Entry<String, Integer> e : entries.subList(0, Math.min(MAX_NAMES, entries.size())))
+			sb.append(e.getKey()).append('\t').append(e.getValue()).append('\n');
+		try {
+			file.getParentFile().mkdirs();
+			final Path tmp = Files.createTempFile(file.getParentFile().toPath(), "usage", ".tmp");
+			Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (Exception e) {
+			System.out.println("Could not write usage file " + file + " :: " + e.getMessage());
+		}
+	}
+}
@@ -21,41 +21,56 @@
  */
 package sc.fiji.jython.autocompletion;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.scijava.ui.swing.script.autocompletion.CompletionText;
 
 public class VarDotAutocompletions implements DotAutocompletions {
 	String className;
+	/** When it could be of more than one class, e.g. returned by overloaded methods; otherwise null. The first is the className. */
+	final List<String> classNames;
 	public VarDotAutocompletions(final String className) {
-		this.className = className;
+		this.className = Symbols.canonical(className); // shared with all other parses
+		this.classNames = null;
+	}
+	/** For a value of any of {@code classNames}. */
+	public VarDotAutocompletions(final List<String> classNames) {
+		this.className = Symbols.canonical(classNames.get(0));
+		this.classNames = 1 == classNames.size() ? null
+				: Collections.unmodifiableList(classNames.stream().map(Symbols::canonical).collect(Collectors.toList()));
 	}
 	@Override
 	public String getClassname() {
 		return this.className;
 	}
 	@Override
+	public List<String> getClassnames() {
+		return null == this.classNames ? DotAutocompletions.super.getClassnames() : this.classNames;
+	}
+	@Override
 	public List<CompletionText> get() {
-		final List<CompletionText> ac = new ArrayList<>();
-		if (null != this.className) {
-			try {
-				final Class<?> c = Class.forName(this.className);
-				for (final Field f: c.getFields())
-					ac.add(new CompletionText(f.getName(), c, f));
-				for (final Method m: c.getMethods())
-					ac.add(new CompletionText(m.getName() + "()", c, m)); // TODO could do a parameter-driven autocompletion
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
+		if (null == this.classNames) {
+			final ClassMembers members = Resolver.membersFor(this.className); // cached, also when not found
+			if (null != members)
+				return members.getPublicFieldsAndMethods();
+			return Collections.emptyList();
 		}
+		// Those of all the classes, once each
+		final Set<String> seen = new HashSet<>();
+		final List<CompletionText> ac = new ArrayList<>();
+		for (final String name : this.classNames)
+			for (final CompletionText ct : DotAutocompletions.getPublicFieldsAndMethods(name))
+				if (seen.add(ct.getReplacementText())) ac.add(ct);
 		return ac;
 	}
 
 	@Override
 	public String toString() {
-		return "VarDotAutocompletions: " + this.className;
+		return "VarDotAutocompletions: " + (null == this.classNames ? this.className : String.join(" | ", this.classNames));
 	}
 }
@@ -0,0 +1,122 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.fife.ui.autocomplete.BasicCompletion;
+import org.fife.ui.autocomplete.Completion;
+import org.fife.ui.autocomplete.CompletionProvider;
+import org.fife.ui.autocomplete.DefaultCompletionProvider;
+import org.junit.After;
+import org.junit.Test;
+
+public class AsyncJythonAutoCompletionsTest {
+	
+	static final String code = "from ij import IJ\nimp = IJ.getImage()\n";
+	
+	/** Sleeps before analyzing, after offering the {@code partial} results if any. */
+	static private final class Slow extends JythonAutoCompletions {
+		final long delay;
+		final List<Completion> partial;
+		Slow(final long delay, final List<Completion> partial) {
+			this.delay = delay;
+			this.partial = partial;
+		}
+		@Override
+		public List<Completion> completionsFor(final CompletionProvider provider, final String codeWithoutLastLine, final String lastLine, final String alreadyEnteredText,
+				final CompletionRequest request, final CompletionSession session) {
+			if (null != partial) request.offer(partial);
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				throw new CancellationException();
+			}
+			request.checkpoint();
+			return super.completionsFor(provider, codeWithoutLastLine, lastLine, alreadyEnteredText, request, session);
+		}
+	}
+	
+	private final long deadline = AsyncJythonAutoCompletions.DEADLINE;
+	private AsyncJythonAutoCompletions async;
+	
+	@After
+	public void shutdown() {
+		AsyncJythonAutoCompletions.DEADLINE = deadline;
+		if (null != async) async.shutdown();
+	}
+	
+	static List<String> texts(final List<Completion> completions) {
+		final List<String> texts = new ArrayList<>();
+		for (final Completion c : completions)
+			texts.add(c.getReplacementText());
+		return texts;
+	}
+	
+	@Test
+	public void testSlowDotCompletionReturnsItsCandidates() {
+		AsyncJythonAutoCompletions.DEADLINE = 50;
+		async = new AsyncJythonAutoCompletions(new Slow(300, null), 1, 4, 0);
+		final List<String> texts = texts(async.completionsFor(new DefaultCompletionProvider(), code, "imp.getPro", "getPro"));
+		assertTrue(texts.toString(), texts.contains("getProcessor()"));
+	}
+	
+	@Test
+	public void testSlowCompletionReturnsPartialResultsAtTheDeadline() {
+		AsyncJythonAutoCompletions.DEADLINE = 50;
+		final CompletionProvider provider = new DefaultCompletionProvider();
+		final List<Completion> partial = Arrays.asList(new BasicCompletion(provider, "partial()"));
+		async = new AsyncJythonAutoCompletions(new Slow(5000, partial), 1, 4, 0);
+		final long start = System.currentTimeMillis();
+		assertEquals(Arrays.asList("partial()"), texts(async.completionsFor(provider, code, "imp.getPro", "getPro")));
+		assertTrue("didn't wait for the analysis", System.currentTimeMillis() - start < 2500);
+	}
+	
+	@Test
+	public void testNewerRequestCancelsThePriorOne() throws Exception {
+		async = new AsyncJythonAutoCompletions(new Slow(200, null), 1, 4, 0);
+		final CompletionProvider provider = new DefaultCompletionProvider();
+		final CompletableFuture<List<Completion>> first = async.request(provider, code, "imp.getPro", "getPro", 0),
+		                                          second = async.request(provider, code, "imp.getTit", "getTit", 0);
+		assertTrue(first.isCancelled());
+		assertTrue(texts(second.get(10, TimeUnit.SECONDS)).contains("getTitle()"));
+	}
+	
+	@Test
+	public void testRequestsOfOtherSessionsAreNotCancelled() throws Exception {
+		async = new AsyncJythonAutoCompletions(new Slow(100, null), 2, 4, 0);
+		final CompletableFuture<List<Completion>> first = async.request(new DefaultCompletionProvider(), code, "imp.getPro", "getPro", 0),
+		                                          second = async.request(new DefaultCompletionProvider(), code, "imp.getTit", "getTit", 0);
+		assertFalse(first.isCancelled());
+		assertTrue(texts(first.get(10, TimeUnit.SECONDS)).contains("getProcessor()"));
+		assertTrue(texts(second.get(10, TimeUnit.SECONDS)).contains("getTitle()"));
+	}
+}
@@ -0,0 +1,119 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Modifier;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ClassFileReaderTest {
+	
+	/** Generic, with a field and a method whose types are type variables. */
+	static public abstract class Pair<A, B extends Number> extends AbstractList<B> implements Comparable<Pair<A, B>> {
+		public A first;
+		protected static final int[][] MATRIX = null;
+		public abstract B second(final String s, final long[] l, final Map<A, B> m);
+	}
+	
+	static private ClassIndex.ClassInfo read(final Class<?> c) throws IOException {
+		try (final InputStream in = c.getResourceAsStream("/" + c.getName().replace('.', '/') + ".class")) {
+			return ClassFileReader.read(in);
+		}
+	}
+	
+	/** The access flags that both describe, unlike e.g. that of enum constants. */
+	static private final int ACCESS = Modifier.PUBLIC | Modifier.PROTECTED | Modifier.PRIVATE | Modifier.STATIC | Modifier.FINAL | Modifier.ABSTRACT;
+	
+	/** @return Each member as its signature, with its type, access and type variable. */
+	static private Map<String, String> members(final ClassIndex.ClassInfo info) {
+		final Map<String, String> members = new TreeMap<>();
+		for (final ClassIndex.Member m : info.members)
+			members.put(m.signature(), m.type + " " + (m.access & ACCESS) + " " + m.typeVariable);
+		return members;
+	}
+	
+	@Test
+	public void testReadsAsReflectionDoes() throws Exception {
+		final Class<?>[] classes = {
+			Pair.class,
+			ArrayList.class,
+			HashMap.class,
+			Map.Entry.class, // interface
+			TimeUnit.class, // enum
+			String.class,
+			ClassFileReaderTest.class,
+		};
+		for (final Class<?> c : classes) {
+			final ClassIndex.ClassInfo file = read(c),
+			                          reflected = ClassIndex.ClassInfo.of(c);
+			final String name = c.getName();
+			assertEquals(name, reflected.name, file.name);
+			if (!c.isInterface()) assertEquals(name, reflected.superName, file.superName); // else java.lang.Object in the class file
+			assertArrayEquals(name, reflected.interfaces, file.interfaces);
+			assertEquals(name, reflected.isInterface(), file.isInterface());
+			assertEquals(name, Modifier.isPublic(reflected.access), Modifier.isPublic(file.access));
+			assertEquals(name, members(reflected), members(file));
+			assertArrayEquals(name, reflected.typeParams, file.typeParams);
+			assertEquals(name, reflected.typeArgs.keySet(), file.typeArgs.keySet());
+			for (final String s : reflected.typeArgs.keySet())
+				assertArrayEquals(name + " " + s, reflected.typeArgs.get(s), file.typeArgs.get(s));
+		}
+	}
+	
+	@Test
+	public void testGenerics() throws Exception {
+		final ClassIndex.ClassInfo info = read(Pair.class);
+		assertArrayEquals(new String[]{"A", "B"}, info.typeParams);
+		assertArrayEquals(new String[]{"T:B"}, info.typeArgs.get("java.util.AbstractList"));
+		assertArrayEquals(new String[]{Pair.class.getName()}, info.typeArgs.get("java.lang.Comparable"));
+		final Map<String, String> members = members(info);
+		assertEquals("java.lang.Object 1 A", members.get("first"));
+		assertEquals("[[I 28 null", members.get("MATRIX"));
+		assertEquals("java.lang.Number 1025 B", members.get("second(java.lang.String,[J,java.util.Map)"));
+	}
+	
+	@Test
+	public void testNoConstructorsNorSyntheticMembers() throws Exception {
+		for (final String signature : members(read(ArrayList.class)).keySet())
+			assertEquals(signature, -1, signature.indexOf('<'));
+		assertEquals(Collections.singleton("run()"), members(read(Runnable.class)).keySet());
+	}
+	
+	@Test(expected = IOException.class)
+	public void testNotAClassFile() throws Exception {
+		ClassFileReader.read(new ByteArrayInputStream(new byte[]{'P', 'K', 3, 4, 0, 0, 0, 0}));
+	}
+	
+}
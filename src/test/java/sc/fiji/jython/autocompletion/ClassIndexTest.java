@@ -0,0 +1,70 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClassIndexTest {
+	
+	private final ClassLoader loader = ClassIndex.classLoader();
+	
+	@After
+	public void restore() {
+		ClassIndex.setClassLoader(loader);
+	}
+	
+	@Test
+	public void testClassLoaderIsPinned() throws Exception {
+		final ClassLoader pinned = new URLClassLoader(new URL[0], loader),
+		                  other = new URLClassLoader(new URL[0], loader);
+		ClassIndex.setClassLoader(pinned);
+		final AtomicReference<ClassLoader> seen = new AtomicReference<>();
+		final Thread t = new Thread(() -> seen.set(ClassIndex.classLoader()));
+		t.setContextClassLoader(other);
+		t.start();
+		t.join();
+		assertSame("not the context class loader of the calling thread", pinned, seen.get());
+		ClassIndex.setClassLoader(null);
+		assertSame("the library's", ClassMembers.class.getClassLoader(), ClassIndex.classLoader());
+	}
+	
+	@Test
+	public void testFindsClassesOfJarFiles() throws Exception {
+		// The jar files of the class loader: not necessarily on the "java.class.path", e.g. with a manifest-only jar
+		ClassIndex.setClassLoader(new URLClassLoader(new URL[]{Assert.class.getProtectionDomain().getCodeSource().getLocation()}, loader));
+		ModulePathIndexTest.await("indexed", () -> null != ClassIndex.find("org.junit.Assert"));
+		final ClassIndex.ClassInfo info = ClassIndex.find("org.junit.Assert");
+		assertEquals("org.junit.Assert", info.name);
+		assertNull("not in a jar file", ClassIndex.find(ClassIndexTest.class.getName()));
+		assertEquals(ClassIndexTest.class.getName(), ClassIndex.findOrReflect(ClassIndexTest.class.getName()).name);
+	}
+}
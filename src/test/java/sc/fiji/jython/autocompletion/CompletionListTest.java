@@ -0,0 +1,94 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.junit.Test;
+import org.scijava.ui.swing.script.autocompletion.CompletionText;
+
+public class CompletionListTest {
+	
+	static private List<CompletionText> texts(final String... replacements) {
+		final List<CompletionText> list = new ArrayList<>();
+		for (final String s : replacements)
+			list.add(new CompletionText(s));
+		return list;
+	}
+	
+	@Test
+	public void testComputesWhatRankingNeeds() {
+		final CompletionList list = CompletionList.of(texts("getProcessor()", "WIDTH", "setRoi(", "x"));
+		assertArrayEquals(new String[]{"getProcessor()", "WIDTH", "setRoi(", "x"}, list.replacements);
+		assertArrayEquals(new String[]{"getprocessor()", "width", "setroi(", "x"}, list.lowerCase);
+		assertArrayEquals("without the trailing () of methods", new String[]{"getProcessor", "WIDTH", "setRoi(", "x"}, list.names);
+		for (int i = 0; i < list.size(); ++i)
+			assertEquals(FuzzyMatcher.mask(list.lowerCase[i]), list.masks[i]);
+	}
+	
+	@Test
+	public void testOfCopiesOnce() {
+		final List<CompletionText> texts = texts("a", "b");
+		final CompletionList list = CompletionList.of(texts);
+		assertSame("already one", list, CompletionList.of(list));
+		assertSame(CompletionList.EMPTY, CompletionList.of(Collections.emptyList()));
+		texts.clear();
+		assertEquals("a copy", 2, list.size());
+		assertEquals("b", list.get(1).getReplacementText());
+		assertTrue(list instanceof RandomAccess);
+	}
+	
+	@Test
+	public void testSharedPerClass() {
+		final List<CompletionText> statics = new StaticDotAutocompletions("java.io.File").get();
+		assertTrue(statics instanceof CompletionList);
+		assertSame("across requests", statics, new StaticDotAutocompletions("java.io.File").get());
+		assertSame(DotAutocompletions.getPublicFieldsAndMethods("java.io.File"), DotAutocompletions.getPublicFieldsAndMethods("java.io.File"));
+	}
+	
+	@Test
+	public void testImmutable() {
+		final CompletionList list = CompletionList.of(texts("a"));
+		for (final Runnable change : Arrays.<Runnable>asList(
+				() -> list.add(new CompletionText("b")),
+				() -> list.set(0, new CompletionText("b")),
+				() -> list.remove(0),
+				() -> list.clear())) {
+			try {
+				change.run();
+				throw new AssertionError("changed");
+			} catch (UnsupportedOperationException e) {
+				// expected
+			}
+		}
+		assertEquals(1, list.size());
+	}
+}
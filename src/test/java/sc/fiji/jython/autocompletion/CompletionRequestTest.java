@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import org.fife.ui.autocomplete.BasicCompletion;
+import org.fife.ui.autocomplete.Completion;
+import org.fife.ui.autocomplete.DefaultCompletionProvider;
+import org.junit.Test;
+
+public class CompletionRequestTest {
+	
+	@Test
+	public void testCheckpointThrowsOnlyOnceCancelled() {
+		final CompletionRequest request = new CompletionRequest();
+		request.checkpoint();
+		assertFalse(request.isCancelled());
+		request.cancel();
+		assertTrue(request.isCancelled());
+		try {
+			request.checkpoint();
+			throw new AssertionError("not cancelled");
+		} catch (CancellationException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void testOfferKeepsTheLatestResults() {
+		final CompletionRequest request = new CompletionRequest();
+		assertEquals(Collections.emptyList(), request.getPartial());
+		final List<Completion> first = Arrays.asList(new BasicCompletion(new DefaultCompletionProvider(), "a")),
+		                       second = Arrays.asList(new BasicCompletion(new DefaultCompletionProvider(), "b"));
+		request.offer(first);
+		request.offer(second);
+		assertEquals(second, request.getPartial());
+	}
+	
+	@Test
+	public void testNoneIsNeverCancelled() {
+		CompletionRequest.NONE.cancel();
+		assertFalse(CompletionRequest.NONE.isCancelled());
+		CompletionRequest.NONE.checkpoint();
+		CompletionRequest.NONE.offer(Arrays.asList(new BasicCompletion(new DefaultCompletionProvider(), "a")));
+		assertEquals("shared: records nothing", Collections.emptyList(), CompletionRequest.NONE.getPartial());
+	}
+}
@@ -0,0 +1,98 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.event.HierarchyEvent;
+
+import javax.swing.JTextArea;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class CompletionSessionsTest {
+	
+	private final int maxSessions = CompletionSessions.MAX_SESSIONS;
+	
+	@After
+	public void restore() {
+		CompletionSessions.closeAll();
+		CompletionSessions.MAX_SESSIONS = maxSessions;
+	}
+	
+	@Test
+	public void testOneSessionPerDocument() {
+		final Object a = new Object(), b = new Object();
+		assertSame(CompletionSessions.get(a), CompletionSessions.get(a));
+		assertNotSame(CompletionSessions.get(a), CompletionSessions.get(b));
+		assertSame(CompletionSessions.DEFAULT, CompletionSessions.get(null));
+		assertTrue("enough for many editor tabs", CompletionSessions.MAX_SESSIONS >= 20);
+	}
+	
+	@Test
+	public void testEvictsTheLeastRecentlyUsed() {
+		CompletionSessions.MAX_SESSIONS = 2;
+		final Object a = new Object(), b = new Object(), c = new Object();
+		final CompletionSession sa = CompletionSessions.get(a), sb = CompletionSessions.get(b);
+		CompletionSessions.get(a);
+		CompletionSessions.get(c);
+		assertTrue(sb.isClosed());
+		assertFalse(sa.isClosed());
+		assertNotSame("reopened anew", sb, CompletionSessions.get(b));
+	}
+	
+	@Test
+	public void testDoesNotEvictSessionsInUse() {
+		CompletionSessions.MAX_SESSIONS = 2;
+		final Object a = new Object(), b = new Object(), c = new Object();
+		final CompletionSession sa = CompletionSessions.acquire(a);
+		final CompletionSession sb = CompletionSessions.get(b);
+		CompletionSessions.get(c);
+		assertFalse(sa.isClosed());
+		assertTrue("the least recently used not in use", sb.isClosed());
+		sa.exit();
+		CompletionSessions.get(b);
+		assertTrue(sa.isClosed());
+		assertEquals(2, CompletionSessions.open().size());
+	}
+	
+	@Test
+	public void testClosesWhenTheComponentIsDisposed() {
+		final Object document = new Object();
+		final CompletionSession session = CompletionSessions.get(document);
+		final JTextArea area = new JTextArea();
+		final int listeners = area.getHierarchyListeners().length;
+		CompletionSessions.closeWhenDisposed(document, area);
+		CompletionSessions.closeWhenDisposed(document, area);
+		assertEquals("watched once", listeners + 1, area.getHierarchyListeners().length);
+		area.dispatchEvent(new HierarchyEvent(area, HierarchyEvent.HIERARCHY_CHANGED, area, null, HierarchyEvent.SHOWING_CHANGED));
+		assertFalse(session.isClosed());
+		area.dispatchEvent(new HierarchyEvent(area, HierarchyEvent.HIERARCHY_CHANGED, area, null, HierarchyEvent.DISPLAYABILITY_CHANGED));
+		assertTrue(session.isClosed());
+		assertEquals(listeners, area.getHierarchyListeners().length);
+	}
+}
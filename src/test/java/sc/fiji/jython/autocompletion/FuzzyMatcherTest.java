@@ -0,0 +1,83 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FuzzyMatcherTest {
+	
+	static int score(final String pattern, final String text) {
+		final String lowerCase = text.toLowerCase();
+		return new FuzzyMatcher(pattern).score(text, lowerCase, FuzzyMatcher.mask(lowerCase));
+	}
+	
+	@Test
+	public void testTiers() {
+		final Object[][] table = {
+			// pattern, text, tier
+			{"", "getProcessor", FuzzyMatcher.PREFIX},
+			{"get", "getProcessor", FuzzyMatcher.PREFIX},
+			{"getP", "getProcessor", FuzzyMatcher.PREFIX},
+			{"GETP", "getProcessor", FuzzyMatcher.PREFIX_IGNORE_CASE},
+			{"getp", "getProcessor", FuzzyMatcher.PREFIX_IGNORE_CASE},
+			{"gPr", "getProcessor", FuzzyMatcher.CAMEL_CASE},
+			{"gSP", "getStackProcessor", FuzzyMatcher.CAMEL_CASE},
+			{"gNS", "get_num_slices", FuzzyMatcher.CAMEL_CASE},
+			{"process", "getProcessor", FuzzyMatcher.SUBSTRING},
+			{"STACK", "getStackSize", FuzzyMatcher.SUBSTRING},
+			{"gpix", "getPixel", FuzzyMatcher.SUBSEQUENCE},
+			{"gtsz", "getStackSize", FuzzyMatcher.SUBSEQUENCE},
+			{"xyz", "getProcessor", FuzzyMatcher.NONE},
+			{"rp", "getProcessor", FuzzyMatcher.NONE}, // out of order
+			{"getProcessors", "getProcessor", FuzzyMatcher.NONE}, // longer
+			{"gPz", "getProcessor", FuzzyMatcher.NONE}, // a character not in the text
+		};
+		for (final Object[] row : table)
+			assertEquals(row[0] + " for " + row[1], (int)(Integer)row[2], FuzzyMatcher.tier(score((String)row[0], (String)row[1])));
+	}
+	
+	@Test
+	public void testBetterMatchesScoreHigherWithinATier() {
+		final String[][] table = {
+			// pattern, better, worse
+			{"gpix", "getPixel", "getPaddingIndex"}, // consecutive characters
+			{"gPr", "getProcessor", "getPixelArray"}, // consecutive characters after a word start
+			{"gsz", "getSize", "getStackSize"}, // fewer characters skipped
+		};
+		for (final String[] row : table) {
+			final int better = score(row[0], row[1]),
+			          worse = score(row[0], row[2]);
+			assertEquals(row[0], FuzzyMatcher.tier(better), FuzzyMatcher.tier(worse));
+			assertTrue(row[0] + ": " + row[1] + " " + better + " vs " + row[2] + " " + worse, better > worse);
+		}
+	}
+	
+	@Test
+	public void testMask() {
+		assertEquals(FuzzyMatcher.mask("abc"), FuzzyMatcher.mask("cba"));
+		assertEquals(FuzzyMatcher.mask("a_1"), FuzzyMatcher.mask("a") | FuzzyMatcher.mask("_") | FuzzyMatcher.mask("1"));
+		assertTrue(FuzzyMatcher.mask("(") != 0);
+	}
+}
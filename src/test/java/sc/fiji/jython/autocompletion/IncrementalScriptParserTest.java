@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.scijava.ui.swing.script.autocompletion.CompletionText;
+
+public class IncrementalScriptParserTest {
+	
+	static String lines(final String... lines) {
+		return String.join("\n", lines) + "\n";
+	}
+	
+	static TreeSet<String> vars(final Scope scope) {
+		return new TreeSet<>(scope.vars.keys());
+	}
+	
+	static List<String> names(final DotAutocompletions da) {
+		final List<String> names = new ArrayList<>();
+		for (final CompletionText ct : da.get())
+			names.add(ct.getReplacementText());
+		return names;
+	}
+	
+	@Test
+	public void testEditInTheMiddleKeepsOtherBindings() {
+		final IncrementalScriptParser parser = new IncrementalScriptParser();
+		final Scope root = parser.parse(lines(
+				"from java.io import File",
+				"f = File('a')",
+				"n = 10",
+				"s = 'hi'"));
+		final DotAutocompletions f = root.find("f", null),
+		                         s = root.find("s", null);
+		assertNotNull(f);
+		assertEquals("java.io.File", f.getClassname());
+		assertSame(root, parser.parse(lines(
+				"from java.io import File",
+				"f = File('a')",
+				"count = 10",
+				"s = 'hi'")));
+		assertEquals(new TreeSet<>(Arrays.asList("count", "f", "s")), vars(root));
+		assertSame("reused, not parsed again", f, root.find("f", null));
+		assertEquals(s.getClassname(), root.find("s", null).getClassname());
+		assertNotNull(root.find("File", null));
+	}
+	
+	@Test
+	public void testUndoRemovesAttributesAddedToAClass() {
+		final IncrementalScriptParser parser = new IncrementalScriptParser();
+		final String cls = lines(
+				"class V(object):",
+				"  def __init__(self):",
+				"    self.a = 1",
+				"v = V()");
+		Scope root = parser.parse(cls + "v.extra = 2\n");
+		assertTrue(names(root.find("V", null)).contains("extra"));
+		root = parser.parse(cls);
+		assertFalse(names(root.find("V", null)).contains("extra"));
+		assertTrue(names(root.find("V", null)).contains("__init__"));
+		// And added again when the statement comes back
+		root = parser.parse(cls + "v.extra = 2\n");
+		assertTrue(names(root.find("V", null)).contains("extra"));
+	}
+	
+	@Test
+	public void testBrokenLineKeepsLastGoodBindings() {
+		final IncrementalScriptParser parser = new IncrementalScriptParser();
+		parser.parse(lines(
+				"from java.io import File",
+				"f = File('a')",
+				"g = File('b')",
+				"h = 3"));
+		// Insert a statement above and break one below, in the same edit
+		Scope root = parser.parse(lines(
+				"from java.io import File",
+				"n = 1",
+				"f = File('a')",
+				"g = File('b'",
+				"h = 3"));
+		assertEquals(new TreeSet<>(Arrays.asList("f", "g", "h", "n")), vars(root));
+		assertEquals("java.io.File", root.find("g", null).getClassname());
+		// Fixed again
+		root = parser.parse(lines(
+				"from java.io import File",
+				"n = 1",
+				"f = File('a')",
+				"g = File('b')",
+				"h = 3"));
+		assertEquals(new TreeSet<>(Arrays.asList("f", "g", "h", "n")), vars(root));
+		// Delete statements above, and break one below
+		root = parser.parse(lines(
+				"from java.io import File",
+				"f = File('a')",
+				"h = 3 +"));
+		assertEquals(new TreeSet<>(Arrays.asList("f", "h")), vars(root));
+		assertNotNull(root.find("h", null));
+		assertEquals("java.io.File", root.find("f", null).getClassname());
+	}
+}
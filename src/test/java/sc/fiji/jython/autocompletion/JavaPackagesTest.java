@@ -0,0 +1,119 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JavaPackagesTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private File jar(final String name, final String... entries) throws IOException {
+		final File file = new File(folder.getRoot(), name);
+		try (final JarOutputStream jos = new JarOutputStream(new FileOutputStream(file))) {
+			for (final String entry : entries) {
+				jos.putNextEntry(new ZipEntry(entry));
+				jos.closeEntry();
+			}
+		}
+		return file;
+	}
+	
+	private File jptest() throws IOException {
+		return jar("jptest.jar", "jptest/a/A.class", "jptest/a/B.class", "jptest/a/A$Inner.class",
+				"jptest/a/package-info.class", "jptest/a/b/C.class", "jptest/c/d/D.class", "jptest/a/README.txt",
+				"META-INF/versions/9/jptest/a/V.class", "Top.class");
+	}
+	
+	private JavaPackages load(final File jar) throws IOException {
+		return JavaPackages.load(Arrays.asList(jar), new File(folder.getRoot(), "cache.idx"));
+	}
+	
+	static private Map<String, Byte> kinds(final Object... namesAndKinds) {
+		final Map<String, Byte> map = new HashMap<>();
+		for (int i = 0; i < namesAndKinds.length; i += 2)
+			map.put((String)namesAndKinds[i], (Byte)namesAndKinds[i + 1]);
+		return map;
+	}
+	
+	@Test
+	public void testFindChildren() throws Exception {
+		final JavaPackages jp = load(jptest());
+		final Object[][] table = {
+			// parent, prefix, packages only, expected
+			{"", "jptes", false, kinds("jptest", JavaPackages.PACKAGE)},
+			{"jptest", "", false, kinds("jptest.a", JavaPackages.PACKAGE_WITH_CLASSES, "jptest.c", JavaPackages.PACKAGE)},
+			{"jptest.a", "", false, kinds("jptest.a.A", JavaPackages.CLASS, "jptest.a.B", JavaPackages.CLASS, "jptest.a.b", JavaPackages.PACKAGE_WITH_CLASSES)},
+			{"jptest.a", "", true, kinds("jptest.a.b", JavaPackages.PACKAGE_WITH_CLASSES)},
+			{"jptest.a", "B", false, kinds("jptest.a.B", JavaPackages.CLASS)},
+			{"jptest.c", "d", false, kinds("jptest.c.d", JavaPackages.PACKAGE_WITH_CLASSES)},
+			{"jptest.none", "", false, kinds()},
+		};
+		for (final Object[] row : table)
+			assertEquals(row[0] + " " + row[1], row[3], jp.findChildren((String)row[0], (String)row[1], (Boolean)row[2]));
+	}
+	
+	@Test
+	public void testIsPackage() throws Exception {
+		final JavaPackages jp = load(jptest());
+		assertTrue(jp.isPackage("jptest"));
+		assertTrue(jp.isPackage("jptest.a.b"));
+		assertFalse("a class", jp.isPackage("jptest.a.A"));
+		assertFalse(jp.isPackage("jptest.x"));
+		assertFalse("the default package", jp.isPackage(""));
+		assertTrue("of the JDK", jp.isPackage("java.util"));
+		assertTrue(jp.findChildren("java.util", "ArrayLis", false).containsKey("java.util.ArrayList"));
+	}
+	
+	@Test
+	public void testReusesTheCacheFile() throws Exception {
+		final File cache = new File(folder.getRoot(), "cache.idx");
+		final File jar = jptest();
+		final int size = load(jar).size();
+		assertTrue(cache.exists());
+		final long time = System.currentTimeMillis() - 24 * 60 * 60 * 1000;
+		assertTrue(cache.setLastModified(time));
+		assertEquals(size, load(jar).size());
+		assertEquals("not written again", time / 1000, cache.lastModified() / 1000);
+		// Made from other jar files: written again
+		final JavaPackages other = JavaPackages.load(Arrays.asList(jar("other.jar", "jpother/E.class")), cache);
+		assertTrue(other.isPackage("jpother"));
+		assertFalse(other.isPackage("jptest"));
+		assertTrue(cache.lastModified() / 1000 > time / 1000);
+	}
+}
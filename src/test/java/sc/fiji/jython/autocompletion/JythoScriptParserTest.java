@@ -21,6 +21,18 @@
  */
 package sc.fiji.jython.autocompletion;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.scijava.ui.swing.script.autocompletion.CompletionText;
+
 public class JythoScriptParserTest {
 	
 	static public String testCode = String.join("\n",
@@ -101,6 +113,65 @@ public class JythoScriptParserTest {
 			""
 			);
 	
+	static final String testCode6 = String.join("\n",
+			"class Volume(object):",
+			"  def __init__(self, n):", // the placeholder for self is mutated into the class, see ClassDotAutocompletions.mutateIntoPlus
+			"    self.n = n",
+			"vol = Volume(10)",
+			""
+			);
+	
+	static List<String> names(final DotAutocompletions da) {
+		final List<String> names = new ArrayList<>();
+		for (final CompletionText ct : da.get())
+			names.add(ct.getReplacementText());
+		return names;
+	}
+	
+	@Test
+	public void testConstructorArguments() {
+		final Scope scope = JythonScriptParser.parseAST(testCode6);
+		final ClassDotAutocompletions volume = (ClassDotAutocompletions)scope.find("Volume", null);
+		assertEquals(Arrays.asList("n"), volume.getArgumentNames());
+		final DefVarDotAutocompletions init = (DefVarDotAutocompletions)volume.scope.vars.get("__init__");
+		assertEquals(Arrays.asList("self", "n"), init.getArgumentNames());
+		// The first argument is the class, plus the attributes assigned to it in the method
+		final ClassDotAutocompletions self = (ClassDotAutocompletions)init.scope.analyze().vars.get("self");
+		assertEquals("Volume", self.fnName);
+		assertEquals(Arrays.asList("n"), self.getArgumentNames());
+		assertTrue(names(self).containsAll(Arrays.asList("__init__", "n")));
+		assertTrue(names(scope.find("vol", null)).contains("__init__"));
+	}
+	
+	@Test
+	public void testInfersReturnClassesOnlyWhenNeeded() {
+		final Scope scope = JythonScriptParser.parseAST(String.join("\n",
+				"from ij import ImagePlus",
+				"def make(title):",
+				"  imp = ImagePlus()",
+				"  return imp",
+				"def helper():",
+				"  x = 1",
+				"def rec(n):",
+				"  return rec(n - 1)",
+				""));
+		final DefVarDotAutocompletions make = (DefVarDotAutocompletions)scope.find("make", null),
+		                               helper = (DefVarDotAutocompletions)scope.find("helper", null),
+		                               rec = (DefVarDotAutocompletions)scope.find("rec", null);
+		assertEquals(Arrays.asList("title"), make.getArgumentNames()); // known without analyzing the body
+		assertTrue(make.scope.isPending());
+		assertTrue(helper.scope.isPending());
+		assertEquals("ij.ImagePlus", make.getClassname());
+		assertFalse("analyzed to infer it", make.scope.isPending());
+		assertEquals("ij.ImagePlus", make.scope.vars.get("imp").getClassname());
+		assertNull("returns nothing", helper.getClassname());
+		assertTrue("not analyzed: returns nothing", helper.scope.isPending());
+		assertNull("recursive", rec.getClassname());
+		assertFalse(rec.scope.isPending());
+		// Cached
+		assertEquals("ij.ImagePlus", make.getClassname());
+	}
+	
 	static public final void main(String[] args) {
 		try {
 			final String code = testCode3;
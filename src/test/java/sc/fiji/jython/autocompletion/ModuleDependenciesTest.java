@@ -0,0 +1,89 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.python.indexer.Indexer;
+
+public class ModuleDependenciesTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private String write(final String name, final String code) throws IOException {
+		final File file = new File(folder.getRoot(), name);
+		Files.write(file.toPath(), code.getBytes(StandardCharsets.UTF_8));
+		return file.getAbsolutePath();
+	}
+	
+	static Set<String> set(final String... files) {
+		return new HashSet<>(Arrays.asList(files));
+	}
+	
+	@Test
+	public void testRemoveEvictsDependentsTransitively() throws Exception {
+		// Unique names: the indexer is shared, see Scope#indexer
+		final String p = "moddeps" + System.nanoTime();
+		final String a = write(p + "a.py", "x = 1\n"),
+		             b = write(p + "b.py", "from " + p + "a import x\ny = x\n"),
+		             c = write(p + "c.py", "import " + p + "b\nz = " + p + "b.y\n"),
+		             d = write(p + "d.py", "w = 2\n");
+		final String dir = folder.getRoot().getAbsolutePath();
+		// Not a new Indexer: the nodes of the jython indexer bind names into the latest one created, Indexer.idx
+		final Indexer indexer = Scope.indexer;
+		final ModuleDependencies dependencies = new ModuleDependencies();
+		synchronized (indexer) {
+			indexer.addPath(dir);
+			try {
+				indexer.loadModule(p + "c");
+				indexer.loadModule(p + "d");
+				dependencies.record(indexer, Arrays.asList(a, b, c, d));
+			} finally {
+				indexer.path.removeIf(s -> dir.equals(new File(s).getAbsolutePath()));
+				for (final String file : Arrays.asList(a, b, c, d))
+					indexer.moduleTable.remove(file);
+			}
+		}
+		
+		assertEquals("nothing imports it", set(d), dependencies.remove(d));
+		assertEquals("imported directly by b, and through b by c", set(a, b, c), dependencies.remove(a));
+		// Forgotten: removing again returns only the file itself
+		assertEquals(set(b), dependencies.remove(b));
+	}
+	
+	@Test
+	public void testRemoveUnknownFile() {
+		assertEquals(set("/none.py"), new ModuleDependencies().remove("/none.py"));
+	}
+}
@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ModuleLoaderTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private String dir;
+	
+	@Before
+	public void addToLoadPath() throws Exception {
+		this.dir = folder.getRoot().getAbsolutePath();
+		synchronized (Scope.indexer) {
+			Scope.indexer.addPath(dir);
+			Scope.loadPathChanged();
+		}
+	}
+	
+	@After
+	public void removeFromLoadPath() {
+		synchronized (Scope.indexer) {
+			Scope.indexer.path.removeIf(s -> dir.equals(new File(s).getAbsolutePath()));
+			Scope.loadPathChanged();
+		}
+	}
+	
+	/** @return The qualified name of a new module with the given code. */
+	private String module(final String code) throws Exception {
+		final String qname = "moduleloadertest" + System.nanoTime();
+		Files.write(new File(dir, qname + ".py").toPath(), code.getBytes("UTF-8"));
+		return qname;
+	}
+	
+	@Test
+	public void testSnapshotsSortedNamesOnce() throws Exception {
+		final String qname = module("b = 1\na = 2\ndef c():\n  pass\n");
+		final ModuleLoader.Snapshot snapshot = ModuleLoader.load(qname);
+		assertNotNull(snapshot);
+		assertEquals(qname, snapshot.qname);
+		assertTrue(snapshot.names.toString(), snapshot.names.containsAll(Arrays.asList("a", "b", "c")));
+		final List<String> sorted = new ArrayList<>(snapshot.names);
+		sorted.sort(null);
+		assertEquals(sorted, snapshot.names);
+		assertEquals(snapshot.names.size(), snapshot.completions.size());
+		assertEquals(new File(dir, qname + ".py").getAbsolutePath(), new File(snapshot.file).getAbsolutePath());
+		assertSame(snapshot, ModuleLoader.load(qname));
+	}
+	
+	@Test
+	public void testConcurrentLoadsShareOneSnapshot() throws Exception {
+		final String qname = module("x = 1\n");
+		final int n = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		final ExecutorService exe = Executors.newFixedThreadPool(n);
+		try {
+			final List<Future<ModuleLoader.Snapshot>> loads = new ArrayList<>();
+			for (int i = 0; i < n; ++i)
+				loads.add(exe.submit(() -> {
+					start.await();
+					return ModuleLoader.load(qname);
+				}));
+			start.countDown();
+			final ModuleLoader.Snapshot snapshot = loads.get(0).get();
+			assertNotNull(snapshot);
+			for (final Future<ModuleLoader.Snapshot> load : loads)
+				assertSame(snapshot, load.get());
+		} finally {
+			exe.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void testRemembersFailuresUntilTheLoadPathChanges() throws Exception {
+		final String qname = "moduleloadertest" + System.nanoTime();
+		assertNull(ModuleLoader.load(qname));
+		Files.write(new File(dir, qname + ".py").toPath(), "x = 1\n".getBytes("UTF-8"));
+		assertNull("not tried again", ModuleLoader.load(qname));
+		synchronized (Scope.indexer) {
+			Scope.loadPathChanged();
+		}
+		assertNotNull(ModuleLoader.load(qname));
+	}
+	
+	@Test
+	public void testInvalidateLoadsAnew() throws Exception {
+		final String qname = module("x = 1\n");
+		final ModuleLoader.Snapshot snapshot = ModuleLoader.load(qname);
+		synchronized (Scope.indexer) {
+			ModuleLoader.invalidate();
+		}
+		final ModuleLoader.Snapshot again = ModuleLoader.load(qname);
+		assertNotSame(snapshot, again);
+		assertEquals(snapshot.names, again.names);
+	}
+	
+	@Test
+	public void testPackageDirs() throws Exception {
+		final File pkg = folder.newFolder("moduleloadertestpkg", "sub");
+		assertEquals(Arrays.asList(pkg.getAbsoluteFile()), ModuleLoader.packageDirs("moduleloadertestpkg.sub"));
+		assertTrue(ModuleLoader.packageDirs("moduleloadertestpkg.none").isEmpty());
+	}
+}
@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ModulePathIndexTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private String dir;
+	
+	@Before
+	public void addToLoadPath() throws Exception {
+		final File root = folder.getRoot();
+		new File(root, "mpitest").mkdir();
+		touch("mpitest/__init__.py");
+		touch("mpitest/sub.py");
+		touch("mpitest/notes.txt");
+		touch("mpitop.py");
+		dir = root.getAbsolutePath();
+		synchronized (Scope.indexer) {
+			Scope.indexer.addPath(dir);
+			Scope.loadPathChanged();
+		}
+	}
+	
+	@After
+	public void removeFromLoadPath() {
+		synchronized (Scope.indexer) {
+			Scope.indexer.path.removeIf(s -> dir.equals(new File(s).getAbsolutePath()));
+			Scope.loadPathChanged();
+		}
+	}
+	
+	private File touch(final String path) throws IOException {
+		final File file = new File(folder.getRoot(), path);
+		Files.write(file.toPath(), new byte[0]);
+		return file;
+	}
+	
+	/** Wait up to 10 seconds for the condition, which the index meets in the background. */
+	static void await(final String message, final BooleanSupplier condition) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) throw new AssertionError(message);
+			Thread.sleep(20);
+		}
+	}
+	
+	@Test
+	public void testIndexesModulesAndPackages() throws Exception {
+		ModulePathIndex.findStartsWith("mpi"); // starts indexing
+		await("indexed", ModulePathIndex::ready);
+		assertEquals(Arrays.asList("mpitest", "mpitest.sub", "mpitop"), ModulePathIndex.findStartsWith("mpi"));
+		assertEquals(Arrays.asList("mpitest.sub"), ModulePathIndex.findStartsWith("mpitest.s"));
+		assertTrue(ModulePathIndex.contains("mpitest.sub"));
+		assertFalse("not a python file", ModulePathIndex.contains("mpitest.notes"));
+	}
+	
+	@Test
+	public void testFollowsCreatedAndDeletedFiles() throws Exception {
+		ModulePathIndex.findStartsWith("mpi");
+		await("indexed", ModulePathIndex::ready);
+		touch("mpitest/added.py");
+		await("created file indexed", () -> ModulePathIndex.contains("mpitest.added"));
+		new File(folder.getRoot(), "mpitop.py").delete();
+		await("deleted file dropped", () -> !ModulePathIndex.contains("mpitop"));
+	}
+}
@@ -0,0 +1,71 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.fife.ui.autocomplete.Completion;
+import org.fife.ui.autocomplete.DefaultCompletionProvider;
+import org.junit.Test;
+import org.scijava.ui.swing.script.autocompletion.CompletionText;
+
+public class RankingTest {
+	
+	static List<CompletionText> candidates(final String... texts) {
+		final List<CompletionText> candidates = new ArrayList<>();
+		for (final String text : texts)
+			candidates.add(new CompletionText(text));
+		return candidates;
+	}
+	
+	static List<String> texts(final List<Completion> completions) {
+		final List<String> texts = new ArrayList<>();
+		for (final Completion c : completions)
+			texts.add(c.getReplacementText());
+		return texts;
+	}
+	
+	static final List<CompletionText> members = candidates("setTitle()", "getTitle()", "getWidth()", "GET_ALL", "toString()", "gettext()");
+	
+	@Test
+	public void testTopLimitsToTheBestK() {
+		assertEquals(Arrays.asList("getTitle()", "gettext()"),
+				texts(Ranking.top(new DefaultCompletionProvider(), members, "getT", "", 2)));
+	}
+	
+	@Test
+	public void testTopListsAllWhenUnbounded() {
+		assertEquals(4, Ranking.top(new DefaultCompletionProvider(), members, "get", "", 0).size());
+		assertEquals(members.size(), Ranking.top(new DefaultCompletionProvider(), members, "", "", 0).size());
+	}
+	
+	@Test
+	public void testUnrankedKeepsThePrefixMatchesInOrder() {
+		assertEquals(Arrays.asList("imp.getTitle()", "imp.getWidth()", "imp.GET_ALL", "imp.gettext()"),
+				texts(Ranking.unranked(new DefaultCompletionProvider(), members, "get", "imp.")));
+		assertEquals(Arrays.asList(), Ranking.unranked(new DefaultCompletionProvider(), members, "xyz", ""));
+	}
+}
@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResolverTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private final int maxMisses = Resolver.MAX_MISSES;
+	private String dir = null;
+	
+	@After
+	public void restore() {
+		Resolver.MAX_MISSES = maxMisses;
+		if (null != dir) {
+			synchronized (Scope.indexer) {
+				Scope.indexer.path.removeIf(s -> dir.equals(new File(s).getAbsolutePath()));
+				Scope.loadPathChanged();
+			}
+			Resolver.invalidateModules();
+		}
+	}
+	
+	@Test
+	public void testKinds() {
+		final Object[][] table = {
+			{"java.io.File", Resolver.Kind.JAVA_CLASS},
+			{"java.io.File.separator", Resolver.Kind.JAVA_STATIC_MEMBER},
+			{"java.io.File.listRoots", Resolver.Kind.JAVA_STATIC_MEMBER},
+			{"java.io.File.getName", Resolver.Kind.NOT_FOUND}, // not static
+			{"java.io.Nothing", Resolver.Kind.NOT_FOUND},
+			{"os.path", Resolver.Kind.PYTHON_MODULE},
+		};
+		for (final Object[] row : table)
+			assertEquals((String)row[0], row[1], Resolver.resolve((String)row[0]));
+	}
+	
+	@Test
+	public void testAttributes() {
+		assertEquals("java.lang.String", Resolver.attribute("java.io.File", "getName").getClassname());
+		assertSame("cached", Resolver.attribute("java.io.File", "getName"), Resolver.attribute("java.io.File", "getName"));
+		assertSame(DotAutocompletions.EMPTY, Resolver.attribute("java.io.File", "nothing"));
+	}
+	
+	@Test
+	public void testKeepsMissesOnlyForNamesNotBeingTyped() {
+		final String type = "java.util.zip.CRC32";
+		assertEquals(0, Resolver.misses(type));
+		assertSame(DotAutocompletions.EMPTY, Resolver.attribute(type, "getVal")); // the start of getValue
+		assertEquals(0, Resolver.misses(type));
+		assertSame(DotAutocompletions.EMPTY, Resolver.attribute(type, "xyzzy"));
+		assertEquals(1, Resolver.misses(type));
+		Resolver.invalidateModules();
+		assertEquals("forgotten, e.g. when the load path changes", 0, Resolver.misses(type));
+	}
+	
+	@Test
+	public void testCapsMissesPerType() {
+		Resolver.MAX_MISSES = 3;
+		final String type = "java.util.zip.Adler32";
+		for (int i = 0; i < 10; ++i)
+			assertSame(DotAutocompletions.EMPTY, Resolver.attribute(type, "xyzzy" + i));
+		assertEquals(3, Resolver.misses(type));
+	}
+	
+	@Test
+	public void testModuleFoundOnceTheLoadPathGrows() throws Exception {
+		final String module = "resolvertest" + Math.abs(System.nanoTime());
+		Files.write(new File(folder.getRoot(), module + ".py").toPath(), "x = 1\n".getBytes("UTF-8"));
+		assertEquals(Resolver.Kind.NOT_FOUND, Resolver.resolve(module));
+		dir = folder.getRoot().getAbsolutePath();
+		SysPathTracker.add(dir, null);
+		ModulePathIndexTest.await("found", () -> Resolver.Kind.PYTHON_MODULE == Resolver.resolve(module));
+		assertTrue(ModulePathIndex.contains(module));
+	}
+}
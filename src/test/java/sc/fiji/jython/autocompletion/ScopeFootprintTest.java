@@ -0,0 +1,95 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import sc.fiji.jython.autocompletion.benchmark.Scripts;
+
+/**
+ * Reports the memory retained by the scopes of parsed scripts, as if for many open editors:
+ * bytes per scope and per name bound, right after parsing and after completing a name from
+ * each scope, which should retain nothing more.
+ * 
+ * Run with e.g. -Xmx1g, as a main class of the test classpath.
+ */
+public class ScopeFootprintTest {
+	
+	static private long usedMemory() {
+		final Runtime rt = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 5; ++i) {
+			System.gc();
+			try { Thread.sleep(50); } catch (InterruptedException e) {}
+			used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+		}
+		return used;
+	}
+	
+	static private int countBindings(final Scope scope) {
+		int n = scope.imports.size() + scope.vars.size();
+		for (final Scope child: scope.children)
+			n += countBindings(child);
+		return n;
+	}
+	
+	static private void lookupFromAll(final Scope scope) {
+		scope.findStartsWith("I"); // as when completing a name
+		for (final Scope child: scope.children)
+			lookupFromAll(child);
+	}
+	
+	static private void report(final String label, final long bytes, final int nScopes, final int nBindings) {
+		System.out.println(String.format("%s: %d KB retained, %d bytes per scope (%d scopes), %d bytes per name bound (%d names)",
+				label, bytes / 1024, bytes / nScopes, nScopes, bytes / nBindings, nBindings));
+	}
+	
+	static public final void main(String[] args) {
+		final int nEditors = args.length > 0 ? Integer.parseInt(args[0]) : 50,
+		          nLines = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		final String code = Scripts.script(nLines);
+		// Warm up: load classes, and intern the names of the script
+		JythonScriptParser.parseAST(code);
+		
+		final long before = usedMemory();
+		final List<Scope> editors = new ArrayList<>();
+		for (int i = 0; i < nEditors; ++i)
+			editors.add(JythonScriptParser.parseAST(code));
+		final long parsed = usedMemory();
+		
+		int nScopes = 0,
+		    nBindings = 0;
+		for (final Scope scope: editors) {
+			nScopes += scope.countScopes();
+			nBindings += countBindings(scope);
+		}
+		System.out.println(nEditors + " scripts of " + nLines + " lines; " + Symbols.size() + " names interned");
+		report("Parsed", parsed - before, nScopes, nBindings);
+		
+		for (final Scope scope: editors)
+			lookupFromAll(scope);
+		report("After lookups", usedMemory() - before, nScopes, nBindings);
+		
+		if (editors.isEmpty()) System.out.println(); // keep the scopes reachable until here
+	}
+}
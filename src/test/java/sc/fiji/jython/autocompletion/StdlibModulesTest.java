@@ -0,0 +1,81 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StdlibModulesTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private File jar(final String name, final String... entries) throws IOException {
+		final File file = new File(folder.getRoot(), name);
+		try (final JarOutputStream jos = new JarOutputStream(new FileOutputStream(file))) {
+			for (final String entry : entries) {
+				jos.putNextEntry(new ZipEntry(entry));
+				jos.closeEntry();
+			}
+		}
+		return file;
+	}
+	
+	@Test
+	public void testListsModulesAndPackages() throws Exception {
+		final File jar = jar("jython-slim-test.jar", "Lib/os.py", "Lib/xml/__init__.py", "Lib/xml/dom/minidom.py",
+				"Lib/README.txt", "org/python/Other.py");
+		final StdlibModules sm = StdlibModules.load(jar, new File(folder.getRoot(), "cache.idx"));
+		assertEquals(Arrays.asList("os", "xml", "xml.dom.minidom"), sm.asList());
+		assertEquals(3, sm.size());
+		assertTrue(sm.contains("xml"));
+		assertFalse("not a module", sm.contains("xml.dom"));
+		assertFalse(sm.contains("Other"));
+		assertEquals(Arrays.asList("xml", "xml.dom.minidom"), sm.findStartsWith("x"));
+		assertEquals(Collections.emptyList(), sm.findStartsWith("z"));
+	}
+	
+	@Test
+	public void testReusesTheCacheFileOnlyForTheSameJar() throws Exception {
+		final File cache = new File(folder.getRoot(), "cache.idx");
+		File jar = jar("jython-slim-test.jar", "Lib/os.py");
+		assertEquals(Arrays.asList("os"), StdlibModules.load(jar, cache).asList());
+		assertTrue(cache.exists());
+		assertEquals("read from the cache file", Arrays.asList("os"), StdlibModules.load(jar, cache).asList());
+		jar = jar("jython-slim-test.jar", "Lib/os.py", "Lib/re.py");
+		jar.setLastModified(jar.lastModified() - 10000);
+		assertEquals("jar changed", Arrays.asList("os", "re"), StdlibModules.load(jar, cache).asList());
+	}
+}
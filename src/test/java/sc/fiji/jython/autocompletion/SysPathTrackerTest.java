@@ -0,0 +1,136 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SysPathTrackerTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private String lib1, lib2;
+	private final List<Object> documents = new ArrayList<>();
+	
+	@Before
+	public void setup() throws Exception {
+		lib1 = folder.newFolder("lib1").getAbsolutePath();
+		lib2 = folder.newFolder("lib2").getAbsolutePath();
+	}
+	
+	@After
+	public void closeSessions() {
+		for (final Object document : documents)
+			CompletionSessions.close(document);
+		assertFalse(loaded(lib1));
+		assertFalse(loaded(lib2));
+	}
+	
+	/** Parse the lines incrementally in the session of the document, as when completing. */
+	private void parse(final Object document, final String... lines) {
+		if (!documents.contains(document)) documents.add(document);
+		final CompletionSession session = CompletionSessions.get(document);
+		CompletionSession.setCurrent(session);
+		try {
+			session.parser.parse(String.join("\n", lines) + "\n");
+		} finally {
+			CompletionSession.setCurrent(null);
+		}
+	}
+	
+	/** @return Whether the load path has the directory, whose entries end with a separator. */
+	static boolean loaded(final String dir) {
+		for (final String path : Scope.loadPath())
+			if (dir.equals(new File(path).getAbsolutePath())) return true;
+		return false;
+	}
+	
+	static String append(final String dir) {
+		return "sys.path.append('" + dir + "')";
+	}
+	
+	@Test
+	public void testAppendAndInsert() {
+		final Object doc = new Object();
+		parse(doc, "import sys", append(lib1), "sys.path.insert(0,", "    '" + lib2 + "')");
+		assertTrue(loaded(lib1));
+		assertTrue("spanning two lines", loaded(lib2));
+	}
+	
+	@Test
+	public void testIgnoresMissingDirectoriesAndExpressions() {
+		final Object doc = new Object();
+		final int size = Scope.loadPath().size();
+		parse(doc, "import sys", append(lib1 + "/none"), "sys.path.append(lib2)", "os.path.append('" + lib2 + "')");
+		assertEquals(size, Scope.loadPath().size());
+	}
+	
+	@Test
+	public void testRemovedWithTheStatement() {
+		final Object doc = new Object();
+		parse(doc, "import sys", append(lib1), "x = 1");
+		assertTrue(loaded(lib1));
+		parse(doc, "import sys", "x = 1");
+		assertFalse("statement deleted", loaded(lib1));
+		parse(doc, "import sys", append(lib1), "x = 1");
+		assertTrue(loaded(lib1));
+		parse(doc, "import sys", append(lib2), "x = 1");
+		assertFalse("statement edited", loaded(lib1));
+		assertTrue(loaded(lib2));
+	}
+	
+	@Test
+	public void testDuplicatesRemovedWithTheLastStatement() {
+		final Object doc = new Object();
+		parse(doc, "import sys", append(lib1), "x = 1", append(lib1));
+		final int size = Scope.loadPath().size();
+		parse(doc, "import sys", append(lib1), "x = 1");
+		assertTrue("still added by another statement", loaded(lib1));
+		assertEquals(size, Scope.loadPath().size());
+		parse(doc, "import sys", "x = 1");
+		assertFalse(loaded(lib1));
+	}
+	
+	@Test
+	public void testKeptWhileAnotherSessionAddsIt() {
+		final Object doc1 = new Object(),
+		             doc2 = new Object();
+		parse(doc1, "import sys", append(lib1));
+		parse(doc2, "import sys", append(lib1));
+		parse(doc1, "import sys");
+		assertTrue(loaded(lib1));
+		CompletionSessions.close(doc2);
+		assertFalse("closing the session removes it", loaded(lib1));
+	}
+}
@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.fife.ui.autocomplete.DefaultCompletionProvider;
+import org.junit.Test;
+import org.python.core.CompileMode;
+import org.python.core.CompilerFlags;
+import org.python.core.ParserFacade;
+
+public class UsageStatsTest {
+	
+	/** For names not used before, as the counts persist across runs: digits only, so as not to match the seeds. */
+	static private final String suffix = Long.toString(Math.abs(System.nanoTime()));
+	
+	static private void record(final String text) {
+		UsageStats.record(text, ParserFacade.parse(text, CompileMode.exec, "<none>", new CompilerFlags()));
+	}
+	
+	@Test
+	public void testCountsAttributesOncePerStatement() {
+		final String name = "used" + suffix;
+		assertEquals(0, UsageStats.countName(name));
+		record("a = imp." + name + "()");
+		record("a = imp." + name + "()"); // the same statement, e.g. parsed again after an edit elsewhere
+		record("b = imp." + name + "() + imp." + name + "()");
+		assertEquals(3, UsageStats.countName(name));
+		assertEquals(3, UsageStats.count(name + "()"));
+	}
+	
+	@Test
+	public void testCountsImports() {
+		final String module = "mod" + suffix;
+		record("from " + module + " import Klass");
+		record("import " + module + ".sub");
+		record("from . import relative");
+		record("from " + module + " import *");
+		final List<String> imports = UsageStats.topImports(Integer.MAX_VALUE);
+		assertTrue(imports.containsAll(Arrays.asList(module + ".Klass", module + ".sub")));
+		assertFalse(imports.contains(module + ".*"));
+		assertFalse(imports.contains(".relative"));
+	}
+	
+	@Test
+	public void testMoreUsedRankFirstWithinATier() {
+		final String rare = "getRare" + suffix,
+		             common = "getCommon" + suffix,
+		             other = "getOther" + suffix;
+		// Used more than once, so as not to be trimmed, see testKeepsTheMostUsedNames
+		for (final String var : Arrays.asList("x", "y", "z"))
+			record(var + " = imp." + common + "()");
+		for (final String var : Arrays.asList("x", "y"))
+			record(var + " = imp." + rare + "()");
+		final Object[][] table = {
+			// seed, expected order
+			{"get", new String[]{common + "()", rare + "()", other + "()"}}, // all prefix matches: by usage, then by text
+			{"getR", new String[]{rare + "()", other + "()"}}, // prefix, then subsequence
+			{"gR", new String[]{rare + "()", other + "()"}}, // camel case, then subsequence
+			{"getO", new String[]{other + "()", common + "()"}}, // prefix, then subsequence
+		};
+		for (final Object[] row : table)
+			assertEquals((String)row[0], Arrays.asList((String[])row[1]),
+					RankingTest.texts(Ranking.top(new DefaultCompletionProvider(), RankingTest.candidates(other + "()", rare + "()", common + "()"), (String)row[0], "", 0)));
+		// A better tier wins over usage: camel case over subsequence
+		assertEquals(Arrays.asList(other + "()", common + "()"),
+				RankingTest.texts(Ranking.top(new DefaultCompletionProvider(), RankingTest.candidates(common + "()", other + "()"), "gO", "", 0)));
+	}
+	
+	@Test
+	public void testKeepsTheMostUsedNames() {
+		final String kept = "kept" + suffix;
+		record("k = (imp." + kept + ", imp." + kept + ")");
+		final int n = 2 * UsageStats.MAX_NAMES;
+		for (int i = 0; i < n; i += 100) {
+			final StringBuilder sb = new StringBuilder("t = (");
+			for (int k = i; k < i + 100; ++k)
+				sb.append("imp.once").append(k).append(suffix).append(", ");
+			record(sb.append(")").toString());
+		}
+		assertEquals(2, UsageStats.countName(kept));
+		int remaining = 0;
+		for (int i = 0; i < n; ++i)
+			if (UsageStats.countName("once" + i + suffix) > 0) ++remaining;
+		assertTrue(remaining + " of " + n, remaining <= UsageStats.MAX_NAMES + UsageStats.MAX_NAMES / 4); // trimmed now and then
+	}
+}
@@ -0,0 +1,52 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion.benchmark;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks, reporting throughput, latency percentiles (sample time)
+ * and allocation rate (the GC profiler's gc.alloc.rate.norm, in bytes per operation).
+ * 
+ * Run with: mvn -Pbenchmark test
+ * or pass a regular expression to select benchmarks, e.g. "ScopeBenchmark".
+ */
+public class Benchmarks {
+	
+	static public void main(final String[] args) throws RunnerException {
+		final ChainedOptionsBuilder options = new OptionsBuilder()
+				.mode(Mode.Throughput)
+				.mode(Mode.SampleTime)
+				.addProfiler(GCProfiler.class)
+				.warmupIterations(3)
+				.measurementIterations(5)
+				.forks(1);
+		if (0 == args.length) options.include(Benchmarks.class.getPackage().getName() + ".*Benchmark");
+		for (final String arg : args) options.include(arg);
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,76 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.fife.ui.autocomplete.Completion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import sc.fiji.jython.autocompletion.JythonAutoCompletions;
+
+/**
+ * End-to-end completions, for each kind of request, at the end of a script.
+ * Each invocation edits the last statement, as when typing, so that the session doesn't return what it resolved for the same code.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CompletionsBenchmark {
+	
+	@Param({"import", "member", "name", "dot"})
+	public String branch;
+	
+	@Param({"1000"})
+	public int lines;
+	
+	@Param({"true", "false"})
+	public boolean incremental;
+	
+	private JythonAutoCompletions completions;
+	private String code, lastLine, entered;
+	private int version = 0;
+	
+	@Setup
+	public void setup() {
+		JythonAutoCompletions.INCREMENTAL = incremental;
+		completions = new JythonAutoCompletions();
+		code = Scripts.script(lines);
+		switch (branch) {
+		case "import": lastLine = "import o"; entered = "o"; break;
+		case "member": lastLine = "from os import pa"; entered = "pa"; break;
+		case "name": lastLine = "im"; entered = "im"; break;
+		case "dot": lastLine = "ip = imp1.getPro"; entered = "getPro"; break;
+		default: throw new IllegalArgumentException(branch);
+		}
+	}
+	
+	@Benchmark
+	public List<Completion> completionsFor() {
+		return completions.completionsFor(null, code + "edit = " + (++version) + "\n", lastLine, entered);
+	}
+}
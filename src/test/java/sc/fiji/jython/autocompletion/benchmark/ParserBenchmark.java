@@ -0,0 +1,66 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import sc.fiji.jython.autocompletion.IncrementalScriptParser;
+import sc.fiji.jython.autocompletion.JythonScriptParser;
+
+/** Parsing whole scripts, and re-parsing them incrementally after an edit of the last line. */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParserBenchmark {
+	
+	@Param({"100", "1000", "10000"})
+	public int lines;
+	
+	private String code, edited;
+	private IncrementalScriptParser parser;
+	private boolean toggle = false;
+	
+	@Setup
+	public void setup() {
+		code = Scripts.script(lines);
+		edited = code + "x = 1\n";
+		parser = new IncrementalScriptParser();
+		parser.parse(code);
+	}
+	
+	@Benchmark
+	public sc.fiji.jython.autocompletion.Scope parseAST() {
+		return JythonScriptParser.parseAST(code);
+	}
+	
+	@Benchmark
+	public sc.fiji.jython.autocompletion.Scope parseIncremental() {
+		toggle = !toggle;
+		return parser.parse(toggle ? edited : code);
+	}
+}
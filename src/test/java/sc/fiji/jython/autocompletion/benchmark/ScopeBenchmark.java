@@ -0,0 +1,68 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import sc.fiji.jython.autocompletion.DotAutocompletions;
+import sc.fiji.jython.autocompletion.JythonScriptParser;
+import sc.fiji.jython.autocompletion.Scope;
+
+/** Name lookups from the innermost of nested scopes. */
+@State(org.openjdk.jmh.annotations.Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScopeBenchmark {
+	
+	@Param({"1", "4", "16"})
+	public int depth;
+	
+	private Scope scope;
+	
+	@Setup
+	public void setup() {
+		scope = JythonScriptParser.parseAST(Scripts.nested(depth, 20)).getLast();
+	}
+	
+	/** A name declared in the outermost scope. */
+	@Benchmark
+	public DotAutocompletions findOuter() {
+		return scope.find("var0_0", DotAutocompletions.EMPTY);
+	}
+	
+	/** The members of a builtin. */
+	@Benchmark
+	public DotAutocompletions findBuiltin() {
+		return scope.find("str", DotAutocompletions.EMPTY);
+	}
+	
+	@Benchmark
+	public List<String> findStartsWith() {
+		return scope.findStartsWith("va");
+	}
+}
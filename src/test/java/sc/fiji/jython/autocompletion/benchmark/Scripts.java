@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * Autocompletion for the jython language in the Script Editor
+ * %%
+ * Copyright (C) 2020 - 2021 Albert Cardona
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package sc.fiji.jython.autocompletion.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Synthetic jython scripts, resembling Fiji scripts, for benchmarking. */
+public class Scripts {
+	
+	static private final String[] header = new String[]{
+			"from ij import IJ, ImagePlus",
+			"from ij.process import ByteProcessor",
+			"import os",
+			"import sys"
+	};
+	
+	/**
+	 * @param nLines The exact number of lines of the script.
+	 * @return A valid script with imports, assignments, function and class definitions.
+	 */
+	static public String script(final int nLines) {
+		final List<String> lines = new ArrayList<>(nLines);
+		for (final String line : header) lines.add(line);
+		for (int i = 0; lines.size() < nLines; ++i) {
+			lines.add("width" + i + " = 512");
+			lines.add("imp" + i + " = IJ.createImage('img" + i + "', '8-bit', width" + i + ", 512, 1)");
+			lines.add("ip" + i + " = imp" + i + ".getProcessor()");
+			lines.add("name" + i + " = str(imp" + i + ")");
+			lines.add("def process" + i + "(imp, radius):");
+			lines.add("  ip = imp.getProcessor()");
+			lines.add("  ip.blurGaussian(radius)");
+			lines.add("  return ip");
+			lines.add("class Volume" + i + "(object):");
+			lines.add("  def __init__(self, n):");
+			lines.add("    self.n = n");
+		}
+		return String.join("\n", lines.subList(0, nLines)) + "\n";
+	}
+	
+	/**
+	 * @param depth Number of nested function definitions.
+	 * @param nVars Number of variables declared at each level.
+	 * @return A script whose last scope is nested {@code depth} levels deep.
+	 */
+	static public String nested(final int depth, final int nVars) {
+		final StringBuilder sb = new StringBuilder();
+		for (final String line : header) sb.append(line).append('\n');
+		String indent = "";
+		for (int d = 0; d < depth; ++d) {
+			sb.append(indent).append("imp").append(d).append(" = IJ.getImage()\n");
+			for (int i = 0; i < nVars; ++i)
+				sb.append(indent).append("var").append(d).append('_').append(i).append(" = imp").append(d).append('\n');
+			sb.append(indent).append("def level").append(d + 1).append("(arg):\n");
+			indent += "  ";
+		}
+		sb.append(indent).append("last = 0\n");
+		return sb.toString();
+	}
+}